@@ -0,0 +1,112 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import com.google.common.io.Files;
+import org.codehaus.jackson.JsonFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+  End to end conversion of a json listing on disk to a csv on disk, through EventLoader.getCSVFormat:
+  parsing, conversion on the configured threads, the writer thread and compression. The schema is
+  given, there is no Goodwill lookup. Bytes are the json read.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ConversionBenchmark
+{
+    @Param({"100000"})
+    public int events;
+
+    @Param({"20"})
+    public int width;
+
+    @Param({"1000"})
+    public int cardinality;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"NONE", "GZIP", "PARALLEL_GZIP"})
+    public String compression;
+
+    @Param({"4"})
+    public int compressionThreads;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private File dir;
+    private File listing;
+    private RowSchema schema;
+    private EventLoaderConfiguration configuration;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        dir = Files.createTempDir();
+        listing = new File(dir, "listing.json");
+        SyntheticEvents generator = new SyntheticEvents(width, cardinality, null, 42);
+        schema = generator.getSchema();
+        Files.write(generator.listing(events), listing);
+
+        configuration = new EventLoaderConfiguration();
+        configuration.setEventType("Synthetic");
+        configuration.setPath("/events/Synthetic");
+        configuration.setOutputFile(new File(dir, "events").getPath());
+        configuration.setTransformation(DataTransformationBase.class.getName());
+        configuration.setConversionThreads(threads);
+        configuration.setCompression(EventLoaderConfiguration.Compression.valueOf(compression));
+        configuration.setCompressionThreads(compressionThreads);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public void convert(Throughput throughput) throws IOException
+    {
+        new EventLoader(configuration).getCSVFormat(jsonFactory.createJsonParser(listing), schema);
+        throughput.rows += events;
+        throughput.bytes += listing.length();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+  IP addresses converted per second: the regex split ipToInt used to do, against the single pass
+  parser on strings, on bytes, over a whole column and over X-Forwarded-For chains.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IpAddressesBenchmark
+{
+    private static final int ADDRESSES = 4096;
+    private static final Pattern DOT_SPLIT = Pattern.compile("\\.");
+
+    private final String[] addresses = new String[ADDRESSES];
+    private final byte[] bytes = new byte[ADDRESSES * 16];
+    private final int[] offsets = new int[ADDRESSES];
+    private final int[] lengths = new int[ADDRESSES];
+    private final String[] chains = new String[ADDRESSES / 4];
+    private final int[] column = new int[ADDRESSES];
+
+    @Setup
+    public void setUp()
+    {
+        Random random = new Random(42);
+        int position = 0;
+        for (int i = 0; i < ADDRESSES; i++) {
+            addresses[i] = random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+            byte[] ascii = addresses[i].getBytes(Charset.forName("US-ASCII"));
+            System.arraycopy(ascii, 0, bytes, position, ascii.length);
+            offsets[i] = position;
+            lengths[i] = ascii.length;
+            position += ascii.length;
+        }
+        for (int i = 0; i < chains.length; i++) {
+            chains[i] = addresses[i * 4] + ", " + addresses[i * 4 + 1] + ", " + addresses[i * 4 + 2] + ", " + addresses[i * 4 + 3];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ADDRESSES)
+    public void regexSplit(Blackhole blackhole)
+    {
+        for (String address : addresses) {
+            String[] parts = DOT_SPLIT.split(address);
+            int ip = 0;
+            for (int n = 0; n < 4; n++) {
+                ip <<= 8;
+                ip += Integer.parseInt(parts[n]);
+            }
+            blackhole.consume(ip + (1 << 31));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ADDRESSES)
+    public void ipToInt(Blackhole blackhole)
+    {
+        for (String address : addresses) {
+            blackhole.consume(DataTransformationBase.ipToInt(address));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ADDRESSES)
+    public void parseBytes(Blackhole blackhole)
+    {
+        for (int i = 0; i < ADDRESSES; i++) {
+            blackhole.consume(IpAddresses.parse(bytes, offsets[i], lengths[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ADDRESSES)
+    public int[] parseColumn()
+    {
+        IpAddresses.parseAll(addresses, ADDRESSES, column, 0);
+        return column;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ADDRESSES)
+    public int[] parseChains()
+    {
+        for (int i = 0; i < chains.length; i++) {
+            IpAddresses.parseList(chains[i], ',', column);
+        }
+        return column;
+    }
+}
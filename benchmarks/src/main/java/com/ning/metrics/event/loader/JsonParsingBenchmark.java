@@ -0,0 +1,103 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+  Json to rows: the streaming parse of the action-core listing EventLoader.getCSVFormat does,
+  events assembled into rows by a RowAssembler, without any conversion. The listing is json text,
+  or Smile as --smile keeps it; bytes/s counts the bytes of the format read.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonParsingBenchmark
+{
+    private static final int EVENTS = 10000;
+
+    @Param({"10", "50"})
+    public int width;
+
+    @Param({"100", "10000"})
+    public int cardinality;
+
+    @Param({"false", "true"})
+    public boolean smile;
+
+    private RowSchema schema;
+    private byte[] listing;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        SyntheticEvents events = new SyntheticEvents(width, cardinality, null, 42);
+        schema = events.getSchema();
+        listing = events.listing(EVENTS);
+        if (smile) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(listing.length);
+            SmileStreams.transcode(SmileStreams.createParser(listing, 0, listing.length), out);
+            listing = out.toByteArray();
+        }
+    }
+
+    @Benchmark
+    public void parse(Throughput throughput, Blackhole blackhole) throws IOException
+    {
+        JsonParser jsonParser = SmileStreams.createParser(listing, 0, listing.length);
+        RowAssembler assembler = new RowAssembler(schema);
+        int rows = 0;
+        JsonToken token;
+        while ((token = jsonParser.nextToken()) != null) {
+            if (token != JsonToken.FIELD_NAME || !jsonParser.getCurrentName().equals("content")) {
+                continue;
+            }
+            jsonParser.nextToken();
+            while (jsonParser.nextToken() == JsonToken.START_OBJECT) {
+                String[] row = new String[schema.size()];
+                assembler.read(jsonParser, row);
+                blackhole.consume(row);
+                rows++;
+            }
+        }
+        jsonParser.close();
+        throughput.rows += rows;
+        throughput.bytes += listing.length;
+    }
+}
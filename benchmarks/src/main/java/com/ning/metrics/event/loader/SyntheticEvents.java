@@ -0,0 +1,178 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import com.ning.metrics.goodwill.access.GoodwillSchema;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/*
+  Synthetic events for the benchmarks, in place of real partitions and of Goodwill.
+  The schema has width columns whose types cycle through STRING, DATE and INTEGER (or all have the
+  same type); each column draws its values from cardinality distinct values, so that caches see a
+  realistic mix of repeated values. One distinct STRING value in ten has quotes or a backslash to escape.
+  Deterministic for a given seed.
+*/
+public class SyntheticEvents
+{
+    public static final String[] TYPES = {"STRING", "DATE", "INTEGER"};
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long HOUR_START = 1308957622623L;
+    private static final int EVENTS_PER_FILE = 10000;
+
+    private final RowSchema schema;
+    private final String[][] values;
+    private final Random random;
+
+    /**
+     * @param width       number of columns
+     * @param cardinality distinct values per column
+     * @param type        type of every column, null to cycle through TYPES
+     * @param seed        random seed
+     */
+    public SyntheticEvents(int width, int cardinality, String type, long seed) throws IOException
+    {
+        this.random = new Random(seed);
+        this.values = new String[width][cardinality];
+        StringBuilder json = new StringBuilder("{\"name\":\"Synthetic\",\"schema\":[");
+        for (int column = 0; column < width; column++) {
+            String columnType = type == null ? TYPES[column % TYPES.length] : type;
+            json.append(column == 0 ? "" : ",").append("{\"name\":\"field").append(column)
+                .append("\",\"type\":\"").append(columnType).append("\",\"position\":").append(column + 1).append('}');
+            for (int v = 0; v < cardinality; v++) {
+                values[column][v] = value(columnType, v);
+            }
+        }
+        // what SchemaLookup gets from Goodwill, so that DataTransformationBase has its fields
+        GoodwillSchema goodwillSchema = new ObjectMapper().readValue(json.append("]}").toString(), GoodwillSchema.class);
+        this.schema = new RowSchema(goodwillSchema.getSchema());
+    }
+
+    /**
+     * @return stub schema, as SchemaLookup would build it from Goodwill
+     */
+    public RowSchema getSchema()
+    {
+        return schema;
+    }
+
+    public String[] nextRow()
+    {
+        String[] row = new String[values.length];
+        for (int column = 0; column < row.length; column++) {
+            row[column] = values[column][random.nextInt(values[column].length)];
+        }
+        return row;
+    }
+
+    public List<String[]> rows(int count)
+    {
+        List<String[]> rows = new ArrayList<String[]>(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(nextRow());
+        }
+        return rows;
+    }
+
+    /**
+     * @param count number of events
+     * @return the action-core json rendering of a partition holding the events, in files of 10000 events
+     */
+    public byte[] listing(int count) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(count * values.length * 24);
+        writeListing(count, out);
+        return out.toByteArray();
+    }
+
+    public void writeListing(int count, OutputStream out) throws IOException
+    {
+        JsonGenerator json = new JsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+        json.writeStartObject();
+        json.writeArrayFieldStart("entries");
+        for (int file = 0; file * EVENTS_PER_FILE < count; file++) {
+            json.writeStartObject();
+            json.writeStringField("path", "/events/Synthetic/2011/06/24/23/part-" + file);
+            json.writeBooleanField("isDir", false);
+            json.writeArrayFieldStart("content");
+            for (int i = file * EVENTS_PER_FILE; i < Math.min(count, (file + 1) * EVENTS_PER_FILE); i++) {
+                String[] row = nextRow();
+                json.writeStartObject();
+                for (int column = 0; column < row.length; column++) {
+                    json.writeStringField(schema.getName(column), row[column]);
+                }
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+        json.writeEndObject();
+        json.close();
+    }
+
+    /**
+     * @return the events as csv, as the loader writes them
+     */
+    public List<RowBuffer> csv(int count, int rowsPerSegment) throws IOException
+    {
+        CSVRowEncoder encoder = new CSVRowEncoder(schema);
+        Row row = new Row(schema);
+        List<RowBuffer> segments = new ArrayList<RowBuffer>();
+        RowBuffer segment = null;
+        for (int i = 0; i < count; i++) {
+            if (i % rowsPerSegment == 0) {
+                segment = new RowBuffer(UTF8, 64 * 1024);
+                segments.add(segment);
+            }
+            row.wrap(nextRow());
+            encoder.transformRow(row, segment, "|");
+        }
+        return segments;
+    }
+
+    private String value(String type, int v)
+    {
+        if (type.equals("DATE")) {
+            return String.valueOf(HOUR_START + random.nextInt(3600 * 1000));
+        }
+        if (type.equals("STRING")) {
+            StringBuilder value = new StringBuilder("value-").append(v).append('-');
+            int length = 4 + random.nextInt(24);
+            for (int i = 0; i < length; i++) {
+                value.append((char) ('a' + random.nextInt(26)));
+            }
+            if (v % 10 == 9) {
+                value.insert(value.length() / 2, random.nextBoolean() ? "\"quoted\"" : "back\\slash");
+            }
+            return value.toString();
+        }
+        return String.valueOf(random.nextInt(Integer.MAX_VALUE) - random.nextInt(Integer.MAX_VALUE));
+    }
+}
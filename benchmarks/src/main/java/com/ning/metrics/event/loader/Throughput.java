@@ -0,0 +1,45 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+  Rows and bytes processed by a benchmark, reported by JMH as rows/s and bytes/s next to the
+  benchmark's own score. Which bytes are counted (json read, csv written) is up to the benchmark.
+*/
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Throughput
+{
+    public long rows;
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        rows = 0;
+        bytes = 0;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+  Rows converted per second, by column type: the byte level CSVRowEncoder against the String
+  based DataTransformationBase it replaces. STRING columns include values with quotes and
+  backslashes to escape; DATE columns are epoch millis formatted as timestamps.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformationBenchmark
+{
+    private static final int ROWS = 1024;
+
+    @Param({"STRING", "DATE", "INTEGER"})
+    public String type;
+
+    @Param({"20"})
+    public int width;
+
+    @Param({"1000"})
+    public int cardinality;
+
+    private List<String[]> rows;
+    private Row row;
+    private RowBuffer output;
+    private CSVRowEncoder encoder;
+    private DataTransformationAdapter adapter;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        SyntheticEvents events = new SyntheticEvents(width, cardinality, type, 42);
+        rows = events.rows(ROWS);
+        row = new Row(events.getSchema());
+        output = new RowBuffer(Charset.forName("UTF-8"), 1024 * 1024);
+        encoder = new CSVRowEncoder(events.getSchema());
+        adapter = new DataTransformationAdapter(new DataTransformationBase(), events.getSchema());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void encoder(Throughput throughput, Blackhole blackhole)
+    {
+        output.reset();
+        for (String[] values : rows) {
+            row.wrap(values);
+            encoder.transformRow(row, output, "|");
+        }
+        count(throughput, blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void transformRow(Throughput throughput, Blackhole blackhole) throws Exception
+    {
+        output.reset();
+        for (String[] values : rows) {
+            row.wrap(values);
+            adapter.transformRow(row, output, "|");
+        }
+        count(throughput, blackhole);
+    }
+
+    private void count(Throughput throughput, Blackhole blackhole)
+    {
+        blackhole.consume(output.byteAt(output.size() - 1));
+        throughput.rows += ROWS;
+        throughput.bytes += output.size();
+    }
+}
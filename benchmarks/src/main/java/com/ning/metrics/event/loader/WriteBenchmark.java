@@ -0,0 +1,90 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+  Write path: converted segments written through the output compression to a null stream, so that
+  only the compression and the copies are measured, not the disk. Bytes are the uncompressed csv.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBenchmark
+{
+    private static final int ROWS = 20000;
+    private static final int ROWS_PER_SEGMENT = 1000;
+
+    @Param({"NONE", "GZIP", "PARALLEL_GZIP", "LZ4", "SNAPPY"})
+    public String compression;
+
+    @Param({"4"})
+    public int compressionThreads;
+
+    @Param({"20"})
+    public int width;
+
+    @Param({"1000"})
+    public int cardinality;
+
+    private List<RowBuffer> segments;
+    private long bytes;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        segments = new SyntheticEvents(width, cardinality, null, 42).csv(ROWS, ROWS_PER_SEGMENT);
+        for (RowBuffer segment : segments) {
+            bytes += segment.size();
+        }
+    }
+
+    @Benchmark
+    public void write(Throughput throughput) throws IOException
+    {
+        EventLoaderConfiguration.Compression codec = EventLoaderConfiguration.Compression.valueOf(compression);
+        OutputStream out = CompressedStreams.compress(ByteStreams.nullOutputStream(), codec, compressionThreads);
+        for (RowBuffer segment : segments) {
+            segment.writeTo(out);
+        }
+        out.close();
+        throughput.rows += ROWS;
+        throughput.bytes += bytes;
+    }
+}
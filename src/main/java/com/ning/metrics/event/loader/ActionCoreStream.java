@@ -0,0 +1,160 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import org.apache.log4j.Logger;
+
+/*
+  Streams the action-core json rendering of an HDFS path from the HTTP response
+  into a bounded pipe, so the json parser produces rows while the download is still running.
+  The download runs on its own thread; the pipe size bounds how far it can get ahead of the parser.
+*/
+public class ActionCoreStream implements Closeable
+{
+    private static final Logger log = Logger.getLogger(ActionCoreStream.class);
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final URL url;
+    private final int pipeSize;
+    private PipedInputStream pipe;
+    private Thread downloader;
+    private volatile IOException failure;
+
+    public ActionCoreStream(String host, int port, String query, int pipeSize) throws IOException
+    {
+        this.url = new URL("http://" + host + ":" + port + query);
+        this.pipeSize = pipeSize;
+    }
+
+    /**
+     * Send the request and start copying the response body into the pipe
+     *
+     * @return read end of the pipe, to be handed to the json parser
+     * @throws IOException if action-core cannot be reached or does not answer with a 200
+     */
+    public InputStream open() throws IOException
+    {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new IOException("action-core returned " + status + " for " + url);
+        }
+
+        final InputStream body = connection.getInputStream();
+        pipe = new PipedInputStream(pipeSize);
+        final PipedOutputStream sink = new PipedOutputStream(pipe);
+
+        downloader = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                long total = 0;
+                try {
+                    int read;
+                    while ((read = body.read(buffer)) != -1) {
+                        sink.write(buffer, 0, read);
+                        total += read;
+                    }
+                    log.info("Downloaded " + total + " bytes from " + url);
+                }
+                catch (IOException e) {
+                    failure = e;
+                    // don't hand a half read connection back to the keep-alive cache
+                    connection.disconnect();
+                }
+                finally {
+                    // a fully read body returns the connection to the JVM's keep-alive cache, for the next export of a batch
+                    closeQuietly(body);
+                    closeQuietly(sink);
+                }
+            }
+        }, "action-core-download");
+        downloader.setDaemon(true);
+        downloader.start();
+
+        return pipe;
+    }
+
+    /**
+     * Wait for the download to complete once the parser is done with the stream.
+     * Whatever is left in the pipe (trailing whitespace) is discarded.
+     *
+     * @throws IOException if the download failed part way through
+     */
+    public void finish() throws IOException
+    {
+        if (pipe == null) {
+            return;
+        }
+
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        while (pipe.read(buffer) != -1) {
+            ;
+        }
+        join();
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Abort the download if it is still running. Safe to call after finish().
+     */
+    public void close() throws IOException
+    {
+        if (pipe == null) {
+            return;
+        }
+
+        // the download thread fails its next write once the read end is closed
+        pipe.close();
+        join();
+    }
+
+    private void join() throws IOException
+    {
+        try {
+            downloader.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for download of " + url);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        try {
+            closeable.close();
+        }
+        catch (IOException e) {
+            log.debug("Unable to close stream: " + e.getLocalizedMessage());
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.cli.ParseException;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+
+/*
+  Runs the jobs of a manifest (event type, path, output, transformation) one after the other in a
+  single process. The jobs share the conversion pool, the schema cache (all schemas are prefetched
+  with one goodwill request) and the JVM's keep-alive connections to action-core. A failed job is
+  logged and the batch moves on to the next one.
+  Each job is configured by its manifest entry followed by the command line options, so a job
+  setting overrides the command line. The output of a job defaults to its event type, and with
+  --rejects its rejects file to its output with a .rejects.json suffix, so that jobs do not overwrite
+  each other's rejects.
+*/
+public class BatchLoader
+{
+    private static final Logger log = Logger.getLogger(BatchLoader.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final String[] args;
+    private final EventLoaderConfiguration configuration;
+    private final SchemaCache schemaCache;
+
+    public static class Job
+    {
+        private String event;
+        private String path;
+        private String output;
+        private String transformation;
+        private String rejects;
+
+        public String getEvent()
+        {
+            return event;
+        }
+
+        public void setEvent(String event)
+        {
+            this.event = event;
+        }
+
+        public String getPath()
+        {
+            return path;
+        }
+
+        public void setPath(String path)
+        {
+            this.path = path;
+        }
+
+        public String getOutput()
+        {
+            return output;
+        }
+
+        public void setOutput(String output)
+        {
+            this.output = output;
+        }
+
+        public String getTransformation()
+        {
+            return transformation;
+        }
+
+        public void setTransformation(String transformation)
+        {
+            this.transformation = transformation;
+        }
+
+        public String getRejects()
+        {
+            return rejects;
+        }
+
+        public void setRejects(String rejects)
+        {
+            this.rejects = rejects;
+        }
+
+        @Override
+        public String toString()
+        {
+            return event + " " + path;
+        }
+    }
+
+    /**
+     * @param configuration options of the command line, with the manifest
+     * @param args          the command line, applied to every job
+     */
+    public BatchLoader(EventLoaderConfiguration configuration, String[] args)
+    {
+        this(configuration, args, EventLoader.createSchemaCache(configuration));
+    }
+
+    BatchLoader(EventLoaderConfiguration configuration, String[] args, SchemaCache schemaCache)
+    {
+        this.configuration = configuration;
+        this.args = args;
+        this.schemaCache = schemaCache;
+    }
+
+    public static List<Job> readManifest(File manifest) throws IOException
+    {
+        return mapper.readValue(manifest, new TypeReference<List<Job>>()
+        {
+        });
+    }
+
+    /**
+     * @return number of failed jobs
+     * @throws IOException if the manifest cannot be read
+     */
+    public int run() throws IOException
+    {
+        List<Job> jobs = readManifest(new File(configuration.getBatchManifest()));
+
+        Set<String> events = new HashSet<String>();
+        for (Job job : jobs) {
+            events.add(job.getEvent());
+        }
+        schemaCache.prefetch(events);
+
+        int threads = configuration.getConversionThreads();
+        ExecutorService workers = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        int failures = 0;
+        try {
+            for (int i = 0; i < jobs.size(); i++) {
+                Job job = jobs.get(i);
+                long start = System.currentTimeMillis();
+                try {
+                    EventLoaderConfiguration jobConfiguration = EventLoaderConfiguration.parseArguments(jobArguments(job));
+                    if (jobConfiguration == null) {
+                        throw new IllegalArgumentException("Invalid job " + job);
+                    }
+                    log.info("Job " + (i + 1) + "/" + jobs.size() + ": exporting " + job);
+                    new EventLoader(jobConfiguration, schemaCache, workers).fetchEventData();
+                    log.info("Job " + (i + 1) + "/" + jobs.size() + ": " + job + " exported in " + (System.currentTimeMillis() - start) + " ms");
+                }
+                catch (Exception e) {
+                    failures++;
+                    log.error("Job " + (i + 1) + "/" + jobs.size() + ": " + job + " failed after " + (System.currentTimeMillis() - start) + " ms", e);
+                }
+            }
+        }
+        finally {
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+        }
+
+        log.info("Batch done: " + (jobs.size() - failures) + " jobs exported, " + failures + " failed");
+        return failures;
+    }
+
+    private String[] jobArguments(Job job) throws ParseException
+    {
+        if (job.getEvent() == null) {
+            throw new ParseException("No event in job " + job);
+        }
+
+        List<String> jobArgs = new ArrayList<String>();
+        jobArgs.add("--event");
+        jobArgs.add(job.getEvent());
+        if (job.getPath() != null) {
+            jobArgs.add("--path");
+            jobArgs.add(job.getPath());
+        }
+        String output = job.getOutput() == null ? job.getEvent() : job.getOutput();
+        jobArgs.add("--outputfile");
+        jobArgs.add(output);
+        if (job.getRejects() != null || configuration.getRejectsFile() != null) {
+            jobArgs.add("--rejects");
+            jobArgs.add(job.getRejects() == null ? output + ".rejects.json" : job.getRejects());
+        }
+        if (job.getTransformation() != null) {
+            jobArgs.add("--transformation");
+            jobArgs.add(job.getTransformation());
+        }
+        // the first value of an option wins
+        jobArgs.addAll(Arrays.asList(args));
+        return jobArgs.toArray(new String[jobArgs.size()]);
+    }
+}
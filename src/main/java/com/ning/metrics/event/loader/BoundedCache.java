@@ -0,0 +1,169 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+  Bounded cache shared by threads, for memoizing expensive lookups such as user agent decoding.
+  Keys are spread over segments by hash; each segment is an access ordered LinkedHashMap evicting
+  its least recently used entry when full, behind its own lock, so threads rarely contend.
+  Hits, misses and evictions are counted under the segment locks.
+*/
+public class BoundedCache<K, V>
+{
+    private final Segment<K, V>[] segments;
+    private final int mask;
+
+    /**
+     * @param maximumSize maximum number of entries, spread evenly over the segments
+     * @param concurrency expected number of threads, rounded up to a power of two segments
+     */
+    @SuppressWarnings("unchecked")
+    public BoundedCache(int maximumSize, int concurrency)
+    {
+        int count = 1;
+        while (count < concurrency && count < maximumSize) {
+            count <<= 1;
+        }
+        this.segments = new Segment[count];
+        this.mask = count - 1;
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<K, V>(Math.max(1, (maximumSize + count - 1) / count));
+        }
+    }
+
+    /**
+     * @return the cached value, null on a miss
+     */
+    public V get(K key)
+    {
+        Segment<K, V> segment = segmentOf(key);
+        synchronized (segment) {
+            V value = segment.get(key);
+            if (value == null) {
+                segment.misses++;
+            }
+            else {
+                segment.hits++;
+            }
+            return value;
+        }
+    }
+
+    public void put(K key, V value)
+    {
+        Segment<K, V> segment = segmentOf(key);
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHits()
+    {
+        long hits = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+            }
+        }
+        return hits;
+    }
+
+    public long getMisses()
+    {
+        long misses = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                misses += segment.misses;
+            }
+        }
+        return misses;
+    }
+
+    public long getEvictions()
+    {
+        long evictions = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                evictions += segment.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    /**
+     * @return hits over lookups, 0 before the first lookup
+     */
+    public double getHitRate()
+    {
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d entries, hit rate %.1f%%, %d evictions", size(), getHitRate() * 100, getEvictions());
+    }
+
+    private Segment<K, V> segmentOf(K key)
+    {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & mask];
+    }
+
+    private static class Segment<K, V> extends LinkedHashMap<K, V>
+    {
+        private final int capacity;
+        private long hits = 0;
+        private long misses = 0;
+        private long evictions = 0;
+
+        private Segment(int capacity)
+        {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+        {
+            if (size() > capacity) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+/*
+  Byte level implementation of DataTransformationBase.transformRow, used whenever the base class
+  itself is the configured transformation. The output is byte for byte what transformRow returns
+  once encoded, but STRING columns are escaped and quoted in a single pass straight into the
+  output buffer, and the column type dispatch is worked out once per schema.
+*/
+public class CSVRowEncoder implements RowTransformation
+{
+    private static final byte STRING = 0;
+    private static final byte DATE = 1;
+    private static final byte RAW = 2;
+
+    private final RowSchema schema;
+    private final byte[] columnTypes;
+    private final TimestampFormatter timestamps = new TimestampFormatter();
+    private final LoaderMetrics metrics;
+
+    public CSVRowEncoder(RowSchema schema)
+    {
+        this(schema, null);
+    }
+
+    /**
+     * @param metrics counts the invalid dates, by column; null not to count them
+     */
+    public CSVRowEncoder(RowSchema schema, LoaderMetrics metrics)
+    {
+        this.schema = schema;
+        this.metrics = metrics;
+        columnTypes = new byte[schema.size()];
+        for (int slot = 0; slot < columnTypes.length; slot++) {
+            String type = schema.getType(slot);
+            if (type == null) {
+                throw new IllegalArgumentException("No type for column " + schema.getName(slot));
+            }
+            columnTypes[slot] = type.equals("STRING") ? STRING : type.equals("DATE") ? DATE : RAW;
+        }
+    }
+
+    public void transformRow(Row row, RowBuffer output, String delimiter)
+    {
+        for (int slot = 0; slot < columnTypes.length; slot++) {
+            String value = row.get(slot);
+            switch (columnTypes[slot]) {
+                case STRING:
+                    output.append((byte) '"');
+                    if (value != null) {
+                        appendEscaped(value, output);
+                    }
+                    output.append((byte) '"');
+                    break;
+                case DATE:
+                    // DataTransformationBase writes the opening quote before parsing the value: a bad date comes out as a lone quote
+                    output.append((byte) '"');
+                    if (appendDate(value, output)) {
+                        output.append((byte) '"');
+                    }
+                    else if (metrics != null && value != null && value.length() > 0) {
+                        metrics.columnFailure(schema.getName(slot));
+                    }
+                    break;
+                default:
+                    if (value != null) {
+                        output.append(value);
+                    }
+            }
+            output.append(delimiter);
+        }
+        output.append((byte) '\n');
+    }
+
+    private boolean appendDate(String value, RowBuffer output)
+    {
+        try {
+            return timestamps.append(value, output);
+        }
+        catch (IllegalArgumentException e) {
+            // date out of Joda's range
+            return false;
+        }
+    }
+
+    /**
+     * Drop double and single quotes, double backslashes; what the three String.replace calls of
+     * DataTransformationBase do, including for surrogate pairs split by a dropped quote.
+     */
+    static void appendEscaped(String value, RowBuffer output)
+    {
+        if (!output.isDirectlyEncoded()) {
+            output.append(DataTransformationBase.escape(value));
+            return;
+        }
+
+        char pendingHigh = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\'') {
+                continue;
+            }
+            if (pendingHigh != 0) {
+                if (Character.isLowSurrogate(c)) {
+                    output.appendCodePoint(Character.toCodePoint(pendingHigh, c));
+                    pendingHigh = 0;
+                    continue;
+                }
+                output.appendReplacement();
+                pendingHigh = 0;
+            }
+
+            if (c == '\\') {
+                output.append((byte) '\\').append((byte) '\\');
+            }
+            else if (Character.isHighSurrogate(c)) {
+                pendingHigh = c;
+            }
+            else {
+                output.appendCodePoint(c);
+            }
+        }
+        if (pendingHigh != 0) {
+            output.appendReplacement();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.log4j.Logger;
+
+/*
+  Journal of the input files whose rows are completely written to the csv, so that a failed export
+  can be resumed where it stopped instead of from scratch. One line per completed file:
+  file, rows of the file, csv length once its rows are written, rows of the file rejected by the
+  validation, rejects file length, tab separated. The first line identifies the export (event type
+  and path); a journal of another export is ignored.
+  Opening the journal truncates the csv and the rejects file to the lengths recorded by its last line:
+  rows of a file that was being converted when the export failed are dropped and converted again. A line is only
+  appended once the csv is flushed, a crash in the middle of a line leaves it without its end of line and it is
+  ignored, even if its fields parse. Lines are appended by the writer thread of the conversion while the export
+  reads the journal.
+*/
+public class CheckpointJournal implements Closeable
+{
+    private static final Logger log = Logger.getLogger(CheckpointJournal.class);
+    private static final String SEPARATOR = "\t";
+
+    private final File journal;
+    private final File output;
+    private final String export;
+    private final Set<String> completed = new HashSet<String>();
+    private final File rejects;
+    private long offset = 0;
+    private long rows = 0;
+    private long rejectsOffset = 0;
+    private long rejected = 0;
+    private long engineRows = 0;
+    private long engineBytes = 0;
+    private long engineRejected = 0;
+    private long engineRejectBytes = 0;
+    private Writer writer;
+
+    /**
+     * Read the journal left by a previous attempt, if any, and truncate the output to the last checkpoint
+     *
+     * @param journal journal file
+     * @param output  csv file the journal describes
+     * @param export  identifies the export, e.g. event type and path
+     * @throws IOException if the journal or the output cannot be read or written
+     */
+    public CheckpointJournal(File journal, File output, String export) throws IOException
+    {
+        this(journal, output, null, export);
+    }
+
+    /**
+     * Read the journal left by a previous attempt, if any, and truncate the output and the rejects to the last checkpoint
+     *
+     * @param journal journal file
+     * @param output  csv file the journal describes
+     * @param rejects rejects file of the validation, null if the rejected rows are not written
+     * @param export  identifies the export, e.g. event type and path
+     * @throws IOException if the journal or the output cannot be read or written
+     */
+    public CheckpointJournal(File journal, File output, File rejects, String export) throws IOException
+    {
+        this.journal = journal;
+        this.output = output;
+        this.rejects = rejects;
+        this.export = export;
+
+        List<String> lines = new ArrayList<String>();
+        if (journal.exists()) {
+            read(lines);
+        }
+        if (offset > output.length() || (rejects != null && rejectsOffset > rejects.length())) {
+            log.warn(output + " or its rejects are shorter than recorded in " + journal + ", starting over");
+            lines.clear();
+            completed.clear();
+            offset = 0;
+            rows = 0;
+            rejectsOffset = 0;
+            rejected = 0;
+        }
+        if (!completed.isEmpty()) {
+            log.info("Resuming " + export + ": " + completed.size() + " files (" + rows + " rows, " + rejected + " rejected) already in " + output);
+        }
+        truncate(output, offset);
+        if (rejects != null) {
+            truncate(rejects, rejectsOffset);
+        }
+
+        // rewrite the journal with the valid lines only
+        writer = new OutputStreamWriter(new FileOutputStream(journal), "UTF-8");
+        writer.write(export + "\n");
+        for (String line : lines) {
+            writer.write(line + "\n");
+        }
+        writer.flush();
+    }
+
+    /**
+     * @return true if the rows of this file are already in the output
+     */
+    public synchronized boolean isCompleted(String file)
+    {
+        return completed.contains(file);
+    }
+
+    /**
+     * @return length of the output once truncated, the export appends from there
+     */
+    public synchronized long getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * @return rows already in the output
+     */
+    public synchronized long getRows()
+    {
+        return rows;
+    }
+
+    /**
+     * @return rows rejected by the validation of the previous attempts
+     */
+    public synchronized long getRejected()
+    {
+        return rejected;
+    }
+
+    /**
+     * Record that all the rows of a file, and its rejected rows, are written and flushed
+     *
+     * @param file              input file
+     * @param totalRows         rows written by this attempt so far
+     * @param totalBytes        bytes written by this attempt so far
+     * @param totalRejected     rows rejected by this attempt so far
+     * @param totalRejectBytes  bytes of rejected rows written by this attempt so far
+     * @throws IOException if the journal cannot be written
+     */
+    public synchronized void completed(String file, long totalRows, long totalBytes, long totalRejected, long totalRejectBytes) throws IOException
+    {
+        long fileRows = totalRows - engineRows;
+        long fileRejected = totalRejected - engineRejected;
+        offset += totalBytes - engineBytes;
+        rows += fileRows;
+        rejectsOffset += totalRejectBytes - engineRejectBytes;
+        rejected += fileRejected;
+        engineRows = totalRows;
+        engineBytes = totalBytes;
+        engineRejected = totalRejected;
+        engineRejectBytes = totalRejectBytes;
+        completed.add(file);
+
+        writer.write(file + SEPARATOR + fileRows + SEPARATOR + offset + SEPARATOR + fileRejected + SEPARATOR + rejectsOffset + "\n");
+        writer.flush();
+    }
+
+    /**
+     * The export is complete, the journal is not needed any more
+     */
+    public void finish() throws IOException
+    {
+        close();
+        if (!journal.delete()) {
+            log.warn("Unable to delete " + journal);
+        }
+    }
+
+    /**
+     * Keep the journal for the next attempt
+     */
+    public void close() throws IOException
+    {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private void read(List<String> lines) throws IOException
+    {
+        String content = Files.toString(journal, Charsets.UTF_8);
+        // a line is complete with its end of line only: a crash may cut it inside its last number
+        String[] journalLines = content.substring(0, content.lastIndexOf('\n') + 1).split("\n");
+        String header = journalLines[0];
+        if (!header.equals(export)) {
+            log.info("Ignoring " + journal + ", written by another export: " + header);
+            return;
+        }
+
+        for (int i = 1; i < journalLines.length; i++) {
+            String line = journalLines[i];
+            String[] fields = line.split(SEPARATOR);
+            if (fields.length != 5) {
+                // not a line of this journal, and the end of the valid journal
+                break;
+            }
+            long fileRows;
+            long fileOffset;
+            long fileRejected;
+            long fileRejectsOffset;
+            try {
+                fileRows = Long.parseLong(fields[1]);
+                fileOffset = Long.parseLong(fields[2]);
+                fileRejected = Long.parseLong(fields[3]);
+                fileRejectsOffset = Long.parseLong(fields[4]);
+            }
+            catch (NumberFormatException e) {
+                break;
+            }
+            if (fileOffset < offset || fileRejectsOffset < rejectsOffset) {
+                break;
+            }
+            completed.add(fields[0]);
+            rows += fileRows;
+            offset = fileOffset;
+            rejected += fileRejected;
+            rejectsOffset = fileRejectsOffset;
+            lines.add(line);
+        }
+    }
+
+    private static void truncate(File output, long length) throws IOException
+    {
+        if (!output.exists()) {
+            return;
+        }
+        RandomAccessFile file = new RandomAccessFile(output, "rw");
+        try {
+            file.setLength(length);
+        }
+        finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import org.xerial.snappy.SnappyInputStream;
+import org.xerial.snappy.SnappyOutputStream;
+
+/*
+  Wraps the csv and json files in the compression chosen with --compression.
+  Gzip files, parallel or not, can be fed to nzload through zcat; LZ4 and Snappy are faster on the
+  CPU but need their own tools to be read back.
+*/
+public class CompressedStreams
+{
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int PARALLEL_GZIP_BLOCK_SIZE = 1024 * 1024;
+
+    private CompressedStreams()
+    {
+    }
+
+    /**
+     * @return file name suffix for the compression, empty for none
+     */
+    public static String extension(EventLoaderConfiguration.Compression compression)
+    {
+        switch (compression) {
+            case GZIP:
+            case PARALLEL_GZIP:
+                return ".gz";
+            case LZ4:
+                return ".lz4";
+            case SNAPPY:
+                return ".snappy";
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * @param out         file stream, closed when the returned stream is closed
+     * @param compression compression to apply
+     * @param threads     compressing threads for PARALLEL_GZIP
+     * @return stream compressing into out, or out itself without compression
+     * @throws IOException if the compression header cannot be written
+     */
+    public static OutputStream compress(OutputStream out, EventLoaderConfiguration.Compression compression, int threads) throws IOException
+    {
+        switch (compression) {
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_SIZE);
+            case PARALLEL_GZIP:
+                return new ParallelGzipOutputStream(out, threads, PARALLEL_GZIP_BLOCK_SIZE);
+            case LZ4:
+                return new LZ4BlockOutputStream(out);
+            case SNAPPY:
+                return new SnappyOutputStream(out);
+            default:
+                return out;
+        }
+    }
+
+    /**
+     * @param in          file stream, closed when the returned stream is closed
+     * @param compression compression the file was written with
+     * @return stream decompressing in
+     * @throws IOException if the compression header cannot be read
+     */
+    public static InputStream decompress(InputStream in, EventLoaderConfiguration.Compression compression) throws IOException
+    {
+        switch (compression) {
+            case GZIP:
+            case PARALLEL_GZIP:
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            case LZ4:
+                return new LZ4BlockInputStream(in);
+            case SNAPPY:
+                return new SnappyInputStream(in);
+            default:
+                return in;
+        }
+    }
+}
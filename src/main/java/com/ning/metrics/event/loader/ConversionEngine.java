@@ -0,0 +1,640 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import com.google.common.base.Throwables;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/*
+  Converts row sources (batches of rows, HDFS file splits) to csv in a pipeline: the caller produces
+  the sources, a pool of worker threads converts them and a single writer thread writes the segments
+  in the order they were submitted, so the csv is the same whatever the number of threads.
+  The stages are connected by a bounded queue: the caller blocks while the queue is full, the
+  writer waits for the head of the queue; how long each of them waits is kept in the PipelineStats.
+  With a single thread everything runs on the caller's thread.
+  Each worker gets its own transformation instance and row view.
+  With a sharded output, every row goes to the shard picked by the FNV-1a hash of its distribution
+  column, so rows with the same key end up in the same file. Without a distribution column rows are
+  dealt round robin.
+  Progress is logged every 30 seconds; with LoaderMetrics, the conversion and write time of every
+  segment is recorded too.
+  With validation, rows with an invalid value are not converted but written to the rejects file,
+  and the conversion fails once the share of rejected rows goes over the error rate threshold
+  (checked from 1000 rows on, and over all the rows at the end). A resumed export counts the rows of
+  the previous attempts in the error rate, and journals its rejected rows along with the csv.
+*/
+public class ConversionEngine
+{
+    private static final Logger log = Logger.getLogger(ConversionEngine.class);
+    private static final long PROGRESS_INTERVAL = 30 * 1000L;
+    private static final long FAILURE_CHECK_INTERVAL = 100;
+    private static final long MIN_ROWS_FOR_ERROR_RATE = 1000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Pending END = new Pending(null, null);
+
+    private final TransformationFactory transformations;
+    private final RowSchema schema;
+    private final String delimiter;
+    private final Charset charset;
+    private final OutputStream out;
+    private final ShardedOutput shards;
+    private final int shardCount;
+    private final int distributionSlot;
+    private final ExecutorService workers;
+    private final boolean sharedWorkers;
+    private final BlockingQueue<Pending> queue;
+    private final PipelineStats stats;
+    private final ThreadLocal<Worker> workerState = new ThreadLocal<Worker>();
+    private Thread writer;
+    private volatile Throwable failure;
+    private volatile long rowCount = 0;
+    private long bytesWritten = 0;
+    private long rejectBytesWritten = 0;
+    private long previousRows = 0;
+    private long previousRejected = 0;
+    private final long started = System.currentTimeMillis();
+    private long lastProgress = started;
+    // round robin shard of the first row of the next segment, only touched by the submitting thread
+    private int nextShard = 0;
+    private LoaderMetrics metrics;
+    private RowValidator validator;
+    private OutputStream rejects;
+    private double maxErrorRate = 1;
+    private long rejectedCount = 0;
+
+    public ConversionEngine(TransformationFactory transformations, RowSchema schema, String delimiter, Charset charset, int threads, OutputStream out)
+    {
+        this(transformations, schema, delimiter, charset, ownWorkers(threads), false, threads, out, null, null);
+    }
+
+    /**
+     * @param shards             files to spread the rows over
+     * @param distributionColumn column to hash to pick the shard of a row, null to deal the rows round robin
+     */
+    public ConversionEngine(TransformationFactory transformations, RowSchema schema, String delimiter, Charset charset, int threads, ShardedOutput shards, String distributionColumn)
+    {
+        this(transformations, schema, delimiter, charset, ownWorkers(threads), false, threads, null, shards, distributionColumn);
+    }
+
+    /**
+     * Convert on a pool shared with other engines, e.g. by the jobs of a batch. The pool is not shut down by the engine.
+     *
+     * @param workers            shared pool
+     * @param threads            size of the pool
+     * @param out                csv output, or null for sharded output
+     * @param shards             sharded output, or null
+     * @param distributionColumn column picking the shard of a row, null for round robin
+     */
+    public ConversionEngine(TransformationFactory transformations, RowSchema schema, String delimiter, Charset charset, ExecutorService workers, int threads,
+                            OutputStream out, ShardedOutput shards, String distributionColumn)
+    {
+        this(transformations, schema, delimiter, charset, workers, true, threads, out, shards, distributionColumn);
+    }
+
+    private ConversionEngine(TransformationFactory transformations, RowSchema schema, String delimiter, Charset charset, ExecutorService workers,
+                             boolean sharedWorkers, int threads, OutputStream out, ShardedOutput shards, String distributionColumn)
+    {
+        this.transformations = transformations;
+        this.schema = schema;
+        this.delimiter = delimiter;
+        this.charset = charset;
+        this.out = out;
+        this.shards = shards;
+        this.shardCount = shards == null ? 1 : shards.getShardCount();
+        if (distributionColumn == null) {
+            this.distributionSlot = -1;
+        }
+        else {
+            this.distributionSlot = schema.slotOf(distributionColumn);
+            if (distributionSlot < 0) {
+                if (workers != null && !sharedWorkers) {
+                    workers.shutdownNow();
+                }
+                throw new IllegalArgumentException("Distribution column " + distributionColumn + " is not in the schema");
+            }
+        }
+
+        this.workers = workers;
+        this.sharedWorkers = sharedWorkers;
+        // enough to keep every worker busy while the head of the queue is being written
+        int capacity = workers == null ? 0 : threads * 2;
+        this.queue = workers == null ? null : new ArrayBlockingQueue<Pending>(capacity);
+        this.stats = new PipelineStats(capacity);
+    }
+
+    private static ExecutorService ownWorkers(int threads)
+    {
+        // a single thread converts on the caller's thread
+        return threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    }
+
+    /**
+     * Convert a source of rows. Blocks while too many segments are waiting to be written.
+     *
+     * @param source rows to convert, read on a worker thread
+     * @throws IOException if the source, or a previously submitted one, could not be converted or written
+     */
+    public void submit(RowSource source) throws IOException
+    {
+        submit(source, null);
+    }
+
+    /**
+     * Convert a source of rows. Blocks while too many segments are waiting to be written.
+     *
+     * @param source rows to convert, read on a worker thread
+     * @param file   input file of the rows, for the rejects file
+     * @throws IOException if the source, or a previously submitted one, could not be converted or written
+     */
+    public void submit(final RowSource source, final String file) throws IOException
+    {
+        // round robin starts each segment on the next shard: segments of a few rows, e.g. small input files, still spread evenly
+        final int firstShard = nextShard;
+        nextShard = (nextShard + 1) % shardCount;
+        if (workers == null) {
+            write(convert(source, file, firstShard));
+            return;
+        }
+
+        checkWriter();
+        sample();
+        Future<Segment> segment = workers.submit(new Callable<Segment>()
+        {
+            public Segment call() throws IOException
+            {
+                return convert(source, file, firstShard);
+            }
+        });
+        try {
+            enqueue(new Pending(segment, null));
+        }
+        catch (IOException e) {
+            segment.cancel(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Record a file in the journal once the rows of all the sources submitted so far are written and flushed
+     *
+     * @param file    input file whose rows were all submitted
+     * @param journal journal of the output
+     * @throws IOException if the journal, or a previously submitted source, could not be written
+     */
+    public void checkpoint(String file, CheckpointJournal journal) throws IOException
+    {
+        if (shards != null) {
+            throw new IllegalStateException("Sharded output cannot be checkpointed");
+        }
+
+        Checkpoint checkpoint = new Checkpoint(file, journal);
+        if (workers == null) {
+            write(checkpoint);
+        }
+        else {
+            enqueue(new Pending(null, checkpoint));
+        }
+    }
+
+    /**
+     * Write all outstanding batches and stop the workers. The output stream is not closed,
+     * sharded output is finished (files closed, manifest written).
+     *
+     * @throws IOException if an outstanding batch could not be converted or written
+     */
+    public void finish() throws IOException
+    {
+        try {
+            if (writer != null) {
+                enqueue(END);
+                join(writer);
+                writer = null;
+                checkWriter();
+                log.info("Pipeline: " + stats);
+            }
+            checkErrorRate(true);
+            if (rejects != null) {
+                rejects.close();
+                rejects = null;
+            }
+            if (shards == null) {
+                out.flush();
+            }
+            else {
+                shards.finish();
+            }
+        }
+        finally {
+            close();
+        }
+    }
+
+    /**
+     * Stop the workers, discarding the outstanding batches
+     */
+    public void close()
+    {
+        if (writer != null) {
+            writer.interrupt();
+            try {
+                join(writer);
+            }
+            catch (IOException e) {
+                log.warn("Writer did not stop: " + e.getLocalizedMessage());
+            }
+            writer = null;
+        }
+        if (queue != null) {
+            for (Pending pending : queue) {
+                if (pending.segment != null) {
+                    pending.segment.cancel(true);
+                }
+            }
+            queue.clear();
+        }
+        if (workers != null && !sharedWorkers) {
+            workers.shutdownNow();
+        }
+        if (shards != null) {
+            shards.close();
+        }
+        if (rejects != null) {
+            try {
+                rejects.close();
+            }
+            catch (IOException e) {
+                log.warn("Unable to close the rejects file: " + e.getLocalizedMessage());
+            }
+            rejects = null;
+        }
+    }
+
+    /**
+     * @param metrics export metrics to record the conversion and the writes in, set before the first submit
+     */
+    public void setMetrics(LoaderMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Validate the rows before converting them, set before the first submit
+     *
+     * @param validator    checks the values against the column types
+     * @param rejects      where to write the rejected rows, closed by the engine; null to count them only
+     * @param maxErrorRate share of rejected rows, between 0 and 1, over which the conversion fails
+     */
+    public void setValidation(RowValidator validator, OutputStream rejects, double maxErrorRate)
+    {
+        this.validator = validator;
+        this.rejects = rejects;
+        this.maxErrorRate = maxErrorRate;
+    }
+
+    /**
+     * Count the rows of the previous attempts of a resumed export in the error rate, set before the first submit
+     *
+     * @param rows     rows already written by the previous attempts
+     * @param rejected rows already rejected by the previous attempts
+     */
+    public void setPreviousCounts(long rows, long rejected)
+    {
+        this.previousRows = rows;
+        this.previousRejected = rejected;
+    }
+
+    /**
+     * @return rows rejected by the validation
+     */
+    public long getRejectedCount()
+    {
+        return rejectedCount;
+    }
+
+    public long getRowCount()
+    {
+        return rowCount;
+    }
+
+    /**
+     * @return occupancy of the queue between the stages and time spent waiting by each of them
+     */
+    public PipelineStats getStats()
+    {
+        return stats;
+    }
+
+    private void enqueue(Pending pending) throws IOException
+    {
+        if (writer == null) {
+            startWriter();
+        }
+        if (queue.offer(pending)) {
+            return;
+        }
+
+        // back pressure: wait for the writer to catch up, unless it gave up
+        long start = System.nanoTime();
+        try {
+            while (!queue.offer(pending, FAILURE_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                checkWriter();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the writer");
+        }
+        finally {
+            stats.parserBlocked(System.nanoTime() - start);
+        }
+    }
+
+    private void sample()
+    {
+        int converting = 0;
+        int converted = 0;
+        for (Pending pending : queue) {
+            if (pending.segment != null) {
+                if (pending.segment.isDone()) {
+                    converted++;
+                }
+                else {
+                    converting++;
+                }
+            }
+        }
+        stats.sample(converting, converted);
+    }
+
+    private void checkWriter() throws IOException
+    {
+        Throwable writeFailure = failure;
+        if (writeFailure != null) {
+            Throwables.propagateIfPossible(writeFailure, IOException.class);
+            throw new IOException("Writer failed: " + writeFailure, writeFailure);
+        }
+    }
+
+    private void startWriter()
+    {
+        writer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try {
+                    while (true) {
+                        long start = System.nanoTime();
+                        Pending next = queue.take();
+                        stats.writerIdle(System.nanoTime() - start);
+                        if (next == END) {
+                            return;
+                        }
+                        if (next.checkpoint != null) {
+                            write(next.checkpoint);
+                            continue;
+                        }
+
+                        start = System.nanoTime();
+                        Segment segment = next.segment.get();
+                        stats.writerWaiting(System.nanoTime() - start);
+                        write(segment);
+                    }
+                }
+                catch (InterruptedException e) {
+                    // closed
+                }
+                catch (ExecutionException e) {
+                    failure = new IOException("Conversion failed: " + e.getCause(), e.getCause());
+                }
+                catch (Throwable e) {
+                    failure = e;
+                }
+            }
+        }, "conversion-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static void join(Thread thread) throws IOException
+    {
+        try {
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the writer");
+        }
+    }
+
+    private void write(Checkpoint checkpoint) throws IOException
+    {
+        out.flush();
+        if (rejects != null) {
+            rejects.flush();
+        }
+        checkpoint.journal.completed(checkpoint.file, rowCount, bytesWritten, rejectedCount, rejectBytesWritten);
+    }
+
+    private void write(Segment segment) throws IOException
+    {
+        long start = System.nanoTime();
+        long bytes = 0;
+        if (shards == null) {
+            segment.csv[0].writeTo(out);
+            bytes = segment.csv[0].size();
+            bytesWritten += bytes;
+        }
+        else {
+            for (int i = 0; i < shardCount; i++) {
+                shards.write(i, segment.csv[i], segment.shardRows[i]);
+                bytes += segment.csv[i].size();
+            }
+        }
+        rowCount += segment.rows;
+        if (segment.rejected > 0) {
+            if (rejects != null) {
+                segment.rejects.writeTo(rejects);
+                rejectBytesWritten += segment.rejects.size();
+            }
+            rejectedCount += segment.rejected;
+        }
+        if (metrics != null) {
+            metrics.getWrite().record(System.nanoTime() - start);
+            metrics.written(segment.rows, bytes);
+            metrics.rejected(segment.rejected);
+        }
+        if (segment.rejected > 0) {
+            checkErrorRate(false);
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastProgress >= PROGRESS_INTERVAL) {
+            lastProgress = now;
+            log.info("done " + rowCount + " (" + rowCount * 1000 / Math.max(1, now - started) + " rows/s)");
+        }
+    }
+
+    private void checkErrorRate(boolean complete) throws IOException
+    {
+        long rejected = previousRejected + rejectedCount;
+        long total = previousRows + rowCount + rejected;
+        if ((complete || total >= MIN_ROWS_FOR_ERROR_RATE) && rejected > maxErrorRate * total) {
+            throw new IOException("Rejected " + rejected + " of " + total + " rows, over the error rate threshold of " + maxErrorRate);
+        }
+    }
+
+    private Segment convert(RowSource source, final String file, final int firstShard) throws IOException
+    {
+        Worker worker = workerState.get();
+        if (worker == null) {
+            worker = new Worker(transformations.create(schema), new Row(schema));
+            workerState.set(worker);
+        }
+
+        final RowTransformation transformation = worker.transformation;
+        final Row row = worker.row;
+        final Segment segment = new Segment(charset, shardCount);
+        long start = System.nanoTime();
+        source.read(new RowConsumer()
+        {
+            public void consume(String[] values) throws IOException
+            {
+                if (validator != null) {
+                    int invalid = validator.validate(values, metrics);
+                    if (invalid >= 0) {
+                        segment.reject(validator.reject(values, invalid, file));
+                        return;
+                    }
+                }
+                row.wrap(values);
+                int shard = shardOf(values, firstShard + segment.rows);
+                transformation.transformRow(row, segment.csv[shard], delimiter);
+                segment.shardRows[shard]++;
+                segment.rows++;
+            }
+        });
+        if (metrics != null) {
+            metrics.getConvert().record(System.nanoTime() - start);
+        }
+        return segment;
+    }
+
+    private int shardOf(String[] values, int roundRobin)
+    {
+        if (shardCount == 1) {
+            return 0;
+        }
+        if (distributionSlot < 0) {
+            return roundRobin % shardCount;
+        }
+        String key = values[distributionSlot];
+        if (key == null) {
+            return 0;
+        }
+        return (int) ((fnv1a(key) & 0xffffffffL) % shardCount);
+    }
+
+    /**
+     * 32 bit FNV-1a of the UTF-16LE bytes of the value, stable across JVMs and runs
+     */
+    static int fnv1a(String value)
+    {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * 0x01000193;
+            hash = (hash ^ (c >>> 8)) * 0x01000193;
+        }
+        return hash;
+    }
+
+    private static class Checkpoint
+    {
+        private final String file;
+        private final CheckpointJournal journal;
+
+        private Checkpoint(String file, CheckpointJournal journal)
+        {
+            this.file = file;
+            this.journal = journal;
+        }
+    }
+
+    private static class Pending
+    {
+        private final Future<Segment> segment;
+        private final Checkpoint checkpoint;
+
+        private Pending(Future<Segment> segment, Checkpoint checkpoint)
+        {
+            this.segment = segment;
+            this.checkpoint = checkpoint;
+        }
+    }
+
+    private static class Worker
+    {
+        private final RowTransformation transformation;
+        private final Row row;
+
+        private Worker(RowTransformation transformation, Row row)
+        {
+            this.transformation = transformation;
+            this.row = row;
+        }
+    }
+
+    private static class Segment
+    {
+        private final RowBuffer[] csv;
+        private final int[] shardRows;
+        private int rows = 0;
+        private RowBuffer rejects;
+        private int rejected = 0;
+
+        private Segment(Charset charset, int shards)
+        {
+            this.csv = new RowBuffer[shards];
+            this.shardRows = new int[shards];
+            for (int i = 0; i < shards; i++) {
+                csv[i] = new RowBuffer(charset, 64 * 1024 / shards);
+            }
+        }
+
+        private void reject(String line)
+        {
+            if (rejects == null) {
+                rejects = new RowBuffer(UTF8, 1024);
+            }
+            rejects.append(line);
+            rejected++;
+        }
+    }
+}
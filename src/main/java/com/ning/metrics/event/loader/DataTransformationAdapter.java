@@ -0,0 +1,77 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import com.ning.metrics.goodwill.access.GoodwillSchemaField;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+  Runs a transformation written against the original transformRow(List, HashMap, String) signature
+  as a RowTransformation: the row is copied into a reused map and the returned String is encoded
+  in the output charset. DataTransformation implementations are called directly; classes that only
+  have a transformRow method of that signature (what the loader used to look up) through a Method resolved once.
+*/
+public class DataTransformationAdapter implements RowTransformation
+{
+    private final Object transformation;
+    private final Method transformRow;
+    private final List<GoodwillSchemaField> columns;
+    private final HashMap columnValues = new HashMap();
+
+    public DataTransformationAdapter(DataTransformation transformation, RowSchema schema)
+    {
+        this(transformation, null, schema);
+    }
+
+    DataTransformationAdapter(Object transformation, Method transformRow, RowSchema schema)
+    {
+        if (schema.getFields() == null) {
+            throw new IllegalArgumentException(transformation.getClass().getName() + " needs the Goodwill fields of the schema");
+        }
+        this.transformation = transformation;
+        this.transformRow = transformRow;
+        this.columns = schema.getFields();
+    }
+
+    public void transformRow(Row row, RowBuffer output, String delimiter) throws IOException
+    {
+        for (int slot = 0; slot < row.size(); slot++) {
+            columnValues.put(row.getSchema().getName(slot), row.get(slot));
+        }
+
+        if (transformRow == null) {
+            output.append(((DataTransformation) transformation).transformRow(columns, columnValues, delimiter));
+            return;
+        }
+
+        try {
+            output.append(transformRow.invoke(transformation, columns, columnValues, delimiter).toString());
+        }
+        catch (InvocationTargetException e) {
+            throw new IOException("Transformation failed: " + e.getCause(), e.getCause());
+        }
+        catch (IllegalAccessException e) {
+            throw new IOException("Unable to call " + transformation.getClass().getName(), e);
+        }
+    }
+}
@@ -28,101 +28,80 @@ import org.joda.time.format.DateTimeFormatter;
 
 public class DataTransformationBase implements DataTransformation
 {
-    private final static Pattern DOT_SPLIT = Pattern.compile("\\.");
     private final static Pattern IP_ADDRESS = Pattern.compile("\\d+\\.\\d+\\.\\d+\\.\\d+");
     protected static final Charset LATIN1 = Charset.forName("ISO-8859-1");
     private static final DateTimeFormatter dateFormatter = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss.SSS");
 
     public String transformRow(List<GoodwillSchemaField> columnTypes, HashMap columnValues, String delimiter)
     {
-        StringBuffer outputRow = new StringBuffer();
+        StringBuilder outputRow = new StringBuilder(columnTypes.size() * 16);
         for (GoodwillSchemaField column : columnTypes) {
-            try {
-                String colValue = columnValues.get(column.getName())==null?"":columnValues.get(column.getName()).toString();
-                log.debug(column.getName().toString());
-                if (column.getType().toString().equals("STRING")) {
-                    outputRow.append("\"").append(colValue.replace("\"", "").replace("\'", "").replace("\\", "\\\\")).append("\"").append(delimiter);
+            Object value = columnValues.get(column.getName());
+            String colValue = value == null ? "" : value.toString();
+            String type = column.getType().toString();
+            if (type.equals("STRING")) {
+                outputRow.append('"').append(escape(colValue)).append('"');
+            }
+            else if (type.equals("DATE")) {
+                // the opening quote stays even if the value is not a date
+                outputRow.append('"');
+                try {
+                    outputRow.append(dateFormatter.print(Long.parseLong(colValue))).append('"');
                 }
-                else {
-                    if (column.getType().toString().equals("DATE")) {
-                        outputRow.append("\"").append(dateFormatter.print(Long.valueOf(colValue))).append("\"").append(delimiter);
-                    }
-                    else {
-                        outputRow.append(colValue).append(delimiter);
+                catch (IllegalArgumentException e) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Invalid date for " + column.getName() + ": " + colValue);
                     }
                 }
-                log.debug(outputRow.toString());
             }
-            catch (Exception e) {
-                outputRow.append(delimiter);
-                log.debug("Missing field" + column.getName().toString());
+            else {
+                outputRow.append(colValue);
             }
+            outputRow.append(delimiter);
         }
         return outputRow.append("\n").toString();
     }
 
-
-     /**
-     * Convert an IP address from a byte array to a decimal representation
-     * You can use this method if you want to convert IP addresses to int for optimal netezza storage
-     * @param bytes ip as bytes (dot decimal form or decimal)
-     * @return decimal value of the ip address
+    /**
+     * Escape a STRING value: double and single quotes are dropped and backslashes doubled
+     *
+     * @param value raw value
+     * @return escaped value, the value itself if there is nothing to escape
      */
-    protected static int ipToInt(String ipStr)
+    protected static String escape(String value)
     {
-        // No info? Convert to 0
-        if (ipStr.length() == 0) {
-            return 0;
+        int i = 0;
+        while (i < value.length() && value.charAt(i) != '"' && value.charAt(i) != '\'' && value.charAt(i) != '\\') {
+            i++;
         }
-        // Is is a dot decimal representation?
-        if (ipStr.indexOf('.') > 0) {
-            String[] parts = DOT_SPLIT.split(ipStr);
-            // valid ip address must have 4 octets
-            if (parts.length == 4) {
-                int ip = 0;
-                try {
-                    for (int n = 0; n < 4; n++) {
-                        int part = Integer.parseInt(parts[n]);
-                        ip <<= 8;
-                        ip += part;
-                    }
-                    return ip + (1 << 31);
-                }
-                catch (NumberFormatException e) {
-                    throw new IllegalArgumentException("Invalid IP address '" + ipStr + "': " + e.getLocalizedMessage());
-                }
+        if (i == value.length()) {
+            return value;
+        }
+
+        StringBuilder escaped = new StringBuilder(value.length() + 8).append(value, 0, i);
+        for (; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                escaped.append("\\\\");
+            }
+            else if (c != '"' && c != '\'') {
+                escaped.append(c);
             }
         }
-        // nope, straight 32-bit number:
-        return ipStringToInt32(ipStr);
+        return escaped.toString();
     }
 
-    /**
-     * Helper method used to convert a String that represents 32-bit integer
-     * (which may signed or unsigned) into Java 32-bit signed int; but
-     * verifying that there is no overflow
+
+     /**
+     * Convert an IP address from a byte array to a decimal representation
      * You can use this method if you want to convert IP addresses to int for optimal netezza storage
-     * @param ipStr String that represent 32-bit value
-     * @return 32-bit signed int parsed from the String, if valid (throws
-     *         {@link IllegalArgumentException} if invalid)
+     * @param bytes ip as bytes (dot decimal form or decimal)
+     * @return decimal value of the ip address
      */
-    private static int ipStringToInt32(String ipStr)
+    protected static int ipToInt(String ipStr)
     {
-        try {
-            if (ipStr.startsWith("-")) { // negative; must be within 32-bit int range
-                return Integer.parseInt(ipStr);
-            }
-            // positive; need to parse as Long
-            long l = Long.parseLong(ipStr);
-            // but must not overflow
-            if (l > 0x0FFFFFFFFl) { // throw, will be caught, rethrown below:
-                throw new NumberFormatException("Overflow, value " + l + " outside of uint32 value range");
-            }
-            return (int) l+ (1 << 31);
-        }
-        catch (NumberFormatException e) {
-            throw new IllegalArgumentException("Invalid IP address '" + ipStr + "': " + e.getLocalizedMessage());
-        }
+        // single pass, no regex, no substrings
+        return IpAddresses.parse(ipStr);
     }
 
 }
@@ -19,19 +19,29 @@
 package com.ning.metrics.event.loader;
 
 
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
 import com.ning.metrics.action.access.ActionAccessor;
 import com.ning.metrics.goodwill.access.GoodwillSchemaField;
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Method;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.log4j.Logger;
-import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonToken;
 
@@ -40,6 +50,13 @@ public class EventLoader
 {
     private static final Logger log = Logger.getLogger(EventLoader.class);
     private static final String QUERY_PARAM = "/rest/1.0/json?path=";
+    private static final int PIPE_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int BATCH_SIZE = 1000;
+    private static final long PIPE_OPEN_TIMEOUT = 10 * 60 * 1000L;
+    // fields of an entry of the action-core listing, written in this order: path, mtime (ms), size, replication, isDir, content
+    private static final String ENTRY_PATH = "path";
+    private static final String ENTRY_MTIME = "mtime";
+    private static final String ENTRY_SIZE = "size";
     private final String eventType;
     private final String path;
     private final String host;
@@ -48,10 +65,47 @@ public class EventLoader
     private final String DELIMITER = "|";
     private final String outputFile;
     protected final String goodwill;
+    protected final SchemaCache schemaCache;
     protected final String recursive="&recursive=true";
     protected final boolean skipJson;
+    protected final boolean keepJson;
+    protected final boolean smile;
+    protected final boolean checkpoint;
+    protected final boolean incremental;
+    protected final int conversionThreads;
+    protected final EventLoaderConfiguration.InputSource inputSource;
+    protected final long splitSize;
+    protected final Charset charset;
+    protected final EventLoaderConfiguration.OutputFormat outputFormat;
+    protected final String loadCommand;
+    protected final int shards;
+    protected final String distributionColumn;
+    protected final EventLoaderConfiguration.Compression compression;
+    protected final int compressionThreads;
+    protected final String transformation;
+    protected final String geoIpDb;
+    protected final String geoIpColumn;
+    protected final String browscapIni;
+    protected final String userAgentColumn;
+    protected final List<String> userAgentProperties;
+    protected final ExecutorService workers;
+    protected final String summaryFile;
+    protected final boolean validation;
+    protected final String rejectsFile;
+    protected final double maxErrorRate;
+    private final LoaderMetrics metrics;
+    private UserAgentParser userAgentParser;
 
     public EventLoader(EventLoaderConfiguration configuration)
+    {
+        this(configuration, null, null);
+    }
+
+    /**
+     * @param schemaCache schema cache shared with other loaders, null to create one from the configuration
+     * @param workers     conversion pool shared with other loaders, of conversionThreads threads. Null for a pool per export.
+     */
+    public EventLoader(EventLoaderConfiguration configuration, SchemaCache schemaCache, ExecutorService workers)
     {
         this.eventType = configuration.getEventType();
         this.path = configuration.getPath();
@@ -60,51 +114,198 @@ public class EventLoader
         this.getRawFormat = configuration.getRaw();
         this.outputFile = configuration.getOutputFile();
         this.goodwill = configuration.getGoodwill();
+        this.schemaCache = schemaCache == null ? createSchemaCache(configuration) : schemaCache;
+        this.workers = workers;
         this.skipJson = configuration.getSkipDownloadFlag();
+        this.keepJson = configuration.getKeepJsonFlag();
+        this.smile = configuration.getSmile();
+        this.checkpoint = configuration.getCheckpoint();
+        this.incremental = configuration.getIncremental();
+        this.conversionThreads = configuration.getConversionThreads();
+        this.inputSource = configuration.getInputSource();
+        this.splitSize = configuration.getSplitSize();
+        this.charset = configuration.getCharset();
+        this.outputFormat = configuration.getOutputFormat();
+        this.loadCommand = configuration.getLoadCommand();
+        this.shards = configuration.getShards();
+        this.distributionColumn = configuration.getDistributionColumn();
+        this.compression = configuration.getCompression();
+        this.compressionThreads = configuration.getCompressionThreads();
+        this.transformation = configuration.getTransformation();
+        this.geoIpDb = configuration.getGeoIpDb();
+        this.geoIpColumn = configuration.getGeoIpColumn();
+        this.browscapIni = configuration.getBrowsecapIni();
+        this.userAgentColumn = configuration.getUserAgentColumn();
+        this.userAgentProperties = configuration.getUserAgentProperties();
+        this.summaryFile = configuration.getSummaryFile();
+        this.validation = configuration.getValidation();
+        this.rejectsFile = configuration.getRejectsFile();
+        this.maxErrorRate = configuration.getMaxErrorRate();
+        this.metrics = new LoaderMetrics(eventType, path);
         if (System.getProperty("default") == null) {
             System.setProperty("default", "com.ning.metrics.event.loader.DataTransformationBase");
         }
     }
 
-    private void fetchEventData() throws Exception
+    public static SchemaCache createSchemaCache(EventLoaderConfiguration configuration)
+    {
+        File schemaCacheDir = configuration.getSchemaCacheDir() == null ? null : new File(configuration.getSchemaCacheDir());
+        return new SchemaCache(configuration.getGoodwill(), configuration.getGoodwillPort(), schemaCacheDir, configuration.getSchemaTtl());
+    }
+
+    /**
+     * Run the export described by the configuration
+     *
+     * @throws Exception if the export failed, its output is incomplete
+     */
+    public void fetchEventData() throws Exception
+    {
+        metrics.start();
+        try {
+            fetch();
+        }
+        catch (Exception e) {
+            report(false);
+            throw e;
+        }
+    }
+
+    /**
+     * @return rows, bytes and stage latencies of the export, live while it runs
+     */
+    public LoaderMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    private void fetch() throws Exception
     {
          //get the goodwill schema for the event
-        SchemaLookup schemaLookup = new SchemaLookup(eventType, goodwill, null);
-        List<GoodwillSchemaField> goodwillSchemaFields = schemaLookup.getFields();
-        ArrayList<String> columnNames = schemaLookup.getColumns();
+        SchemaLookup schemaLookup = new SchemaLookup(eventType, schemaCache, null);
+        RowSchema schema = schemaLookup.getRowSchema();
 
-        // JsonParser does not support partial feeding async chunks, need to download files
-        File jsonFile = new File(outputFile);
-        if (!skipJson)
-        {
-           final FileOutputStream stream = new FileOutputStream(jsonFile);
-           ActionAccessor actionAccessor = new ActionAccessor(host, port);
-           actionAccessor.getPath(path, recursive.equals("true"), getRawFormat, jsonFile);
-           stream.close();
+        if (inputSource == EventLoaderConfiguration.InputSource.HDFS) {
+            // read the event files directly, one reader per split, no json rendering by action-core
+            HdfsEventSource source = new HdfsEventSource(path, schema, splitSize);
+            source.setMetrics(metrics);
+            WatermarkStore watermarks = openWatermarks();
+            if (watermarks == null) {
+                convertFiles(source.getSplitsByFile(), schema);
+                return;
+            }
+            List<FileStatus> files = new ArrayList<FileStatus>();
+            for (FileStatus file : source.listFiles()) {
+                String name = file.getPath().toString();
+                String size = String.valueOf(file.getLen());
+                String modificationTime = String.valueOf(file.getModificationTime());
+                if (!watermarks.isLoaded(name, size, modificationTime)) {
+                    files.add(file);
+                    watermarks.loaded(name, size, modificationTime);
+                }
+            }
+            convertFiles(source.getSplitsByFile(files), schema);
+            watermarks.commit();
+            return;
+        }
+
+        // json text or Smile, whichever the file or the download holds
+        File jsonFile = new File(outputFile + CompressedStreams.extension(compression));
+        if (skipJson) {
+            // re-run against the json file kept by a previous --keepjson export, or its Smile conversion
+            File input = smile ? convertToSmile(jsonFile) : jsonFile;
+            getCSVFormat(SmileStreams.createParser(CompressedStreams.decompress(new MeteredInputStream(openJsonFile(input), metrics, null), compression)), schema);
+        }
+        else if (keepJson && (compression != EventLoaderConfiguration.Compression.NONE || smile)) {
+            // ActionAccessor can only write plain files, compress or encode the streamed rendering instead
+            String query = QUERY_PARAM + URLEncoder.encode(path, "UTF-8") + recursive + "&raw=" + getRawFormat;
+            ActionCoreStream download = new ActionCoreStream(host, port, query, PIPE_BUFFER_SIZE);
+            OutputStream json = CompressedStreams.compress(new FileOutputStream(jsonFile), compression, compressionThreads);
+            try {
+                InputStream body = new MeteredInputStream(download.open(), metrics, metrics.getDownload());
+                if (smile) {
+                    SmileStreams.transcode(SmileStreams.createParser(body), json);
+                }
+                else {
+                    ByteStreams.copy(body, json);
+                }
+                download.finish();
+            }
+            finally {
+                json.close();
+                download.close();
+            }
+            getCSVFormat(SmileStreams.createParser(CompressedStreams.decompress(openJsonFile(jsonFile), compression)), schema);
+        }
+        else if (keepJson) {
+            // debugging: download the whole json rendering to disk first, then convert it
+            final FileOutputStream stream = new FileOutputStream(jsonFile);
+            long start = System.nanoTime();
+            ActionAccessor actionAccessor = new ActionAccessor(host, port);
+            actionAccessor.getPath(path, true, getRawFormat, jsonFile);
+            stream.close();
+            metrics.getDownload().record(System.nanoTime() - start);
+            metrics.read(0, jsonFile.length());
+            getCSVFormat(SmileStreams.createParser(openJsonFile(jsonFile)), schema);
+        }
+        else {
+            // feed the response body to the parser as it arrives, nothing is written to disk but the csv
+            String query = QUERY_PARAM + URLEncoder.encode(path, "UTF-8") + recursive + "&raw=" + getRawFormat;
+            ActionCoreStream download = new ActionCoreStream(host, port, query, PIPE_BUFFER_SIZE);
+            try {
+                getCSVFormat(SmileStreams.createParser(new MeteredInputStream(download.open(), metrics, metrics.getDownload())), schema);
+                download.finish();
+            }
+            finally {
+                download.close();
+            }
         }
-        JsonFactory jsonFactory = new JsonFactory();
-        JsonParser jsonParser = jsonFactory.createJsonParser(jsonFile);
-        getCSVFormat(jsonParser, columnNames, goodwillSchemaFields);
     }
 
     public void getCSVFormat(JsonParser jsonParser, ArrayList<String> columnNames, List<GoodwillSchemaField> goodwillSchemaFields) throws IOException
     {
-        int colNo;
-        int batchCnt = 0;
-        int i=0;
-        BufferedOutputStream fs = new BufferedOutputStream(new FileOutputStream(outputFile + ".csv"));
-        LinkedHashMap columnValues = new LinkedHashMap();
-        String dataTransformationEvent = System.getProperty(eventType) == null ? System.getProperty("default") : System.getProperty(eventType);
+        getCSVFormat(jsonParser, new RowSchema(goodwillSchemaFields));
+    }
+
+    public void getCSVFormat(JsonParser jsonParser, RowSchema schema) throws IOException
+    {
+        String file = null;
+        String fileSize = null;
+        String fileTime = null;
+        CheckpointJournal journal = openJournal();
+        WatermarkStore watermarks = openWatermarks();
+        // sharded output opens its own files
+        OutputStream output = shards > 1 ? null : openOutput(journal != null);
+        BufferedOutputStream fs = output == null ? null : new BufferedOutputStream(output);
+        RowAssembler assembler = new RowAssembler(schema);
+        List<String[]> batch = new ArrayList<String[]>(BATCH_SIZE);
+        ConversionEngine engine = null;
+        metrics.start();
         try {
-            Class DataTransformation = Class.forName(dataTransformationEvent);
-            Class[] argTypes = new Class[]{List.class, HashMap.class, String.class};
-            Object dataTransformation = DataTransformation.newInstance();
-            Method validateMethod = DataTransformation.getMethod("transformRow", argTypes);
+            engine = createEngine(schema, fs, journal);
+            long parseStart = System.nanoTime();
             jsonParser.nextToken();
             //this is the end of the entries object
             while (!(jsonParser.nextToken() == JsonToken.END_ARRAY && jsonParser.nextToken() == JsonToken.END_OBJECT))
 
             {
+                // remember which file the content belongs to, for the checkpoints, the watermarks and the rejects
+                if ((journal != null || watermarks != null || validation) && jsonParser.getCurrentToken() == JsonToken.FIELD_NAME) {
+                    String field = jsonParser.getText();
+                    if (field.equals(ENTRY_PATH)) {
+                        jsonParser.nextToken();
+                        file = jsonParser.getText();
+                        fileSize = null;
+                        fileTime = null;
+                    }
+                    else if (field.equals(ENTRY_SIZE)) {
+                        jsonParser.nextToken();
+                        fileSize = jsonParser.getText();
+                    }
+                    else if (field.equals(ENTRY_MTIME)) {
+                        jsonParser.nextToken();
+                        fileTime = jsonParser.getText();
+                    }
+                }
                 //check if the isDir is true in which case the content is empty
                 if (jsonParser.getText().equals("isDir")) {
                     jsonParser.nextToken();
@@ -114,47 +315,369 @@ public class EventLoader
                         }
                     }
                 }
+                // loaded by a previous run, or written by a previous attempt of this one
+                if (jsonParser.getText().equals("content") && file != null) {
+                    boolean loaded = watermarks != null && watermarks.isLoaded(file, fileSize, fileTime);
+                    boolean written = !loaded && journal != null && journal.isCompleted(file);
+                    if (written && watermarks != null) {
+                        watermarks.loaded(file, fileSize, fileTime);
+                    }
+                    if (loaded || written) {
+                        jsonParser.nextToken();
+                        jsonParser.skipChildren();
+                        file = null;
+                        continue;
+                    }
+                }
                 //if in a valid content tag then parse each tag and run transformations
                 if (jsonParser.getText().equals("content")) {
-                    //go with this content tag till you hit the end of array
-                    while (!(jsonParser.nextToken() == JsonToken.END_ARRAY)) {
-                        if (columnNames.contains(jsonParser.getText())) {
-                            colNo = columnNames.indexOf(jsonParser.getText());
-                            jsonParser.nextToken();
-                            log.debug(columnNames.get(colNo) + "  " + jsonParser.getText());
-                            columnValues.put(columnNames.get(colNo), (jsonParser.getText()));
-                            i++;
-                            //if you hit the end of object, its the next row,  transform and write this one first
-                            if (i == columnNames.size()) {
-                                Object[] inputParams = {goodwillSchemaFields, columnValues, DELIMITER};
-                                fs.write(validateMethod.invoke(dataTransformation, inputParams).toString().getBytes());
-                                batchCnt++;
-                                if (batchCnt % 500 == 0) {
-                                    log.info("done " + batchCnt);
-                                    fs.flush();
-                                }
-                                columnValues.clear();
-                                i = 0;
+                    //go with this content tag till you hit the end of array, one row per event
+                    if (jsonParser.nextToken() == JsonToken.START_ARRAY) {
+                        JsonToken token;
+                        while ((token = jsonParser.nextToken()) != JsonToken.END_ARRAY) {
+                            if (token == null) {
+                                throw new IOException("Unexpected end of the json in the content of " + file);
+                            }
+                            if (token != JsonToken.START_OBJECT) {
+                                // not an event
+                                jsonParser.skipChildren();
+                                continue;
+                            }
+                            String[] columnValues = new String[schema.size()];
+                            assembler.read(jsonParser, columnValues);
+                            batch.add(columnValues);
+                            if (batch.size() == BATCH_SIZE) {
+                                parseStart = submit(engine, batch, file, parseStart, assembler);
+                                batch = new ArrayList<String[]>(BATCH_SIZE);
                             }
                         }
                     }
+                    else {
+                        jsonParser.skipChildren();
+                    }
+                    // end of this file, hand its last rows over so they don't wait for the next file
+                    if (!batch.isEmpty()) {
+                        parseStart = submit(engine, batch, file, parseStart, assembler);
+                        batch = new ArrayList<String[]>(BATCH_SIZE);
+                    }
+                    if (journal != null && file != null) {
+                        engine.checkpoint(file, journal);
+                    }
+                    if (watermarks != null && file != null) {
+                        watermarks.loaded(file, fileSize, fileTime);
+                    }
+                    file = null;
                 }
             }
 
-            fs.flush();
-            fs.close();
+            engine.finish();
+            log.info("done " + engine.getRowCount());
+            if (userAgentParser != null) {
+                log.info("User agent cache: " + userAgentParser.getCache());
+            }
+            if (fs != null) {
+                fs.flush();
+                fs.close();
+                fs = null;
+            }
+            if (journal != null) {
+                journal.finish();
+            }
+            if (watermarks != null) {
+                watermarks.commit();
+            }
+            report(true);
                    }
             catch (Throwable e) {
-            log.error("Unhandled Exception: " + e.getLocalizedMessage());
-            e.printStackTrace(System.err);
-            log.error("Export will fail!");
-            System.exit(99);
+            log.error("Export of " + eventType + " failed: " + e.getLocalizedMessage());
+            report(false);
+            abort(output);
+            Throwables.propagateIfPossible(e, IOException.class);
+            throw new IOException("Export of " + eventType + " failed", e);
+        }
+        finally {
+            if (engine != null) {
+                engine.close();
+            }
+            // only left open by a failure
+            Closeables.close(fs, true);
+            Closeables.close(journal, true);
+        }
+
+    }
+
+    public void convertSplits(List<RowSource> splits, RowSchema schema) throws IOException
+    {
+        Map<String, List<RowSource>> files = new LinkedHashMap<String, List<RowSource>>();
+        files.put(null, splits);
+        convertFiles(files, schema);
+    }
+
+    /**
+     * @param files splits by input file, a null file is not checkpointed
+     */
+    public void convertFiles(Map<String, List<RowSource>> files, RowSchema schema) throws IOException
+    {
+        CheckpointJournal journal = openJournal();
+        // sharded output opens its own files
+        OutputStream output = shards > 1 ? null : openOutput(journal != null);
+        BufferedOutputStream fs = output == null ? null : new BufferedOutputStream(output);
+        ConversionEngine engine = null;
+        metrics.start();
+        try {
+            engine = createEngine(schema, fs, journal);
+            for (Map.Entry<String, List<RowSource>> file : files.entrySet()) {
+                if (journal != null && file.getKey() != null && journal.isCompleted(file.getKey())) {
+                    continue;
+                }
+                for (RowSource split : file.getValue()) {
+                    engine.submit(split, file.getKey());
+                }
+                if (journal != null && file.getKey() != null) {
+                    engine.checkpoint(file.getKey(), journal);
+                }
+            }
+            engine.finish();
+            log.info("done " + engine.getRowCount());
+            if (userAgentParser != null) {
+                log.info("User agent cache: " + userAgentParser.getCache());
+            }
+            if (fs != null) {
+                fs.close();
+                fs = null;
+            }
+            if (journal != null) {
+                journal.finish();
+            }
+            report(true);
+        }
+        catch (Throwable e) {
+            log.error("Export of " + eventType + " failed: " + e.getLocalizedMessage());
+            report(false);
+            abort(output);
+            Throwables.propagateIfPossible(e, IOException.class);
+            throw new IOException("Export of " + eventType + " failed", e);
+        }
+        finally {
+            if (engine != null) {
+                engine.close();
+            }
+            // only left open by a failure
+            Closeables.close(fs, true);
+            Closeables.close(journal, true);
+        }
+    }
+
+    /**
+     * @param journal journal of a resumed export, null if not checkpointed
+     */
+    private ConversionEngine createEngine(RowSchema schema, OutputStream fs, CheckpointJournal journal) throws Exception
+    {
+        TransformationFactory transformations = transformation == null ? TransformationFactory.forEvent(eventType) : new TransformationFactory(transformation);
+        transformations.setMetrics(metrics);
+        if (geoIpDb != null) {
+            if (schema.slotOf(geoIpColumn) < 0) {
+                throw new IllegalArgumentException("IP column " + geoIpColumn + " is not in the schema of " + eventType);
+            }
+            transformations.setGeoIp(GeoIpDatabase.forFile(new File(geoIpDb)), geoIpColumn);
+        }
+        if (browscapIni != null) {
+            if (schema.slotOf(userAgentColumn) < 0) {
+                throw new IllegalArgumentException("User agent column " + userAgentColumn + " is not in the schema of " + eventType);
+            }
+            userAgentParser = UserAgentParser.forFile(new File(browscapIni), userAgentProperties);
+            transformations.setUserAgentParser(userAgentParser, userAgentColumn);
+        }
+        ConversionEngine engine;
+        if (fs != null) {
+            if (workers != null) {
+                engine = new ConversionEngine(transformations, schema, DELIMITER, charset, workers, conversionThreads, fs, null, null);
+            }
+            else {
+                engine = new ConversionEngine(transformations, schema, DELIMITER, charset, conversionThreads, fs);
+            }
+            return configure(engine, schema, journal);
+        }
+        if (outputFormat == EventLoaderConfiguration.OutputFormat.NZPIPE) {
+            throw new IllegalArgumentException("NZPIPE streams into a single pipe, it cannot be sharded");
+        }
+        ShardedOutput output = new ShardedOutput(outputFile, shards, compression, compressionThreads);
+        try {
+            if (workers != null) {
+                engine = new ConversionEngine(transformations, schema, DELIMITER, charset, workers, conversionThreads, null, output, distributionColumn);
+            }
+            else {
+                engine = new ConversionEngine(transformations, schema, DELIMITER, charset, conversionThreads, output, distributionColumn);
+            }
+            return configure(engine, schema, journal);
+        }
+        catch (IllegalArgumentException e) {
+            output.close();
+            throw e;
+        }
+    }
+
+    private ConversionEngine configure(ConversionEngine engine, RowSchema schema, CheckpointJournal journal) throws IOException
+    {
+        engine.setMetrics(metrics);
+        if (!validation) {
+            return engine;
+        }
+        boolean configured = false;
+        try {
+            RowValidator validator = new RowValidator(schema);
+            // a resumed export appends to the rejects of the previous attempts, truncated to the last checkpoint
+            OutputStream rejects = rejectsFile == null ? null : new BufferedOutputStream(new FileOutputStream(rejectsFile, journal != null));
+            engine.setValidation(validator, rejects, maxErrorRate);
+            if (journal != null) {
+                engine.setPreviousCounts(journal.getRows(), journal.getRejected());
+            }
+            configured = true;
+            return engine;
+        }
+        finally {
+            if (!configured) {
+                engine.close();
+            }
+        }
+    }
+
+    private InputStream openJsonFile(File jsonFile) throws IOException
+    {
+        return new BufferedInputStream(new FileInputStream(jsonFile), PIPE_BUFFER_SIZE);
+    }
+
+    /**
+     * Convert the json file kept by --keepjson to Smile, once: the conversion is read instead as long as
+     * it is newer than the json file
+     *
+     * @return file to read, the json file itself if it already is Smile
+     * @throws IOException if the json file cannot be read or the conversion written
+     */
+    private File convertToSmile(File jsonFile) throws IOException
+    {
+        File smileFile = new File(outputFile + ".smile" + CompressedStreams.extension(compression));
+        if (smileFile.exists() && smileFile.lastModified() >= jsonFile.lastModified()) {
+            return smileFile;
+        }
+
+        InputStream in = new BufferedInputStream(CompressedStreams.decompress(openJsonFile(jsonFile), compression), PIPE_BUFFER_SIZE);
+        File temporary = new File(smileFile.getPath() + ".tmp");
+        try {
+            if (SmileStreams.isSmile(in)) {
+                return jsonFile;
+            }
+            long start = System.nanoTime();
+            OutputStream out = CompressedStreams.compress(new FileOutputStream(temporary), compression, compressionThreads);
+            try {
+                SmileStreams.transcode(SmileStreams.createParser(in), out);
+            }
+            finally {
+                out.close();
+            }
+            if (!temporary.renameTo(smileFile)) {
+                throw new IOException("Unable to rename " + temporary + " to " + smileFile);
+            }
+            log.info(String.format("Converted %s (%d bytes) to %s (%d bytes) in %d ms", jsonFile, jsonFile.length(), smileFile,
+                smileFile.length(), (System.nanoTime() - start) / 1000000));
+            return smileFile;
         }
         finally {
-            fs.flush();
-            fs.close();
+            in.close();
+            if (temporary.exists() && !temporary.delete()) {
+                log.warn("Unable to delete " + temporary);
+            }
+        }
+    }
+
+    /**
+     * Hand a batch of parsed rows over to the conversion
+     *
+     * @param file       input file of the batch, null if not known
+     * @param parseStart when the parsing of the batch started
+     * @param assembler  assembler of the batch, its counts are moved to the metrics
+     * @return when the parsing of the next batch starts, the time blocked by the conversion excluded
+     */
+    private long submit(ConversionEngine engine, List<String[]> batch, String file, long parseStart, RowAssembler assembler) throws IOException
+    {
+        metrics.getParse().record(System.nanoTime() - parseStart);
+        metrics.read(batch.size(), 0);
+        metrics.skipped(assembler.getSkippedFields());
+        metrics.missing(assembler.getMissingFields());
+        assembler.resetCounts();
+        engine.submit(new ListRowSource(batch), file);
+        return System.nanoTime();
+    }
+
+    /**
+     * Stop the clock of the metrics, log them and append them to the --summary file
+     */
+    private void report(boolean exported)
+    {
+        if (!metrics.finish(exported)) {
+            return;
+        }
+        log.info((exported ? "Exported " : "Failed export of ") + eventType + ": " + metrics);
+        if (summaryFile != null) {
+            try {
+                metrics.appendTo(new File(summaryFile));
+            }
+            catch (IOException e) {
+                log.warn("Unable to append the metrics of " + eventType + " to " + summaryFile + ": " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * @return journal of the csv, with the csv truncated to its last checkpoint. Null without --checkpoint.
+     */
+    private CheckpointJournal openJournal() throws IOException
+    {
+        if (!checkpoint) {
+            return null;
+        }
+        if (outputFormat == EventLoaderConfiguration.OutputFormat.NZPIPE || shards > 1 || compression != EventLoaderConfiguration.Compression.NONE) {
+            throw new IllegalArgumentException("--checkpoint needs a single uncompressed csv file");
         }
+        String csv = outputFile + ".csv";
+        return new CheckpointJournal(new File(csv + ".journal"), new File(csv), rejectsFile == null ? null : new File(rejectsFile), eventType + "\t" + path);
+    }
 
+    /**
+     * @return input files loaded by the previous runs of the export, kept next to the output. Null without --incremental.
+     */
+    private WatermarkStore openWatermarks() throws IOException
+    {
+        if (!incremental) {
+            return null;
+        }
+        return new WatermarkStore(new File(outputFile + ".watermarks"), eventType + "\t" + path);
+    }
+
+    /**
+     * The csv file, or with NZPIPE a named pipe read by the load command as the rows are produced
+     *
+     * @param append resume a csv, truncated to its last checkpoint
+     */
+    private OutputStream openOutput(boolean append) throws IOException
+    {
+        if (outputFormat == EventLoaderConfiguration.OutputFormat.NZPIPE) {
+            // only a load command can be killed before it commits a failed export, an external reader would just see the end of the data
+            if (loadCommand == null || loadCommand.trim().length() == 0) {
+                throw new IllegalArgumentException("NZPIPE needs a --loadcommand reading the pipe");
+            }
+            return new NamedPipeOutput(new File(outputFile + ".pipe"), Arrays.asList(loadCommand.trim().split("\\s+")), PIPE_OPEN_TIMEOUT);
+        }
+        // nzload reads plain text, compressed files are for keeping or for feeding through zcat
+        return CompressedStreams.compress(new FileOutputStream(outputFile + ".csv" + CompressedStreams.extension(compression), append), compression, compressionThreads);
+    }
+
+    private void abort(OutputStream output)
+    {
+        // don't let the load command commit a partial export
+        if (output instanceof NamedPipeOutput) {
+            ((NamedPipeOutput) output).abort();
+        }
     }
 
     public static void main(String args[]) throws Exception
@@ -166,10 +689,28 @@ public class EventLoader
             System.exit(1);
             return;
         }
+        if (configuration.getMetricsPort() > 0) {
+            // the process exits once the exports are done, taking the server down
+            new MetricsServer(configuration.getMetricsPort()).start();
+        }
+        if (configuration.getBatchManifest() != null) {
+            log.info("Starting batch export of " + configuration.getBatchManifest());
+            int failures = new BatchLoader(configuration, args).run();
+            System.exit(failures == 0 ? 0 : 99);
+            return;
+        }
         log.info("Starting event export: configuration read; event type:'" + configuration.getEventType() + "'; output format: "
             + configuration.getOutputFormat());
         EventLoader eventLoader = new EventLoader(configuration);
-        eventLoader.fetchEventData();
+        try {
+            eventLoader.fetchEventData();
+        }
+        catch (Exception e) {
+            log.error("Unhandled Exception: " + e.getLocalizedMessage());
+            e.printStackTrace(System.err);
+            log.error("Export will fail!");
+            System.exit(99);
+        }
         System.exit(0);
     }
 }
\ No newline at end of file
@@ -18,6 +18,7 @@
 
 package com.ning.metrics.event.loader;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -43,19 +44,43 @@ public class EventLoaderConfiguration
         JSON, NZPIPE
     }
 
+    public static enum InputSource
+    {
+        ACTION_CORE, HDFS
+    }
+
+    public static enum Compression
+    {
+        NONE, GZIP, PARALLEL_GZIP, LZ4, SNAPPY
+    }
+
     private static final Options options = new Options();
 
     static {
         options.addOption("h", "help", false, "print this message");
         options.addOption("v", "verbose", false, "output progress to standard error");
         options.addOption("r", "raw", false, "get raw json?");
-        options.addOption("n", "skipjsondownload", false, "skip download of json file?");
+        options.addOption("n", "skipjsondownload", false, "skip download of json file? (reuses the file kept by --keepjson)");
+        options.addOption(null, "checkpoint", false, "journal the input files written to the csv, and resume a failed export from that journal");
+        options.addOption(null, "incremental", false, "only export the input files that are new or changed since the previous run with the same output file, recorded next to the output");
+        options.addOption("k", "keepjson", false, "download the json file to disk before converting it, instead of streaming it (debugging)");
+        options.addOption(null, "smile", false, "keep the json as Smile: --keepjson stores the download Smile-encoded, -n converts a kept json text file once and re-runs read the conversion");
         //noinspection AccessStaticViaInstance
         options.addOption(OptionBuilder.withLongOpt("useragent")
-            .withDescription("decode user agent into browser, version and platform")
+            .withDescription("decode the user agent of every row with a browscap.ini, into the --useragentproperties columns")
             .hasArg()
             .withArgName("browscap.ini")
             .create('u'));
+        options.addOption(OptionBuilder.withLongOpt("useragentcolumn")
+            .withDescription("with --useragent, column holding the user agent (default userAgent)")
+            .hasArg()
+            .withArgName("column")
+            .create());
+        options.addOption(OptionBuilder.withLongOpt("useragentproperties")
+            .withDescription("with --useragent, comma separated browscap properties to output (default Browser,MajorVer,MinorVer,Platform)")
+            .hasArg()
+            .withArgName("properties")
+            .create());
 
         options.addOption(OptionBuilder.withLongOpt("fields")
             .withDescription("select fields to output")
@@ -85,17 +110,138 @@ public class EventLoaderConfiguration
             .create("e"));
 
         options.addOption(OptionBuilder.withLongOpt("geoip")
-            .withDescription("add latitude, longitude and country code for every IP address")
+            .withDescription("add country code, latitude and longitude columns for the IP address of every row, from a csv of ranges: first ip,last ip,country,latitude,longitude")
             .hasArg()
             .withArgName("geo-ip-db")
             .create('g'));
 
+        options.addOption(OptionBuilder.withLongOpt("geoipcolumn")
+            .withDescription("with --geoip, column holding the IP address (default ip)")
+            .hasArg()
+            .withArgName("column")
+            .create());
+
         options.addOption(OptionBuilder.withLongOpt("goodwill")
             .withDescription("goodwill schema accessor")
             .hasArg()
             .withArgName("goodwill")
             .create('d'));
 
+        options.addOption(OptionBuilder.withLongOpt("transformation")
+            .withDescription("transformation class of the event (default: the class named by the system property of the event type, or \"default\")")
+            .hasArg()
+            .withArgName("class")
+            .create());
+
+        options.addOption(OptionBuilder.withLongOpt("batch")
+            .withDescription("json manifest of the jobs to run in this process: [{\"event\": ..., \"path\": ..., \"output\": ..., \"transformation\": ...}, ...], the other options apply to every job")
+            .hasArg()
+            .withArgName("manifest")
+            .create());
+
+        options.addOption(OptionBuilder.withLongOpt("goodwillport")
+            .withDescription("port of the goodwill schema accessor (default 8080)")
+            .hasArg()
+            .withArgName("port")
+            .create());
+
+        options.addOption(OptionBuilder.withLongOpt("schemacache")
+            .withDescription("directory keeping snapshots of the goodwill schemas between runs")
+            .hasArg()
+            .withArgName("dir")
+            .create());
+
+        options.addOption(OptionBuilder.withLongOpt("schemattl")
+            .withDescription("minutes after which a cached schema is fetched from goodwill again (default 60)")
+            .hasArg()
+            .withArgName("minutes")
+            .create());
+
+        options.addOption(OptionBuilder.withLongOpt("rejects")
+            .withDescription("check the values against the column types, and write the rows with an invalid value to this file instead of the csv, one json object per line with the reason and input file")
+            .hasArg()
+            .withArgName("file")
+            .create());
+
+        options.addOption(OptionBuilder.withLongOpt("maxerrorrate")
+            .withDescription("check the values against the column types, and fail the export if more than this share of the rows (e.g. 0.001) have an invalid value")
+            .hasArg()
+            .withArgName("rate")
+            .create());
+
+        options.addOption(OptionBuilder.withLongOpt("summary")
+            .withDescription("file to append the metrics of every export to once it is done (rows, bytes, stage latencies), one json object per line")
+            .hasArg()
+            .withArgName("file")
+            .create());
+
+        options.addOption(OptionBuilder.withLongOpt("metricsport")
+            .withDescription("serve the metrics of the running exports as json on http://127.0.0.1:<port>/metrics")
+            .hasArg()
+            .withArgName("port")
+            .create());
+
+        options.addOption(OptionBuilder.withLongOpt("threads")
+            .withDescription("number of threads converting rows to csv (default 1)")
+            .hasArg()
+            .withArgName("threads")
+            .create('t'));
+
+        options.addOption(OptionBuilder.withLongOpt("source")
+            .withDescription("where to read the events from " + Arrays.toString(InputSource.values()) + ", HDFS reads the files under the path directly"
+                + " (json lines, or SequenceFiles of Thrift, Smile or json events)")
+            .hasArg()
+            .withArgName("source")
+            .create());
+
+        options.addOption(OptionBuilder.withLongOpt("splitsize")
+            .withDescription("size in MB of the file splits read in parallel with --source HDFS (default 16)")
+            .hasArg()
+            .withArgName("MB")
+            .create());
+
+        options.addOption(OptionBuilder.withLongOpt("charset")
+            .withDescription("charset of the csv output, e.g. UTF-8 or ISO-8859-1 (default: platform charset)")
+            .hasArg()
+            .withArgName("charset")
+            .create());
+
+        options.addOption(OptionBuilder.withLongOpt("outputformat")
+            .withDescription("output format " + Arrays.toString(OutputFormat.values()) + ", NZPIPE streams the csv into a named pipe instead of a file")
+            .hasArg()
+            .withArgName("format")
+            .create());
+
+        options.addOption(OptionBuilder.withLongOpt("loadcommand")
+            .withDescription("with NZPIPE (required), command reading the pipe, started with the pipe path as last argument, e.g. \"nzload -db events -t visits -delim | -df\"")
+            .hasArg()
+            .withArgName("command")
+            .create());
+
+        options.addOption(OptionBuilder.withLongOpt("shards")
+            .withDescription("number of csv files to spread the rows over, for parallel nzload (default 1), listed with their row counts in a manifest")
+            .hasArg()
+            .withArgName("shards")
+            .create());
+
+        options.addOption(OptionBuilder.withLongOpt("distribute")
+            .withDescription("with --shards, column to hash to pick the shard of a row, e.g. the distribution key of the table (default: round robin)")
+            .hasArg()
+            .withArgName("column")
+            .create());
+
+        options.addOption(OptionBuilder.withLongOpt("compression")
+            .withDescription("compression of the csv and json files " + Arrays.toString(Compression.values()) + " (default NONE), not applied to NZPIPE")
+            .hasArg()
+            .withArgName("compression")
+            .create());
+
+        options.addOption(OptionBuilder.withLongOpt("compressionthreads")
+            .withDescription("threads compressing each file with PARALLEL_GZIP (default: number of cores)")
+            .hasArg()
+            .withArgName("threads")
+            .create());
+
          options.addOption(OptionBuilder.withLongOpt("outputfile")
             .withDescription("output file " + Arrays.toString(OutputFormat.values()))
             .hasArg()
@@ -105,17 +251,42 @@ public class EventLoaderConfiguration
 
     private String eventType;
     private String geoIpDb;
+    private String geoIpColumn = "ip";
     private boolean verbose;
     private boolean raw = false;
     private boolean skipJson =false;
+    private boolean keepJson = false;
+    private boolean smile = false;
+    private boolean checkpoint = false;
+    private boolean incremental = false;
+    private int conversionThreads = 1;
+    private InputSource inputSource = InputSource.ACTION_CORE;
+    private long splitSize = 16L * 1024 * 1024;
+    private Charset charset = Charset.defaultCharset();
     private String host = "localhost";
     private String path = "/events/xnq1/";
     private int port = 8080;
     private String outputFile;
     private List<String> fields = new ArrayList<String>();
     private String browsecapIni;
+    private String userAgentColumn = "userAgent";
+    private List<String> userAgentProperties = UserAgentParser.DEFAULT_PROPERTIES;
     private OutputFormat outputFormat = OutputFormat.JSON;
+    private String loadCommand;
+    private int shards = 1;
+    private String distributionColumn;
+    private Compression compression = Compression.NONE;
+    private int compressionThreads = Runtime.getRuntime().availableProcessors();
     private String goodwill ="goodwill.ningops.com";
+    private int goodwillPort = 8080;
+    private String transformation;
+    private String batchManifest;
+    private String schemaCacheDir;
+    private long schemaTtl = SchemaCache.DEFAULT_TTL;
+    private String summaryFile;
+    private String rejectsFile;
+    private double maxErrorRate = 1;
+    private int metricsPort = 0;
     private String configurationFile = "schematransformation.properties";
 
 
@@ -141,7 +312,7 @@ public class EventLoaderConfiguration
             configuration.setHost(host);
         }
         String port = line.getOptionValue("port");
-        if (port == null) {
+        if (port != null) {
             configuration.setPort(port);
         }
         String path = line.getOptionValue("path");
@@ -159,6 +330,11 @@ public class EventLoaderConfiguration
             configuration.setGeoIpDb(geoIpDb);
         }
 
+        String geoIpColumn = line.getOptionValue("geoipcolumn");
+        if (geoIpColumn != null) {
+            configuration.setGeoIpColumn(geoIpColumn);
+        }
+
         String outputFile = line.getOptionValue("outputfile");
         try {
             configuration.setOutputFile(outputFile);
@@ -172,6 +348,16 @@ public class EventLoaderConfiguration
             configuration.setBrowsecapIni(browsecapIni);
         }
 
+        String userAgentColumn = line.getOptionValue("useragentcolumn");
+        if (userAgentColumn != null) {
+            configuration.setUserAgentColumn(userAgentColumn);
+        }
+
+        String userAgentProperties = line.getOptionValue("useragentproperties");
+        if (userAgentProperties != null) {
+            configuration.setUserAgentProperties(Arrays.asList(userAgentProperties.split(",")));
+        }
+
         String outputFields = line.getOptionValue("fields");
         if (outputFields != null) {
             String[] fields = outputFields.split(",");
@@ -189,13 +375,174 @@ public class EventLoaderConfiguration
             }
         }
 
+        String loadCommand = line.getOptionValue("loadcommand");
+        if (loadCommand != null) {
+            configuration.setLoadCommand(loadCommand);
+        }
+
         if (line.hasOption('d')){
             configuration.setGoodwill(line.getOptionValue('d'));
         }
 
+        String transformation = line.getOptionValue("transformation");
+        if (transformation != null) {
+            configuration.setTransformation(transformation);
+        }
+
+        String batchManifest = line.getOptionValue("batch");
+        if (batchManifest != null) {
+            configuration.setBatchManifest(batchManifest);
+        }
+
+        String goodwillPort = line.getOptionValue("goodwillport");
+        if (goodwillPort != null) {
+            try {
+                configuration.setGoodwillPort(Integer.parseInt(goodwillPort));
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        String schemaCacheDir = line.getOptionValue("schemacache");
+        if (schemaCacheDir != null) {
+            configuration.setSchemaCacheDir(schemaCacheDir);
+        }
+
+        String rejectsFile = line.getOptionValue("rejects");
+        if (rejectsFile != null) {
+            configuration.setRejectsFile(rejectsFile);
+        }
+
+        String maxErrorRate = line.getOptionValue("maxerrorrate");
+        if (maxErrorRate != null) {
+            try {
+                configuration.setMaxErrorRate(Double.parseDouble(maxErrorRate));
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        String summaryFile = line.getOptionValue("summary");
+        if (summaryFile != null) {
+            configuration.setSummaryFile(summaryFile);
+        }
+
+        String metricsPort = line.getOptionValue("metricsport");
+        if (metricsPort != null) {
+            try {
+                configuration.setMetricsPort(Integer.parseInt(metricsPort));
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        String schemaTtl = line.getOptionValue("schemattl");
+        if (schemaTtl != null) {
+            try {
+                configuration.setSchemaTtl(Long.parseLong(schemaTtl) * 60 * 1000);
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
         if (line.hasOption('n')){
             configuration.setSkipDownloadFlag(true);
         }
+
+        if (line.hasOption("checkpoint")) {
+            configuration.setCheckpoint(true);
+        }
+
+        if (line.hasOption("incremental")) {
+            configuration.setIncremental(true);
+        }
+
+        if (line.hasOption('k')) {
+            configuration.setKeepJsonFlag(true);
+        }
+
+        if (line.hasOption("smile")) {
+            configuration.setSmile(true);
+        }
+
+        String inputSourceString = line.getOptionValue("source");
+        if (inputSourceString != null) {
+            try {
+                configuration.setInputSource(InputSource.valueOf(inputSourceString));
+            }
+            catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        String splitSize = line.getOptionValue("splitsize");
+        if (splitSize != null) {
+            try {
+                configuration.setSplitSize(Long.parseLong(splitSize) * 1024 * 1024);
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        String charsetName = line.getOptionValue("charset");
+        if (charsetName != null) {
+            try {
+                configuration.setCharset(Charset.forName(charsetName));
+            }
+            catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        String shards = line.getOptionValue("shards");
+        if (shards != null) {
+            try {
+                configuration.setShards(Integer.parseInt(shards));
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        String distributionColumn = line.getOptionValue("distribute");
+        if (distributionColumn != null) {
+            configuration.setDistributionColumn(distributionColumn);
+        }
+
+        String compression = line.getOptionValue("compression");
+        if (compression != null) {
+            try {
+                configuration.setCompression(Compression.valueOf(compression));
+            }
+            catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        String compressionThreads = line.getOptionValue("compressionthreads");
+        if (compressionThreads != null) {
+            try {
+                configuration.setCompressionThreads(Integer.parseInt(compressionThreads));
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        String threads = line.getOptionValue("threads");
+        if (threads != null) {
+            try {
+                configuration.setConversionThreads(Integer.parseInt(threads));
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
         return configuration;
     }
 
@@ -252,6 +599,16 @@ public class EventLoaderConfiguration
         this.geoIpDb = geoIpDb;
     }
 
+    public String getGeoIpColumn()
+    {
+        return geoIpColumn;
+    }
+
+    public void setGeoIpColumn(String geoIpColumn)
+    {
+        this.geoIpColumn = geoIpColumn;
+    }
+
     public String getBrowsecapIni()
     {
         return browsecapIni;
@@ -262,6 +619,26 @@ public class EventLoaderConfiguration
         this.browsecapIni = browsecapIni;
     }
 
+    public String getUserAgentColumn()
+    {
+        return userAgentColumn;
+    }
+
+    public void setUserAgentColumn(String userAgentColumn)
+    {
+        this.userAgentColumn = userAgentColumn;
+    }
+
+    public List<String> getUserAgentProperties()
+    {
+        return userAgentProperties;
+    }
+
+    public void setUserAgentProperties(List<String> userAgentProperties)
+    {
+        this.userAgentProperties = userAgentProperties;
+    }
+
     public boolean isVerbose()
     {
         return verbose;
@@ -322,6 +699,104 @@ public class EventLoaderConfiguration
         this.goodwill = goodwill;
     }
 
+    public String getTransformation()
+    {
+        return transformation;
+    }
+
+    public void setTransformation(String transformation)
+    {
+        this.transformation = transformation;
+    }
+
+    public String getBatchManifest()
+    {
+        return batchManifest;
+    }
+
+    public void setBatchManifest(String batchManifest)
+    {
+        this.batchManifest = batchManifest;
+    }
+
+    public int getGoodwillPort()
+    {
+        return goodwillPort;
+    }
+
+    public void setGoodwillPort(int goodwillPort)
+    {
+        this.goodwillPort = goodwillPort;
+    }
+
+    public String getSchemaCacheDir()
+    {
+        return schemaCacheDir;
+    }
+
+    public void setSchemaCacheDir(String schemaCacheDir)
+    {
+        this.schemaCacheDir = schemaCacheDir;
+    }
+
+    public String getRejectsFile()
+    {
+        return rejectsFile;
+    }
+
+    public void setRejectsFile(String rejectsFile)
+    {
+        this.rejectsFile = rejectsFile;
+    }
+
+    public double getMaxErrorRate()
+    {
+        return maxErrorRate;
+    }
+
+    public void setMaxErrorRate(double maxErrorRate)
+    {
+        this.maxErrorRate = maxErrorRate;
+    }
+
+    /**
+     * @return true if the values are checked against the column types, with --rejects or --maxerrorrate
+     */
+    public boolean getValidation()
+    {
+        return rejectsFile != null || maxErrorRate < 1;
+    }
+
+    public String getSummaryFile()
+    {
+        return summaryFile;
+    }
+
+    public void setSummaryFile(String summaryFile)
+    {
+        this.summaryFile = summaryFile;
+    }
+
+    public int getMetricsPort()
+    {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort)
+    {
+        this.metricsPort = metricsPort;
+    }
+
+    public long getSchemaTtl()
+    {
+        return schemaTtl;
+    }
+
+    public void setSchemaTtl(long schemaTtl)
+    {
+        this.schemaTtl = schemaTtl;
+    }
+
     public OutputFormat getOutputFormat()
     {
         return outputFormat;
@@ -332,6 +807,56 @@ public class EventLoaderConfiguration
         this.outputFormat = outputFormat;
     }
 
+    public String getLoadCommand()
+    {
+        return loadCommand;
+    }
+
+    public void setLoadCommand(String loadCommand)
+    {
+        this.loadCommand = loadCommand;
+    }
+
+    public int getShards()
+    {
+        return shards;
+    }
+
+    public void setShards(int shards)
+    {
+        this.shards = shards;
+    }
+
+    public String getDistributionColumn()
+    {
+        return distributionColumn;
+    }
+
+    public void setDistributionColumn(String distributionColumn)
+    {
+        this.distributionColumn = distributionColumn;
+    }
+
+    public Compression getCompression()
+    {
+        return compression;
+    }
+
+    public void setCompression(Compression compression)
+    {
+        this.compression = compression;
+    }
+
+    public int getCompressionThreads()
+    {
+        return compressionThreads;
+    }
+
+    public void setCompressionThreads(int compressionThreads)
+    {
+        this.compressionThreads = compressionThreads;
+    }
+
     public boolean getSkipDownloadFlag()
     {
         return skipJson;
@@ -340,4 +865,85 @@ public class EventLoaderConfiguration
     public void setSkipDownloadFlag(boolean skipJson)
     {
         this.skipJson = skipJson;
-    }}
\ No newline at end of file
+    }
+
+    public boolean getKeepJsonFlag()
+    {
+        return keepJson;
+    }
+
+    public void setKeepJsonFlag(boolean keepJson)
+    {
+        this.keepJson = keepJson;
+    }
+
+    public boolean getSmile()
+    {
+        return smile;
+    }
+
+    public void setSmile(boolean smile)
+    {
+        this.smile = smile;
+    }
+
+    public boolean getCheckpoint()
+    {
+        return checkpoint;
+    }
+
+    public void setCheckpoint(boolean checkpoint)
+    {
+        this.checkpoint = checkpoint;
+    }
+
+    public boolean getIncremental()
+    {
+        return incremental;
+    }
+
+    public void setIncremental(boolean incremental)
+    {
+        this.incremental = incremental;
+    }
+
+    public int getConversionThreads()
+    {
+        return conversionThreads;
+    }
+
+    public void setConversionThreads(int conversionThreads)
+    {
+        this.conversionThreads = conversionThreads;
+    }
+
+    public InputSource getInputSource()
+    {
+        return inputSource;
+    }
+
+    public void setInputSource(InputSource inputSource)
+    {
+        this.inputSource = inputSource;
+    }
+
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    public void setCharset(Charset charset)
+    {
+        this.charset = charset;
+    }
+
+    public long getSplitSize()
+    {
+        return splitSize;
+    }
+
+    public void setSplitSize(long splitSize)
+    {
+        this.splitSize = splitSize;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,232 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/*
+  IP ranges with their country, latitude and longitude, for GeoIP enrichment. The ranges are kept
+  in sorted primitive arrays (no object per range) and looked up by binary search; the database is
+  immutable once loaded and shared by all the worker threads.
+  The range file is a csv with one range per line: first IP, last IP, country code, latitude,
+  longitude. IPs are in dot decimal or decimal form, fields may be quoted as in the MaxMind csv
+  files (a GeoLite City export flattens to this format by joining its blocks and locations).
+  Lines that do not start with an IP, e.g. headers, are skipped.
+  IPs are compared in the form of DataTransformationBase.ipToInt, whose order is the unsigned order.
+*/
+public class GeoIpDatabase
+{
+    private static final Logger log = Logger.getLogger(GeoIpDatabase.class);
+    private static final Map<File, GeoIpDatabase> databases = new HashMap<File, GeoIpDatabase>();
+    private static final int FIXED_POINT = 10000;
+
+    private final File file;
+    private final long lastModified;
+    private final int[] starts;
+    private final int[] ends;
+    private final short[] countries;
+    private final int[] latitudes;
+    private final int[] longitudes;
+    private final String[] countryCodes;
+
+    private GeoIpDatabase(File file, long lastModified, int[] starts, int[] ends, short[] countries, int[] latitudes, int[] longitudes, String[] countryCodes)
+    {
+        this.file = file;
+        this.lastModified = lastModified;
+        this.starts = starts;
+        this.ends = ends;
+        this.countries = countries;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.countryCodes = countryCodes;
+    }
+
+    /**
+     * Database of a file, loaded once per JVM (the batch jobs share it), and loaded again if the file changed
+     * since, as with GEOIP_MEMORY_CACHE | GEOIP_CHECK_CACHE
+     *
+     * @param file range file
+     * @return the database
+     * @throws IOException if the file cannot be read or is invalid
+     */
+    public static GeoIpDatabase forFile(File file) throws IOException
+    {
+        synchronized (databases) {
+            GeoIpDatabase database = databases.get(file);
+            if (database == null || database.lastModified != file.lastModified()) {
+                database = load(file);
+                databases.put(file, database);
+            }
+            return database;
+        }
+    }
+
+    /**
+     * @param file range file
+     * @return the ranges of the file
+     * @throws IOException if the file cannot be read, or has invalid or overlapping ranges
+     */
+    public static GeoIpDatabase load(File file) throws IOException
+    {
+        long lastModified = file.lastModified();
+        List<long[]> ranges = new ArrayList<long[]>();
+        Map<String, Integer> countryIndex = new HashMap<String, Integer>();
+        List<String> countryCodes = new ArrayList<String>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                String[] fields = line.split(",");
+                String first = fields.length < 5 ? "" : unquote(fields[0]);
+                if (first.length() == 0 || !Character.isDigit(first.charAt(0))) {
+                    continue;
+                }
+                try {
+                    String country = unquote(fields[2]);
+                    Integer index = countryIndex.get(country);
+                    if (index == null) {
+                        index = countryCodes.size();
+                        countryIndex.put(country, index);
+                        countryCodes.add(country);
+                    }
+                    ranges.add(new long[]{
+                        DataTransformationBase.ipToInt(first),
+                        DataTransformationBase.ipToInt(unquote(fields[1])),
+                        index,
+                        Math.round(Double.parseDouble(unquote(fields[3])) * FIXED_POINT),
+                        Math.round(Double.parseDouble(unquote(fields[4])) * FIXED_POINT)
+                    });
+                }
+                catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid range at line " + number + " of " + file + ": " + e.getLocalizedMessage());
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        if (countryCodes.size() > Short.MAX_VALUE) {
+            throw new IOException("Too many countries in " + file);
+        }
+
+        long[][] sorted = ranges.toArray(new long[ranges.size()][]);
+        Arrays.sort(sorted, new Comparator<long[]>()
+        {
+            public int compare(long[] left, long[] right)
+            {
+                return left[0] < right[0] ? -1 : (left[0] == right[0] ? 0 : 1);
+            }
+        });
+
+        int[] starts = new int[sorted.length];
+        int[] ends = new int[sorted.length];
+        short[] countries = new short[sorted.length];
+        int[] latitudes = new int[sorted.length];
+        int[] longitudes = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            starts[i] = (int) sorted[i][0];
+            ends[i] = (int) sorted[i][1];
+            countries[i] = (short) sorted[i][2];
+            latitudes[i] = (int) sorted[i][3];
+            longitudes[i] = (int) sorted[i][4];
+            if (ends[i] < starts[i] || (i > 0 && starts[i] <= ends[i - 1])) {
+                throw new IOException("Invalid or overlapping range " + sorted[i][0] + "-" + sorted[i][1] + " in " + file);
+            }
+        }
+        log.info("Loaded " + sorted.length + " IP ranges in " + countryCodes.size() + " countries from " + file);
+
+        return new GeoIpDatabase(file, lastModified, starts, ends, countries, latitudes, longitudes, countryCodes.toArray(new String[countryCodes.size()]));
+    }
+
+    /**
+     * @param ip address in the form of DataTransformationBase.ipToInt
+     * @return range holding the address, -1 if none does
+     */
+    public int find(int ip)
+    {
+        // last range starting at or before the address
+        int low = 0;
+        int high = starts.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (starts[middle] <= ip) {
+                low = middle + 1;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return high >= 0 && ip <= ends[high] ? high : -1;
+    }
+
+    public String getCountry(int range)
+    {
+        return countryCodes[countries[range]];
+    }
+
+    /**
+     * @return latitude of the range, in 1/10000 degrees
+     */
+    public int getLatitude(int range)
+    {
+        return latitudes[range];
+    }
+
+    /**
+     * @return longitude of the range, in 1/10000 degrees
+     */
+    public int getLongitude(int range)
+    {
+        return longitudes[range];
+    }
+
+    public int size()
+    {
+        return starts.length;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    private static String unquote(String field)
+    {
+        String trimmed = field.trim();
+        if (trimmed.length() >= 2 && trimmed.charAt(0) == '"' && trimmed.charAt(trimmed.length() - 1) == '"') {
+            return trimmed.substring(1, trimmed.length() - 1);
+        }
+        return trimmed;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.IOException;
+
+/*
+  Appends the country code, latitude and longitude of the IP address of a column to the csv line of
+  another transformation: "US"|37.7510|-97.8220| in the DataTransformationBase format, or three empty
+  columns if the address is missing, invalid or in no range. The range of recently seen addresses is
+  kept in an LRU cache keyed on the int address, so hot addresses skip the binary search.
+  Created per worker thread, like the transformation it wraps.
+*/
+public class GeoIpEnricher implements RowTransformation
+{
+    public static final int DEFAULT_CACHE_SIZE = 64 * 1024;
+    private static final int NOT_CACHED = -2;
+    private static final int NO_RANGE = -1;
+
+    private final RowTransformation transformation;
+    private final GeoIpDatabase database;
+    private final int ipSlot;
+    private final String ipColumn;
+    private final IntLruCache cache;
+    private final LoaderMetrics metrics;
+    private final byte[] digits = new byte[12];
+
+    public GeoIpEnricher(RowTransformation transformation, GeoIpDatabase database, RowSchema schema, String ipColumn, int cacheSize)
+    {
+        this(transformation, database, schema, ipColumn, cacheSize, null);
+    }
+
+    /**
+     * @param metrics counts the invalid addresses; null not to count them
+     */
+    public GeoIpEnricher(RowTransformation transformation, GeoIpDatabase database, RowSchema schema, String ipColumn, int cacheSize, LoaderMetrics metrics)
+    {
+        this.transformation = transformation;
+        this.ipColumn = ipColumn;
+        this.metrics = metrics;
+        this.database = database;
+        this.ipSlot = schema.slotOf(ipColumn);
+        if (ipSlot < 0) {
+            throw new IllegalArgumentException("IP column " + ipColumn + " is not in the schema");
+        }
+        this.cache = new IntLruCache(cacheSize);
+    }
+
+    public void transformRow(Row row, RowBuffer output, String delimiter) throws IOException
+    {
+        int start = output.size();
+        transformation.transformRow(row, output, delimiter);
+        boolean newline = output.size() > start && output.byteAt(output.size() - 1) == '\n';
+        if (newline) {
+            output.truncate(output.size() - 1);
+        }
+
+        int range = lookup(row.get(ipSlot));
+        if (range == NO_RANGE) {
+            output.append(delimiter).append(delimiter).append(delimiter);
+        }
+        else {
+            output.append((byte) '"').append(database.getCountry(range)).append((byte) '"').append(delimiter);
+            appendFixedPoint(database.getLatitude(range), output);
+            output.append(delimiter);
+            appendFixedPoint(database.getLongitude(range), output);
+            output.append(delimiter);
+        }
+
+        if (newline) {
+            output.append((byte) '\n');
+        }
+    }
+
+    public IntLruCache getCache()
+    {
+        return cache;
+    }
+
+    private int lookup(String address)
+    {
+        if (address == null || address.length() == 0) {
+            return NO_RANGE;
+        }
+        int ip;
+        try {
+            ip = DataTransformationBase.ipToInt(address);
+        }
+        catch (IllegalArgumentException e) {
+            if (metrics != null) {
+                metrics.columnFailure(ipColumn);
+            }
+            return NO_RANGE;
+        }
+
+        int range = cache.get(ip, NOT_CACHED);
+        if (range == NOT_CACHED) {
+            range = database.find(ip);
+            cache.put(ip, range);
+        }
+        return range;
+    }
+
+    // value in 1/10000, e.g. -978220 as -97.8220
+    private void appendFixedPoint(int value, RowBuffer output)
+    {
+        long magnitude = Math.abs((long) value);
+        if (value < 0) {
+            output.append((byte) '-');
+        }
+        int position = digits.length;
+        for (int i = 0; i < 4; i++) {
+            digits[--position] = (byte) ('0' + magnitude % 10);
+            magnitude /= 10;
+        }
+        digits[--position] = '.';
+        do {
+            digits[--position] = (byte) ('0' + magnitude % 10);
+            magnitude /= 10;
+        } while (magnitude > 0);
+        output.append(digits, position, digits.length - position);
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.util.LineReader;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/*
+  Reads event files straight from HDFS (or any Hadoop FileSystem, e.g. file:///) instead of going
+  through the action-core json rendering. Files hold either one json event per line, or the events as
+  the collectors write them: a SequenceFile whose values are Thrift (TBinaryProtocol), Smile or json events,
+  decoded straight into rows by Goodwill field id. Every file under the path is cut into splits that
+  are read independently, so they can be converted in parallel. Splits follow the Hadoop
+  LineRecordReader and SequenceFileRecordReader conventions: a split owns every line starting inside
+  it, or every record following the first sync mark inside it.
+*/
+public class HdfsEventSource
+{
+    private static final Logger log = Logger.getLogger(HdfsEventSource.class);
+    private static final byte[] SEQUENCE_FILE_MAGIC = {'S', 'E', 'Q'};
+
+    private final Configuration conf = new Configuration();
+    private final Path root;
+    private final RowSchema schema;
+    private final long splitSize;
+    private LoaderMetrics metrics;
+
+    public HdfsEventSource(String path, RowSchema schema, long splitSize)
+    {
+        this.root = new Path(path);
+        this.schema = schema;
+        this.splitSize = splitSize;
+    }
+
+    /**
+     * @param metrics export metrics counting the bytes read and the fields that are not in the schema
+     */
+    public void setMetrics(LoaderMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * List the event files under the path and cut them into splits.
+     * Compressed files cannot be split and are read by a single reader.
+     *
+     * @return splits, ordered by file name then offset
+     * @throws IOException if the path cannot be listed
+     */
+    public List<RowSource> getSplits() throws IOException
+    {
+        List<RowSource> splits = new ArrayList<RowSource>();
+        for (List<RowSource> fileSplits : getSplitsByFile().values()) {
+            splits.addAll(fileSplits);
+        }
+        return splits;
+    }
+
+    /**
+     * @return splits of each file, by file path, ordered by file name then offset
+     * @throws IOException if the path cannot be listed
+     */
+    public Map<String, List<RowSource>> getSplitsByFile() throws IOException
+    {
+        return getSplitsByFile(listFiles());
+    }
+
+    /**
+     * @return the event files under the path, ordered by file name
+     * @throws IOException if the path cannot be listed
+     */
+    public List<FileStatus> listFiles() throws IOException
+    {
+        FileSystem fs = root.getFileSystem(conf);
+        List<FileStatus> files = new ArrayList<FileStatus>();
+        listFiles(fs, fs.getFileStatus(root), files);
+        Collections.sort(files, new Comparator<FileStatus>()
+        {
+            public int compare(FileStatus left, FileStatus right)
+            {
+                return left.getPath().toString().compareTo(right.getPath().toString());
+            }
+        });
+        return files;
+    }
+
+    /**
+     * @param files some of the files returned by listFiles()
+     * @return splits of each file, by file path, in the order of the files
+     * @throws IOException if the file system cannot be reached
+     */
+    public Map<String, List<RowSource>> getSplitsByFile(List<FileStatus> files) throws IOException
+    {
+        FileSystem fs = root.getFileSystem(conf);
+        CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+        Map<String, List<RowSource>> splitsByFile = new LinkedHashMap<String, List<RowSource>>();
+        int count = 0;
+        for (FileStatus file : files) {
+            List<RowSource> splits = new ArrayList<RowSource>();
+            CompressionCodec codec = codecs.getCodec(file.getPath());
+            if (codec != null || file.getLen() <= splitSize) {
+                splits.add(new Split(fs, file.getPath(), codec, 0, file.getLen()));
+            }
+            else {
+                for (long start = 0; start < file.getLen(); start += splitSize) {
+                    splits.add(new Split(fs, file.getPath(), null, start, Math.min(file.getLen(), start + splitSize)));
+                }
+            }
+            splitsByFile.put(file.getPath().toString(), splits);
+            count += splits.size();
+        }
+        log.info("Found " + files.size() + " files (" + count + " splits) under " + root);
+
+        return splitsByFile;
+    }
+
+    private void listFiles(FileSystem fs, FileStatus status, List<FileStatus> files) throws IOException
+    {
+        // skip _logs, _SUCCESS, .crc files and the like, as Hadoop input formats do
+        String name = status.getPath().getName();
+        if (!status.getPath().equals(root) && (name.startsWith("_") || name.startsWith("."))) {
+            return;
+        }
+
+        if (!status.isDir()) {
+            files.add(status);
+            return;
+        }
+
+        FileStatus[] children = fs.listStatus(status.getPath());
+        if (children != null) {
+            for (FileStatus child : children) {
+                listFiles(fs, child, files);
+            }
+        }
+    }
+
+    private class Split implements RowSource
+    {
+        private final FileSystem fs;
+        private final Path file;
+        private final CompressionCodec codec;
+        private final long start;
+        private final long end;
+
+        private Split(FileSystem fs, Path file, CompressionCodec codec, long start, long end)
+        {
+            this.fs = fs;
+            this.file = file;
+            this.codec = codec;
+            this.start = start;
+            this.end = end;
+        }
+
+        public void read(RowConsumer consumer) throws IOException
+        {
+            FSDataInputStream fileIn = fs.open(file);
+            boolean sequenceFile;
+            try {
+                sequenceFile = codec == null && isSequenceFile(fileIn);
+                if (!sequenceFile) {
+                    readLines(fileIn, consumer);
+                }
+            }
+            finally {
+                fileIn.close();
+            }
+            if (sequenceFile) {
+                readSequenceFile(consumer);
+            }
+        }
+
+        private void readLines(FSDataInputStream fileIn, RowConsumer consumer) throws IOException
+        {
+            long pos = start;
+            InputStream in = metrics == null ? fileIn : new MeteredInputStream(fileIn, metrics, null);
+            if (codec != null) {
+                in = codec.createInputStream(in);
+            }
+            else if (start != 0) {
+                // back up one byte so that a line starting exactly at the split boundary is kept
+                fileIn.seek(--pos);
+            }
+
+            LineReader lines = new LineReader(in);
+            Text line = new Text();
+            String[] row = new String[schema.size()];
+            RowAssembler assembler = new RowAssembler(schema);
+            long rows = 0;
+            if (pos != start) {
+                // the partial first line belongs to the previous split
+                pos += lines.readLine(line);
+            }
+
+            while (codec != null || pos < end) {
+                int consumed = lines.readLine(line);
+                if (consumed == 0) {
+                    break;
+                }
+                if (line.getLength() > 0) {
+                    parseJson(line.getBytes(), line.getLength(), row, pos, assembler);
+                    consumer.consume(row);
+                    rows++;
+                }
+                pos += consumed;
+            }
+            if (metrics != null) {
+                metrics.read(rows, 0);
+                metrics.skipped(assembler.getSkippedFields());
+                metrics.missing(assembler.getMissingFields());
+            }
+        }
+
+        private boolean isSequenceFile(FSDataInputStream fileIn) throws IOException
+        {
+            byte[] magic = new byte[SEQUENCE_FILE_MAGIC.length];
+            return fileIn.read(0, magic, 0, magic.length) == magic.length && Arrays.equals(magic, SEQUENCE_FILE_MAGIC);
+        }
+
+        private void readSequenceFile(RowConsumer consumer) throws IOException
+        {
+            SequenceFile.Reader reader = new SequenceFile.Reader(fs, file, conf);
+            try {
+                Writable key = (Writable) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+                Writable value = (Writable) ReflectionUtils.newInstance(reader.getValueClass(), conf);
+                if (!(value instanceof BytesWritable) && !(value instanceof Text)) {
+                    throw new IOException("Unsupported event class " + reader.getValueClass().getName() + " in " + file);
+                }
+
+                String[] row = new String[schema.size()];
+                RowAssembler assembler = new RowAssembler(schema);
+                ThriftEventDecoder thrift = new ThriftEventDecoder(assembler);
+                long rows = 0;
+                if (start > 0) {
+                    // the records before the first sync mark past the start belong to the previous split
+                    reader.sync(Math.max(start, reader.getPosition()));
+                }
+
+                long pos = reader.getPosition();
+                while (reader.next(key, value)) {
+                    // and the records past the end belong to this one, up to the next sync mark
+                    if (pos >= end && reader.syncSeen()) {
+                        break;
+                    }
+
+                    byte[] bytes;
+                    int length;
+                    if (value instanceof BytesWritable) {
+                        bytes = ((BytesWritable) value).getBytes();
+                        length = ((BytesWritable) value).getLength();
+                    }
+                    else {
+                        bytes = ((Text) value).getBytes();
+                        length = ((Text) value).getLength();
+                    }
+                    if (length > 0) {
+                        // a Thrift struct starts with the type of its first field, never with a brace or the Smile header
+                        if (bytes[0] == '{' || SmileStreams.isSmile(bytes, 0, length)) {
+                            parseJson(bytes, length, row, pos, assembler);
+                        }
+                        else {
+                            thrift.read(bytes, 0, length, row);
+                        }
+                        consumer.consume(row);
+                        rows++;
+                    }
+                    pos = reader.getPosition();
+                }
+                if (metrics != null) {
+                    metrics.read(rows, reader.getPosition() - start);
+                    metrics.skipped(assembler.getSkippedFields());
+                    metrics.missing(assembler.getMissingFields());
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+
+        private void parseJson(byte[] bytes, int length, String[] row, long offset, RowAssembler assembler) throws IOException
+        {
+            JsonParser jsonParser = SmileStreams.createParser(bytes, 0, length);
+            try {
+                if (jsonParser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IOException("Expected a json object in " + file + " at offset " + offset);
+                }
+                assembler.read(jsonParser, row);
+            }
+            finally {
+                jsonParser.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.util.Arrays;
+
+/*
+  Least recently used cache of int values by int key, e.g. GeoIP ranges by IP address, that neither
+  boxes nor allocates once created. Entries live in parallel arrays: a chained hash table indexes them
+  and a doubly linked list orders them from the most to the least recently used.
+  Not thread safe, use one instance per thread.
+*/
+public class IntLruCache
+{
+    private static final int NONE = -1;
+
+    private final int capacity;
+    private final int[] keys;
+    private final int[] values;
+    private final int[] newer;
+    private final int[] older;
+    private final int[] nextInBucket;
+    private final int[] buckets;
+    private final int mask;
+    private int size = 0;
+    private int newest = NONE;
+    private int oldest = NONE;
+    private long hits = 0;
+    private long misses = 0;
+
+    public IntLruCache(int capacity)
+    {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.keys = new int[capacity];
+        this.values = new int[capacity];
+        this.newer = new int[capacity];
+        this.older = new int[capacity];
+        this.nextInBucket = new int[capacity];
+
+        int tableSize = 2;
+        while (tableSize < capacity * 2) {
+            tableSize <<= 1;
+        }
+        this.buckets = new int[tableSize];
+        this.mask = tableSize - 1;
+        Arrays.fill(buckets, NONE);
+    }
+
+    /**
+     * @param key     key to look up, becomes the most recently used if present
+     * @param missing value returned if the key is not cached
+     * @return the cached value, or missing
+     */
+    public int get(int key, int missing)
+    {
+        for (int entry = buckets[bucketOf(key)]; entry != NONE; entry = nextInBucket[entry]) {
+            if (keys[entry] == key) {
+                hits++;
+                if (entry != newest) {
+                    unlink(entry);
+                    linkNewest(entry);
+                }
+                return values[entry];
+            }
+        }
+        misses++;
+        return missing;
+    }
+
+    /**
+     * Cache a value, evicting the least recently used entry if the cache is full.
+     * The key must not be cached already, call after a missed get.
+     */
+    public void put(int key, int value)
+    {
+        int entry;
+        if (size < capacity) {
+            entry = size++;
+        }
+        else {
+            entry = oldest;
+            unlink(entry);
+            removeFromBucket(entry);
+        }
+
+        keys[entry] = key;
+        values[entry] = value;
+        int bucket = bucketOf(key);
+        nextInBucket[entry] = buckets[bucket];
+        buckets[bucket] = entry;
+        linkNewest(entry);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public long getHits()
+    {
+        return hits;
+    }
+
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    private void linkNewest(int entry)
+    {
+        older[entry] = newest;
+        newer[entry] = NONE;
+        if (newest != NONE) {
+            newer[newest] = entry;
+        }
+        newest = entry;
+        if (oldest == NONE) {
+            oldest = entry;
+        }
+    }
+
+    private void unlink(int entry)
+    {
+        if (newer[entry] != NONE) {
+            older[newer[entry]] = older[entry];
+        }
+        else {
+            newest = older[entry];
+        }
+        if (older[entry] != NONE) {
+            newer[older[entry]] = newer[entry];
+        }
+        else {
+            oldest = newer[entry];
+        }
+    }
+
+    private void removeFromBucket(int entry)
+    {
+        int bucket = bucketOf(keys[entry]);
+        if (buckets[bucket] == entry) {
+            buckets[bucket] = nextInBucket[entry];
+            return;
+        }
+        int previous = buckets[bucket];
+        while (nextInBucket[previous] != entry) {
+            previous = nextInBucket[previous];
+        }
+        nextInBucket[previous] = nextInBucket[entry];
+    }
+
+    private int bucketOf(int key)
+    {
+        // consecutive addresses of a subnet should not share buckets
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+/*
+  Single pass IPv4 parsing into the int form of DataTransformationBase.ipToInt, without allocating:
+  dot decimal addresses and unsigned 32-bit numbers are offset by 2^31 (so that the signed order of
+  the ints is the order of the addresses), numbers with a minus sign are taken as they are and the
+  empty string is 0. Octets above 255 are invalid.
+  Addresses are read from a CharSequence (the String values of a row) or from ASCII bytes; the
+  batch variants convert a whole column, or a list of addresses such as an X-Forwarded-For chain.
+  The scans return the address as an unsigned int, or a negative code for an invalid value, so that
+  the batch variants and isValid never build an exception: only the single value parse throws an
+  IllegalArgumentException.
+*/
+public final class IpAddresses
+{
+    private static final int OFFSET = 1 << 31;
+    private static final long MAX_UNSIGNED = 0xFFFFFFFFL;
+    // negative results of the scans
+    private static final long OUT_OF_RANGE = -1;
+    private static final long OCTET_OUT_OF_RANGE = -2;
+    private static final long UNEXPECTED_CHARACTER = -3;
+    private static final long MISSING_DIGITS = -4;
+    private static final long NOT_FOUR_OCTETS = -5;
+
+    private IpAddresses()
+    {
+    }
+
+    /**
+     * @param value dot decimal address, or 32-bit number
+     * @return the address as ipToInt would convert it
+     * @throws IllegalArgumentException if the value is not an address
+     */
+    public static int parse(CharSequence value)
+    {
+        return parse(value, 0, value.length());
+    }
+
+    /**
+     * @param value characters holding the address
+     * @param start first character of the address
+     * @param end   end of the address, exclusive
+     * @return the address as ipToInt would convert it
+     * @throws IllegalArgumentException if the characters are not an address
+     */
+    public static int parse(CharSequence value, int start, int end)
+    {
+        long status = scan(value, start, end);
+        if (status < 0) {
+            throw invalid(value.subSequence(start, end), status);
+        }
+        return (int) status;
+    }
+
+    /**
+     * @param bytes  ASCII bytes holding the address
+     * @param offset first byte of the address
+     * @param length length of the address
+     * @return the address as ipToInt would convert it
+     * @throws IllegalArgumentException if the bytes are not an address
+     */
+    public static int parse(byte[] bytes, int offset, int length)
+    {
+        long status = scan(bytes, offset, length);
+        if (status < 0) {
+            throw invalid(new String(bytes, offset, length), status);
+        }
+        return (int) status;
+    }
+
+    /**
+     * Convert a column of values. Invalid values do not stop the conversion.
+     *
+     * @param values  column values, null values are invalid
+     * @param count   number of values to convert
+     * @param out     converted values, at the same index
+     * @param invalid value stored for the invalid values
+     * @return number of invalid values
+     */
+    public static int parseAll(CharSequence[] values, int count, int[] out, int invalid)
+    {
+        int failures = 0;
+        for (int i = 0; i < count; i++) {
+            long status = values[i] == null ? MISSING_DIGITS : scan(values[i], 0, values[i].length());
+            if (status < 0) {
+                out[i] = invalid;
+                failures++;
+            }
+            else {
+                out[i] = (int) status;
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Convert a list of addresses, e.g. "10.15.12.19, 10.18.240.62". Blanks around the addresses are ignored.
+     *
+     * @param value     list of addresses
+     * @param separator character between the addresses
+     * @param out       converted addresses, in order; addresses past its length are not converted
+     * @return number of addresses in the list
+     * @throws IllegalArgumentException if one of the addresses is invalid
+     */
+    public static int parseList(CharSequence value, char separator, int[] out)
+    {
+        int count = 0;
+        int start = 0;
+        int length = value.length();
+        while (start <= length) {
+            int end = start;
+            while (end < length && value.charAt(end) != separator) {
+                end++;
+            }
+            int first = start;
+            int last = end;
+            while (first < last && value.charAt(first) == ' ') {
+                first++;
+            }
+            while (last > first && value.charAt(last - 1) == ' ') {
+                last--;
+            }
+            if (first < last || end < length) {
+                if (count < out.length) {
+                    out[count] = parse(value, first, last);
+                }
+                count++;
+            }
+            start = end + 1;
+        }
+        return count;
+    }
+
+    /**
+     * @return true if parse would accept the value
+     */
+    public static boolean isValid(CharSequence value)
+    {
+        return scan(value, 0, value.length()) >= 0;
+    }
+
+    /**
+     * @return the address as an unsigned int, or a negative code if the characters are not an address
+     */
+    static long scan(CharSequence value, int start, int end)
+    {
+        if (start == end) {
+            return 0;
+        }
+
+        int dots = 0;
+        int octet = -1;
+        int ip = 0;
+        long number = 0;
+        boolean negative = value.charAt(start) == '-';
+        boolean signed = negative || value.charAt(start) == '+';
+        for (int i = signed ? start + 1 : start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                int digit = c - '0';
+                if (dots == 0) {
+                    // a number, or the first octet
+                    number = number * 10 + digit;
+                    if (number > MAX_UNSIGNED) {
+                        return OUT_OF_RANGE;
+                    }
+                    octet = number > 255 ? 256 : (int) number;
+                }
+                else {
+                    octet = octet < 0 ? digit : octet * 10 + digit;
+                    if (octet > 255) {
+                        return OCTET_OUT_OF_RANGE;
+                    }
+                }
+            }
+            else if (c == '.' && !signed && octet >= 0 && octet <= 255 && dots < 3) {
+                ip = (ip << 8) + octet;
+                octet = -1;
+                dots++;
+            }
+            else {
+                return UNEXPECTED_CHARACTER;
+            }
+        }
+        return toInt(dots, octet, ip, number, negative);
+    }
+
+    /**
+     * @return the address as an unsigned int, or a negative code if the bytes are not an address
+     */
+    static long scan(byte[] bytes, int offset, int length)
+    {
+        if (length == 0) {
+            return 0;
+        }
+
+        int dots = 0;
+        int octet = -1;
+        int ip = 0;
+        long number = 0;
+        boolean negative = bytes[offset] == '-';
+        boolean signed = negative || bytes[offset] == '+';
+        int end = offset + length;
+        for (int i = signed ? offset + 1 : offset; i < end; i++) {
+            byte c = bytes[i];
+            if (c >= '0' && c <= '9') {
+                int digit = c - '0';
+                if (dots == 0) {
+                    // a number, or the first octet
+                    number = number * 10 + digit;
+                    if (number > MAX_UNSIGNED) {
+                        return OUT_OF_RANGE;
+                    }
+                    octet = number > 255 ? 256 : (int) number;
+                }
+                else {
+                    octet = octet < 0 ? digit : octet * 10 + digit;
+                    if (octet > 255) {
+                        return OCTET_OUT_OF_RANGE;
+                    }
+                }
+            }
+            else if (c == '.' && !signed && octet >= 0 && octet <= 255 && dots < 3) {
+                ip = (ip << 8) + octet;
+                octet = -1;
+                dots++;
+            }
+            else {
+                return UNEXPECTED_CHARACTER;
+            }
+        }
+        return toInt(dots, octet, ip, number, negative);
+    }
+
+    private static long toInt(int dots, int octet, int ip, long number, boolean negative)
+    {
+        if (octet < 0) {
+            return MISSING_DIGITS;
+        }
+        if (dots != 0 && dots != 3) {
+            return NOT_FOUR_OCTETS;
+        }
+        if (dots == 3) {
+            return (((ip << 8) + octet) + OFFSET) & MAX_UNSIGNED;
+        }
+        if (negative) {
+            if (-number < Integer.MIN_VALUE) {
+                return OUT_OF_RANGE;
+            }
+            return (int) -number & MAX_UNSIGNED;
+        }
+        return ((int) number + OFFSET) & MAX_UNSIGNED;
+    }
+
+    private static IllegalArgumentException invalid(CharSequence value, long status)
+    {
+        String reason;
+        if (status == OUT_OF_RANGE) {
+            reason = "out of range";
+        }
+        else if (status == OCTET_OUT_OF_RANGE) {
+            reason = "octet out of range";
+        }
+        else if (status == UNEXPECTED_CHARACTER) {
+            reason = "unexpected character";
+        }
+        else if (status == MISSING_DIGITS) {
+            reason = "missing digits";
+        }
+        else {
+            reason = "expected 4 octets";
+        }
+        return new IllegalArgumentException("Invalid IP address '" + value + "': " + reason);
+    }
+}
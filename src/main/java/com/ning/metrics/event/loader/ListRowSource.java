@@ -0,0 +1,42 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.io.IOException;
+import java.util.List;
+
+/*
+  Rows already parsed on the caller's thread, e.g. from the action-core json stream.
+*/
+public class ListRowSource implements RowSource
+{
+    private final List<String[]> rows;
+
+    public ListRowSource(List<String[]> rows)
+    {
+        this.rows = rows;
+    }
+
+    public void read(RowConsumer consumer) throws IOException
+    {
+        for (String[] row : rows) {
+            consumer.consume(row);
+        }
+    }
+}
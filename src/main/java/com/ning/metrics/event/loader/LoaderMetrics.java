@@ -0,0 +1,409 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+/*
+  Counters and stage latencies of one export, updated by the parser, the conversion workers and the
+  writer once per batch or segment rather than once per row, so they cost next to nothing:
+  - download: time blocked reading the input (one sample per read, or the whole download with --keepjson),
+  - parse: time to parse each batch of rows, reads of the input included,
+  - convert: time to transform and encode each segment to csv (one pass, the two are not told apart),
+  - write: time to write each segment, compression included.
+  While the export runs, the metrics are registered with the platform MBean server and listed by
+  the MetricsServer; once it is done they can be appended to a summary file, one json object per line.
+*/
+public class LoaderMetrics implements LoaderMetricsMBean
+{
+    private static final Logger log = Logger.getLogger(LoaderMetrics.class);
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final Set<LoaderMetrics> active = new CopyOnWriteArraySet<LoaderMetrics>();
+    private static final Object summaryLock = new Object();
+
+    private final String eventType;
+    private final String path;
+    private final AtomicLong rowsRead = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong rowsWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong rowsRejected = new AtomicLong();
+    private final AtomicLong skippedFields = new AtomicLong();
+    private final AtomicLong missingFields = new AtomicLong();
+    private final Map<String, AtomicLong> columnFailures = new ConcurrentHashMap<String, AtomicLong>();
+    private final Map<String, LatencyHistogram> stages = new LinkedHashMap<String, LatencyHistogram>();
+    private final LatencyHistogram download = stage("download");
+    private final LatencyHistogram parse = stage("parse");
+    private final LatencyHistogram convert = stage("convert");
+    private final LatencyHistogram write = stage("write");
+    private volatile long startMillis = System.currentTimeMillis();
+    private volatile long endMillis = 0;
+    private volatile Boolean succeeded;
+    private ObjectName name;
+
+    public LoaderMetrics(String eventType, String path)
+    {
+        this.eventType = eventType;
+        this.path = path;
+    }
+
+    private LatencyHistogram stage(String stage)
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        stages.put(stage, histogram);
+        return histogram;
+    }
+
+    /**
+     * @return metrics of the exports running in this JVM
+     */
+    public static List<LoaderMetrics> getActive()
+    {
+        return new ArrayList<LoaderMetrics>(active);
+    }
+
+    /**
+     * Export started: restart the clock, register with JMX and the MetricsServer. Does nothing if already started.
+     */
+    public synchronized void start()
+    {
+        if (active.contains(this)) {
+            return;
+        }
+        startMillis = System.currentTimeMillis();
+        endMillis = 0;
+        succeeded = null;
+        active.add(this);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName candidate = new ObjectName("com.ning.metrics.event.loader:type=Export,event=" + ObjectName.quote(String.valueOf(eventType)));
+            if (!server.isRegistered(candidate)) {
+                server.registerMBean(this, candidate);
+                name = candidate;
+            }
+        }
+        catch (JMException e) {
+            log.warn("Unable to register the metrics of " + eventType + " with JMX: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Export done, or failed: stop the clock, unregister
+     *
+     * @return false if the export was not running
+     */
+    public synchronized boolean finish(boolean exported)
+    {
+        if (!active.remove(this)) {
+            return false;
+        }
+        endMillis = System.currentTimeMillis();
+        succeeded = exported;
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            catch (JMException e) {
+                log.warn("Unable to unregister " + name + ": " + e.getLocalizedMessage());
+            }
+            name = null;
+        }
+        return true;
+    }
+
+    public void read(long rows, long bytes)
+    {
+        rowsRead.addAndGet(rows);
+        bytesRead.addAndGet(bytes);
+    }
+
+    public void written(long rows, long bytes)
+    {
+        rowsWritten.addAndGet(rows);
+        bytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * @param rows rows with an invalid value, not written
+     */
+    public void rejected(long rows)
+    {
+        rowsRejected.addAndGet(rows);
+    }
+
+    /**
+     * @param fields event fields that are not in the schema
+     */
+    public void skipped(long fields)
+    {
+        skippedFields.addAndGet(fields);
+    }
+
+    /**
+     * @param fields columns the events did not have, loaded as empty fields
+     */
+    public void missing(long fields)
+    {
+        missingFields.addAndGet(fields);
+    }
+
+    /**
+     * @param column column whose value could not be converted, e.g. an invalid date or IP address
+     */
+    public void columnFailure(String column)
+    {
+        AtomicLong failures = columnFailures.get(column);
+        if (failures == null) {
+            synchronized (columnFailures) {
+                failures = columnFailures.get(column);
+                if (failures == null) {
+                    failures = new AtomicLong();
+                    columnFailures.put(column, failures);
+                }
+            }
+        }
+        failures.incrementAndGet();
+    }
+
+    public LatencyHistogram getDownload()
+    {
+        return download;
+    }
+
+    public LatencyHistogram getParse()
+    {
+        return parse;
+    }
+
+    public LatencyHistogram getConvert()
+    {
+        return convert;
+    }
+
+    public LatencyHistogram getWrite()
+    {
+        return write;
+    }
+
+    public String getEventType()
+    {
+        return eventType;
+    }
+
+    public String getPath()
+    {
+        return path;
+    }
+
+    public long getElapsedMillis()
+    {
+        long end = endMillis;
+        return (end == 0 ? System.currentTimeMillis() : end) - startMillis;
+    }
+
+    public long getRowsRead()
+    {
+        return rowsRead.get();
+    }
+
+    public long getBytesRead()
+    {
+        return bytesRead.get();
+    }
+
+    public long getRowsWritten()
+    {
+        return rowsWritten.get();
+    }
+
+    public long getBytesWritten()
+    {
+        return bytesWritten.get();
+    }
+
+    public long getRowsRejected()
+    {
+        return rowsRejected.get();
+    }
+
+    public long getRowsPerSecond()
+    {
+        return perSecond(rowsWritten.get());
+    }
+
+    public long getBytesPerSecond()
+    {
+        return perSecond(bytesWritten.get());
+    }
+
+    public long getSkippedFields()
+    {
+        return skippedFields.get();
+    }
+
+    public long getMissingFields()
+    {
+        return missingFields.get();
+    }
+
+    public long getColumnFailures()
+    {
+        long failures = 0;
+        for (AtomicLong column : columnFailures.values()) {
+            failures += column.get();
+        }
+        return failures;
+    }
+
+    /**
+     * @return failures by column
+     */
+    public Map<String, Long> getColumnFailuresByColumn()
+    {
+        Map<String, Long> failures = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> column : columnFailures.entrySet()) {
+            failures.put(column.getKey(), column.getValue().get());
+        }
+        return failures;
+    }
+
+    public String getStageLatencies()
+    {
+        StringBuilder latencies = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram> stage : stages.entrySet()) {
+            latencies.append(latencies.length() == 0 ? "" : " ").append(stage.getKey()).append('=')
+                .append(stage.getValue().getPercentileNanos(99) / 1000);
+        }
+        return latencies.toString();
+    }
+
+    public String getJson()
+    {
+        StringWriter json = new StringWriter();
+        try {
+            JsonGenerator generator = jsonFactory.createJsonGenerator(json);
+            writeJson(generator);
+            generator.close();
+        }
+        catch (IOException e) {
+            // a StringWriter does not fail
+            throw new IllegalStateException(e);
+        }
+        return json.toString();
+    }
+
+    /**
+     * Write the metrics as a json object, latencies in microseconds
+     */
+    public void writeJson(JsonGenerator json) throws IOException
+    {
+        json.writeStartObject();
+        json.writeStringField("eventType", eventType);
+        json.writeStringField("path", path);
+        json.writeNumberField("start", startMillis);
+        json.writeNumberField("elapsedMillis", getElapsedMillis());
+        if (succeeded != null) {
+            json.writeBooleanField("succeeded", succeeded);
+        }
+        json.writeNumberField("rowsRead", getRowsRead());
+        json.writeNumberField("bytesRead", getBytesRead());
+        json.writeNumberField("rowsWritten", getRowsWritten());
+        json.writeNumberField("bytesWritten", getBytesWritten());
+        json.writeNumberField("rowsRejected", getRowsRejected());
+        json.writeNumberField("rowsPerSecond", getRowsPerSecond());
+        json.writeNumberField("bytesPerSecond", getBytesPerSecond());
+        json.writeNumberField("skippedFields", getSkippedFields());
+        json.writeNumberField("missingFields", getMissingFields());
+        json.writeObjectFieldStart("columnFailures");
+        for (Map.Entry<String, Long> column : getColumnFailuresByColumn().entrySet()) {
+            json.writeNumberField(column.getKey(), column.getValue());
+        }
+        json.writeEndObject();
+        json.writeObjectFieldStart("stages");
+        for (Map.Entry<String, LatencyHistogram> stage : stages.entrySet()) {
+            LatencyHistogram histogram = stage.getValue();
+            json.writeObjectFieldStart(stage.getKey());
+            json.writeNumberField("count", histogram.getCount());
+            json.writeNumberField("totalMillis", histogram.getTotalNanos() / 1000000);
+            json.writeNumberField("meanMicros", histogram.getMeanNanos() / 1000);
+            json.writeNumberField("p50Micros", histogram.getPercentileNanos(50) / 1000);
+            json.writeNumberField("p90Micros", histogram.getPercentileNanos(90) / 1000);
+            json.writeNumberField("p99Micros", histogram.getPercentileNanos(99) / 1000);
+            json.writeNumberField("maxMicros", histogram.getMaxNanos() / 1000);
+            json.writeEndObject();
+        }
+        json.writeEndObject();
+        json.writeEndObject();
+    }
+
+    /**
+     * Append the metrics to a summary file as a line of json, shared by the jobs of a batch and by successive runs
+     *
+     * @param summary summary file, created if needed
+     * @throws IOException if the file cannot be written
+     */
+    public void appendTo(File summary) throws IOException
+    {
+        String line = getJson() + "\n";
+        synchronized (summaryLock) {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(summary, true), "UTF-8");
+            try {
+                writer.write(line);
+            }
+            finally {
+                writer.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return getRowsWritten() + " rows (" + getRowsPerSecond() + " rows/s, " + getBytesPerSecond() / 1024 + " KB/s) in " + getElapsedMillis()
+            + " ms, " + getRowsRejected() + " rejected rows, " + getSkippedFields() + " skipped fields, " + getColumnFailures()
+            + " column failures; p99 us: " + getStageLatencies();
+    }
+
+    private long perSecond(long count)
+    {
+        long elapsed = getElapsedMillis();
+        return elapsed <= 0 ? 0 : count * 1000 / elapsed;
+    }
+}
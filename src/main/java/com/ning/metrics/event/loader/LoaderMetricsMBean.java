@@ -0,0 +1,62 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+/*
+  JMX view of the LoaderMetrics of a running export.
+*/
+public interface LoaderMetricsMBean
+{
+    String getEventType();
+
+    String getPath();
+
+    long getElapsedMillis();
+
+    long getRowsRead();
+
+    long getBytesRead();
+
+    long getRowsWritten();
+
+    long getBytesWritten();
+
+    long getRowsRejected();
+
+    long getRowsPerSecond();
+
+    long getBytesPerSecond();
+
+    long getSkippedFields();
+
+    long getMissingFields();
+
+    long getColumnFailures();
+
+    /**
+     * @return 99th percentile per stage, in microseconds, e.g. download=120 parse=3400 convert=5100 write=800
+     */
+    String getStageLatencies();
+
+    /**
+     * @return everything, as in the end of run summary
+     */
+    String getJson();
+}
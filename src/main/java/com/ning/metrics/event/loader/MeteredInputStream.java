@@ -0,0 +1,79 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+  Counts the bytes read from the input of an export, and optionally the time blocked in each read
+  (the download stage when reading from action-core). Reads come in buffer sized chunks from the
+  json parser, a clock read per chunk is negligible.
+*/
+public class MeteredInputStream extends FilterInputStream
+{
+    private final LoaderMetrics metrics;
+    private final LatencyHistogram latency;
+
+    /**
+     * @param latency histogram of the time spent in each read, null to count the bytes only
+     */
+    public MeteredInputStream(InputStream in, LoaderMetrics metrics, LatencyHistogram latency)
+    {
+        super(in);
+        this.metrics = metrics;
+        this.latency = latency;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        long start = latency == null ? 0 : System.nanoTime();
+        int b = super.read();
+        done(start, b < 0 ? 0 : 1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        long start = latency == null ? 0 : System.nanoTime();
+        int read = super.read(b, off, len);
+        done(start, Math.max(read, 0));
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        long skipped = super.skip(n);
+        metrics.read(0, skipped);
+        return skipped;
+    }
+
+    private void done(long start, int bytes)
+    {
+        if (latency != null) {
+            latency.record(System.nanoTime() - start);
+        }
+        metrics.read(0, bytes);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+/*
+  Local HTTP endpoint listing the metrics of the exports running in this JVM as a json array:
+  GET http://localhost:<port>/metrics. Bound to the loopback interface only, for a collector or a
+  curl on the box; the same metrics are in JMX under com.ning.metrics.event.loader:type=Export.
+*/
+public class MetricsServer
+{
+    private static final Logger log = Logger.getLogger(MetricsServer.class);
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final HttpServer server;
+
+    /**
+     * @param port port on 127.0.0.1, 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public MetricsServer(int port) throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/metrics", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try {
+                    if (!exchange.getRequestMethod().equals("GET")) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    exchange.getResponseHeaders().set("Content-Type", "application/json");
+                    exchange.sendResponseHeaders(200, 0);
+                    OutputStream body = exchange.getResponseBody();
+                    JsonGenerator json = jsonFactory.createJsonGenerator(body, JsonEncoding.UTF8);
+                    json.writeStartArray();
+                    for (LoaderMetrics metrics : LoaderMetrics.getActive()) {
+                        metrics.writeJson(json);
+                    }
+                    json.writeEndArray();
+                    json.close();
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start()
+    {
+        server.start();
+        log.info("Serving metrics on http://127.0.0.1:" + getPort() + "/metrics");
+    }
+
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    public void stop()
+    {
+        server.stop(0);
+    }
+}
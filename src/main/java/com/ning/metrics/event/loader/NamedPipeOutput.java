@@ -0,0 +1,305 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.log4j.Logger;
+
+/*
+  Writes the csv into a named pipe instead of a file, so that nzload loads the rows while they are
+  being exported. The fifo is created with mkfifo and the load command is started with the fifo path
+  as its last argument (e.g. nzload ... -df). Opening the write end of a fifo blocks until a reader
+  opens the other end: the open is bounded by a timeout and gives up as soon as the load command
+  exits without having opened the fifo. close() signals the end of the data to the reader and waits
+  for the load command to succeed; abort() kills the load command first, so that a failed export is
+  not loaded half way. There is no mode for a reader started elsewhere: it would see the end of an
+  aborted export as a complete one.
+*/
+public class NamedPipeOutput extends OutputStream
+{
+    private static final Logger log = Logger.getLogger(NamedPipeOutput.class);
+    private static final long POLL_INTERVAL = 100;
+
+    private final File fifo;
+    private final Process reader;
+    private final OutputStream out;
+    private boolean closed = false;
+
+    /**
+     * Create the fifo, start the load command and wait for the fifo to be opened for reading
+     *
+     * @param fifo          path of the fifo to create, must not exist
+     * @param loadCommand   command reading the fifo, the fifo path is appended to it
+     * @param openTimeout   how long to wait for the load command to open the fifo, in milliseconds
+     * @throws IOException if the fifo cannot be created, or the load command did not open it in time
+     */
+    public NamedPipeOutput(File fifo, List<String> loadCommand, long openTimeout) throws IOException
+    {
+        if (loadCommand == null || loadCommand.isEmpty()) {
+            throw new IllegalArgumentException("A load command is needed to read " + fifo);
+        }
+        this.fifo = fifo;
+        mkfifo(fifo);
+
+        try {
+            List<String> command = new ArrayList<String>(loadCommand);
+            command.add(fifo.getPath());
+            log.info("Starting " + command);
+            this.reader = new ProcessBuilder(command).redirectErrorStream(true).start();
+            logOutput(reader, command.get(0));
+            this.out = openWriter(openTimeout);
+        }
+        catch (IOException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        try {
+            out.write(b);
+        }
+        catch (IOException e) {
+            throw readerFailure(e);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        try {
+            out.write(b, off, len);
+        }
+        catch (IOException e) {
+            throw readerFailure(e);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        try {
+            out.flush();
+        }
+        catch (IOException e) {
+            throw readerFailure(e);
+        }
+    }
+
+    /**
+     * Close the write end, the reader sees the end of the data, and wait for the load command to exit
+     *
+     * @throws IOException if the load command exits with a non-zero status
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            out.close();
+            int status = waitFor(reader);
+            if (status != 0) {
+                throw new IOException("Load command exited with status " + status + " reading " + fifo);
+            }
+        }
+        finally {
+            delete(fifo);
+        }
+    }
+
+    /**
+     * Kill the load command before closing the pipe, so the rows written so far are not loaded
+     */
+    public void abort()
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        // null if it could not be started
+        if (reader != null) {
+            reader.destroy();
+        }
+        if (out != null) {
+            try {
+                out.close();
+            }
+            catch (IOException e) {
+                log.debug("Unable to close " + fifo + ": " + e.getLocalizedMessage());
+            }
+        }
+        delete(fifo);
+    }
+
+    private FileOutputStream openWriter(long openTimeout) throws IOException
+    {
+        ExecutorService opener = Executors.newSingleThreadExecutor();
+        Future<FileOutputStream> opening = opener.submit(new Callable<FileOutputStream>()
+        {
+            public FileOutputStream call() throws IOException
+            {
+                // blocks until the fifo is opened for reading
+                return new FileOutputStream(fifo);
+            }
+        });
+        opener.shutdown();
+
+        long deadline = System.currentTimeMillis() + openTimeout;
+        try {
+            while (true) {
+                try {
+                    return opening.get(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+                catch (TimeoutException e) {
+                    Integer status = exitStatus(reader);
+                    if (status != null) {
+                        unblock(opening);
+                        throw new IOException("Load command exited with status " + status + " before opening " + fifo);
+                    }
+                    if (System.currentTimeMillis() > deadline) {
+                        unblock(opening);
+                        throw new IOException("No reader opened " + fifo + " within " + openTimeout + " ms");
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            unblock(opening);
+            throw new IOException("Interrupted while waiting for a reader on " + fifo);
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Unable to open " + fifo + ": " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Release the thread blocked opening the write end by opening the read end ourselves
+     */
+    private void unblock(Future<FileOutputStream> opening)
+    {
+        try {
+            new FileInputStream(fifo).close();
+            opening.get().close();
+        }
+        catch (Exception e) {
+            log.debug("Unable to release the writer of " + fifo + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    private IOException readerFailure(IOException cause)
+    {
+        Integer status = exitStatus(reader);
+        String message = "Reader of " + fifo + " closed the pipe early"
+            + (status == null ? "" : " (load command exited with status " + status + ")");
+        return new IOException(message + ": " + cause.getLocalizedMessage(), cause);
+    }
+
+    private static void mkfifo(File fifo) throws IOException
+    {
+        if (fifo.exists()) {
+            throw new IOException(fifo + " already exists");
+        }
+
+        Process mkfifo = new ProcessBuilder("mkfifo", fifo.getPath()).redirectErrorStream(true).start();
+        logOutput(mkfifo, "mkfifo");
+        int status = waitFor(mkfifo);
+        if (status != 0) {
+            throw new IOException("mkfifo " + fifo + " exited with status " + status);
+        }
+    }
+
+    private static Integer exitStatus(Process process)
+    {
+        try {
+            return process.exitValue();
+        }
+        catch (IllegalThreadStateException e) {
+            // still running
+            return null;
+        }
+    }
+
+    private static int waitFor(Process process) throws IOException
+    {
+        try {
+            return process.waitFor();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroy();
+            throw new IOException("Interrupted while waiting for " + process);
+        }
+    }
+
+    private static void delete(File fifo)
+    {
+        if (fifo.exists() && !fifo.delete()) {
+            log.warn("Unable to delete " + fifo);
+        }
+    }
+
+    /**
+     * Copy the output of a child process to the log, it would block once its pipe buffer is full otherwise
+     */
+    private static void logOutput(final Process process, final String name) throws IOException
+    {
+        process.getOutputStream().close();
+        Thread logger = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                BufferedReader lines = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                try {
+                    String line;
+                    while ((line = lines.readLine()) != null) {
+                        log.info(name + ": " + line);
+                    }
+                }
+                catch (IOException e) {
+                    log.debug("Unable to read the output of " + name + ": " + e.getLocalizedMessage());
+                }
+            }
+        }, name + "-output");
+        logger.setDaemon(true);
+        logger.start();
+    }
+}
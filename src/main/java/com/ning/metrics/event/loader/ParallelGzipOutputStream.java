@@ -0,0 +1,241 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+  Gzip on several cores, the way pigz -i does it: the data is cut in blocks, every block is deflated
+  on a pool thread as a complete gzip member, and the members are written in order. A file of
+  concatenated members is a valid gzip file, zcat and gunzip read it whole (so does GZIPInputStream
+  from Java 7 on). Compression is a few percent worse than a single stream, as blocks share no dictionary.
+*/
+public class ParallelGzipOutputStream extends OutputStream
+{
+    private static final byte[] HEADER = new byte[]{
+        (byte) 0x1f, (byte) 0x8b, // magic
+        Deflater.DEFLATED,
+        0, // flags
+        0, 0, 0, 0, // mtime
+        0, // extra flags
+        (byte) 0xff // OS unknown
+    };
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final ExecutorService workers;
+    private final int maxInFlight;
+    private final LinkedList<Future<byte[]>> inFlight = new LinkedList<Future<byte[]>>();
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>();
+    // every deflater of the pool threads, their native zlib memory is released by close()
+    final List<Deflater> allDeflaters = new ArrayList<Deflater>();
+    private byte[] block;
+    private int count = 0;
+    private boolean empty = true;
+    private boolean closed = false;
+
+    /**
+     * @param out       stream receiving the gzip members, closed by close()
+     * @param threads   number of compressing threads
+     * @param blockSize uncompressed size of a gzip member
+     */
+    public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize)
+    {
+        this.out = out;
+        this.blockSize = blockSize;
+        this.block = new byte[blockSize];
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.maxInFlight = threads * 2;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        if (count == blockSize) {
+            submitBlock();
+        }
+        block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0) {
+            if (count == blockSize) {
+                submitBlock();
+            }
+            int chunk = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, block, count, chunk);
+            count += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    /**
+     * Write the members compressed so far. The partial block is kept: gzip members are only cut at block boundaries.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        while (!inFlight.isEmpty() && inFlight.getFirst().isDone()) {
+            writeNext();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            // an empty member for empty output, a zero byte file is not a gzip file
+            if (count > 0 || empty) {
+                submitBlock();
+            }
+            while (!inFlight.isEmpty()) {
+                writeNext();
+            }
+        }
+        finally {
+            workers.shutdownNow();
+            endDeflaters();
+            out.close();
+        }
+    }
+
+    /**
+     * Free the zlib memory of the deflaters, the finalizer of an abandoned Deflater may run much later
+     */
+    private void endDeflaters()
+    {
+        try {
+            // the queued blocks were dropped, a running one is compressed in milliseconds
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // end() waits for a deflate call in progress, the compression of a block still running then fails
+        synchronized (allDeflaters) {
+            for (Deflater deflater : allDeflaters) {
+                deflater.end();
+            }
+            allDeflaters.clear();
+        }
+    }
+
+    private void submitBlock() throws IOException
+    {
+        final byte[] data = block;
+        final int length = count;
+        inFlight.add(workers.submit(new Callable<byte[]>()
+        {
+            public byte[] call()
+            {
+                return compress(data, length);
+            }
+        }));
+        block = new byte[blockSize];
+        count = 0;
+        empty = false;
+
+        while (!inFlight.isEmpty() && (inFlight.size() > maxInFlight || inFlight.getFirst().isDone())) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException
+    {
+        try {
+            out.write(inFlight.removeFirst().get());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing");
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Compression failed: " + e.getCause(), e.getCause());
+        }
+    }
+
+    private byte[] compress(byte[] data, int length)
+    {
+        Deflater deflater = deflaters.get();
+        if (deflater == null) {
+            // raw deflate, the gzip header and trailer are written here
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflaters.set(deflater);
+            synchronized (allDeflaters) {
+                allDeflaters.add(deflater);
+            }
+        }
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+
+        // deflate never expands by more than 5 bytes per 16KB block, plus the stream overhead
+        byte[] member = new byte[HEADER.length + length + length / 1000 + 64 + 8];
+        System.arraycopy(HEADER, 0, member, 0, HEADER.length);
+        int size = HEADER.length;
+        while (!deflater.finished()) {
+            if (size == member.length - 8) {
+                byte[] larger = new byte[member.length * 2];
+                System.arraycopy(member, 0, larger, 0, size);
+                member = larger;
+            }
+            size += deflater.deflate(member, size, member.length - 8 - size);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        size = writeInt(member, size, (int) crc.getValue());
+        size = writeInt(member, size, length);
+
+        byte[] result = new byte[size];
+        System.arraycopy(member, 0, result, 0, size);
+        return result;
+    }
+
+    // little endian, as gzip wants it
+    private static int writeInt(byte[] buffer, int offset, int value)
+    {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >>> 8);
+        buffer[offset + 2] = (byte) (value >>> 16);
+        buffer[offset + 3] = (byte) (value >>> 24);
+        return offset + 4;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+/*
+  Occupancy of the queue between the stages of a ConversionEngine, sampled whenever a source is
+  submitted, and the time each stage spent waiting for another one:
+  - the parser (the caller submitting sources) blocks when the queue is full,
+  - the writer waits for the transformers when the segment at the head of the queue is not converted yet,
+  - the writer is idle when the queue is empty, waiting for the parser.
+  The stage the others wait for is the one limiting throughput.
+*/
+public class PipelineStats
+{
+    private final int capacity;
+    private long samples = 0;
+    private long converting = 0;
+    private long converted = 0;
+    private long parserBlockedNanos = 0;
+    private long writerWaitingNanos = 0;
+    private long writerIdleNanos = 0;
+
+    public PipelineStats(int capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    synchronized void sample(int convertingSegments, int convertedSegments)
+    {
+        samples++;
+        converting += convertingSegments;
+        converted += convertedSegments;
+    }
+
+    synchronized void parserBlocked(long nanos)
+    {
+        parserBlockedNanos += nanos;
+    }
+
+    synchronized void writerWaiting(long nanos)
+    {
+        writerWaitingNanos += nanos;
+    }
+
+    synchronized void writerIdle(long nanos)
+    {
+        writerIdleNanos += nanos;
+    }
+
+    /**
+     * @return number of segments the queue holds, converting or waiting to be written
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * @return average number of segments being converted (or waiting for a transformer thread)
+     */
+    public synchronized double getAverageConverting()
+    {
+        return samples == 0 ? 0 : (double) converting / samples;
+    }
+
+    /**
+     * @return average number of converted segments waiting for the writer
+     */
+    public synchronized double getAverageConverted()
+    {
+        return samples == 0 ? 0 : (double) converted / samples;
+    }
+
+    public synchronized long getParserBlockedMillis()
+    {
+        return parserBlockedNanos / 1000000;
+    }
+
+    public synchronized long getWriterWaitingMillis()
+    {
+        return writerWaitingNanos / 1000000;
+    }
+
+    public synchronized long getWriterIdleMillis()
+    {
+        return writerIdleNanos / 1000000;
+    }
+
+    /**
+     * @return "parser", "transformers" or "writer"
+     */
+    public synchronized String getLimitingStage()
+    {
+        // a starving writer means the parser can't keep up
+        if (parserBlockedNanos < writerIdleNanos) {
+            return "parser";
+        }
+        // the parser is blocked: by segments still converting, or by segments the writer hasn't got to
+        return converted > converting ? "writer" : "transformers";
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("queue of %d segments holding %.1f being converted and %.1f waiting to be written on average; "
+            + "parser blocked %d ms, writer waited %d ms for the transformers and %d ms for the parser; limited by the %s",
+            capacity, getAverageConverting(), getAverageConverted(), getParserBlockedMillis(), getWriterWaitingMillis(), getWriterIdleMillis(), getLimitingStage());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+/*
+  Index-addressed view of the row being converted. The same instance is reused for every row
+  converted by a worker, transformations must not keep a reference to it or to its values array.
+*/
+public class Row
+{
+    private final RowSchema schema;
+    private String[] values;
+
+    public Row(RowSchema schema)
+    {
+        this.schema = schema;
+    }
+
+    void wrap(String[] values)
+    {
+        this.values = values;
+    }
+
+    /**
+     * @param slot slot of the column, see RowSchema.slotOf
+     * @return value of the column, null if the event does not have it
+     */
+    public String get(int slot)
+    {
+        return values[slot];
+    }
+
+    /**
+     * Slower than get(int), transformations should resolve their slots once
+     *
+     * @param name column name
+     * @return value of the column, null if the event does not have it or the column is not in the schema
+     */
+    public String get(String name)
+    {
+        int slot = schema.slotOf(name);
+        return slot < 0 ? null : values[slot];
+    }
+
+    public RowSchema getSchema()
+    {
+        return schema;
+    }
+
+    public int size()
+    {
+        return schema.size();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/*
+  Reads one json event into a row, record boundaries taken from the json structure: the event is
+  everything between its START_OBJECT and the matching END_OBJECT. Values go to the slot of their
+  field, a presence bitmap records which slots were set, and the slots an event does not have are
+  set to null once it is read, so a missing field never takes a value from the next event and the
+  row array can be reused. Fields that are not in the schema are skipped without looking at their
+  value, however deeply nested (skipChildren). A repeated field keeps its last value.
+  Values are the text of their token (a json null is "null"), a structured value is its first
+  token ("{" or "[") as it always was.
+  Not thread safe, use one instance per thread.
+*/
+public class RowAssembler
+{
+    private final RowSchema schema;
+    private final long[] present;
+    private final long lastWordMask;
+    private long skippedFields = 0;
+    private long missingFields = 0;
+
+    public RowAssembler(RowSchema schema)
+    {
+        this.schema = schema;
+        this.present = new long[(schema.size() + 63) >>> 6];
+        int lastWordBits = schema.size() & 63;
+        this.lastWordMask = lastWordBits == 0 ? -1L : (1L << lastWordBits) - 1;
+    }
+
+    /**
+     * Read the event the parser is on
+     *
+     * @param parser positioned on the START_OBJECT of the event, left on its END_OBJECT
+     * @param row    values by slot, every slot is overwritten
+     * @throws IOException if the json is invalid or ends inside the event
+     */
+    public void read(JsonParser parser, String[] row) throws IOException
+    {
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            // field names come out of the parser's symbol table, resolving them does not allocate
+            int slot = schema.slotOf(parser.getCurrentName());
+            parser.nextToken();
+            if (slot >= 0) {
+                set(row, slot, parser.getText());
+            }
+            else {
+                skippedFields++;
+            }
+            parser.skipChildren();
+        }
+        if (token != JsonToken.END_OBJECT) {
+            throw new IOException("Expected the end of an event, got " + token);
+        }
+        complete(row);
+    }
+
+    /**
+     * Set a value of the event being read, for decoders of other formats
+     */
+    void set(String[] row, int slot, String value)
+    {
+        row[slot] = value;
+        present[slot >>> 6] |= 1L << slot;
+    }
+
+    /**
+     * Count a field of the event being read that is not in the schema
+     */
+    void skipped()
+    {
+        skippedFields++;
+    }
+
+    /**
+     * The event is read: null out the slots it did not set
+     */
+    void complete(String[] row)
+    {
+        for (int word = 0; word < present.length; word++) {
+            long absent = ~present[word] & (word == present.length - 1 ? lastWordMask : -1L);
+            missingFields += Long.bitCount(absent);
+            while (absent != 0) {
+                row[(word << 6) + Long.numberOfTrailingZeros(absent)] = null;
+                absent &= absent - 1;
+            }
+        }
+        Arrays.fill(present, 0);
+    }
+
+    public RowSchema getSchema()
+    {
+        return schema;
+    }
+
+    /**
+     * @return fields that are not in the schema, since the last resetCounts
+     */
+    public long getSkippedFields()
+    {
+        return skippedFields;
+    }
+
+    /**
+     * @return columns the events did not have, since the last resetCounts
+     */
+    public long getMissingFields()
+    {
+        return missingFields;
+    }
+
+    public void resetCounts()
+    {
+        skippedFields = 0;
+        missingFields = 0;
+    }
+}
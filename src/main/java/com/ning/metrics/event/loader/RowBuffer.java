@@ -0,0 +1,224 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/*
+  Growable byte buffer transformations write their csv into. Buffers are reused, call reset()
+  rather than allocating a new one per row.
+  UTF-8, ISO-8859-1 and US-ASCII are encoded char by char straight into the buffer, with the same
+  replacement of unmappable characters and broken surrogates ('?') as String.getBytes.
+  Other charsets go through String.getBytes.
+*/
+public class RowBuffer
+{
+    private static final byte REPLACEMENT = '?';
+    private static final int OTHER = 0;
+    private static final int UTF8 = 1;
+    private static final int LATIN1 = 2;
+    private static final int ASCII = 3;
+
+    private final Charset charset;
+    private final int encoding;
+    private byte[] bytes;
+    private int size = 0;
+
+    public RowBuffer(Charset charset, int initialCapacity)
+    {
+        this.charset = charset;
+        this.bytes = new byte[initialCapacity];
+        if (charset.name().equals("UTF-8")) {
+            this.encoding = UTF8;
+        }
+        else if (charset.name().equals("ISO-8859-1")) {
+            this.encoding = LATIN1;
+        }
+        else if (charset.name().equals("US-ASCII")) {
+            this.encoding = ASCII;
+        }
+        else {
+            this.encoding = OTHER;
+        }
+    }
+
+    public RowBuffer append(byte b)
+    {
+        ensureCapacity(1);
+        bytes[size++] = b;
+        return this;
+    }
+
+    public RowBuffer append(byte[] b)
+    {
+        return append(b, 0, b.length);
+    }
+
+    public RowBuffer append(byte[] b, int offset, int length)
+    {
+        ensureCapacity(length);
+        System.arraycopy(b, offset, bytes, size, length);
+        size += length;
+        return this;
+    }
+
+    /**
+     * Append a string in the output charset
+     *
+     * @param s string to append
+     * @return this buffer
+     */
+    public RowBuffer append(CharSequence s)
+    {
+        if (encoding == OTHER) {
+            return append(s.toString().getBytes(charset));
+        }
+
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (size == bytes.length) {
+                    ensureCapacity(length - i);
+                }
+                bytes[size++] = (byte) c;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                appendCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+            }
+            else {
+                appendCodePoint(c);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Append a single character in the output charset.
+     * Only for charsets that are encoded directly, see isDirectlyEncoded.
+     *
+     * @param codePoint unicode code point; a lone surrogate is written as a replacement character
+     * @return this buffer
+     */
+    public RowBuffer appendCodePoint(int codePoint)
+    {
+        if (codePoint < 0x80) {
+            return append((byte) codePoint);
+        }
+        if (encoding == LATIN1) {
+            return append(codePoint < 0x100 ? (byte) codePoint : REPLACEMENT);
+        }
+        if (encoding == ASCII || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+            return append(REPLACEMENT);
+        }
+
+        ensureCapacity(4);
+        if (codePoint < 0x800) {
+            bytes[size++] = (byte) (0xC0 | (codePoint >> 6));
+        }
+        else if (codePoint < 0x10000) {
+            bytes[size++] = (byte) (0xE0 | (codePoint >> 12));
+            bytes[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        }
+        else {
+            bytes[size++] = (byte) (0xF0 | (codePoint >> 18));
+            bytes[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            bytes[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        }
+        bytes[size++] = (byte) (0x80 | (codePoint & 0x3F));
+        return this;
+    }
+
+    /**
+     * Append the charset's replacement for a character it cannot encode
+     *
+     * @return this buffer
+     */
+    public RowBuffer appendReplacement()
+    {
+        return append(REPLACEMENT);
+    }
+
+    /**
+     * @return true if appendCodePoint can be used, i.e. the charset is UTF-8, ISO-8859-1 or US-ASCII
+     */
+    public boolean isDirectlyEncoded()
+    {
+        return encoding != OTHER;
+    }
+
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void reset()
+    {
+        size = 0;
+    }
+
+    public byte byteAt(int index)
+    {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " of a buffer of " + size + " bytes");
+        }
+        return bytes[index];
+    }
+
+    /**
+     * Drop the end of the buffer, e.g. the newline of a line to append columns to
+     *
+     * @param length bytes to keep
+     */
+    public void truncate(int length)
+    {
+        if (length > size) {
+            throw new IndexOutOfBoundsException("Cannot truncate a buffer of " + size + " bytes to " + length);
+        }
+        size = length;
+    }
+
+    public void writeTo(OutputStream out) throws IOException
+    {
+        out.write(bytes, 0, size);
+    }
+
+    public byte[] toByteArray()
+    {
+        byte[] copy = new byte[size];
+        System.arraycopy(bytes, 0, copy, 0, size);
+        return copy;
+    }
+
+    private void ensureCapacity(int extra)
+    {
+        if (size + extra > bytes.length) {
+            byte[] grown = new byte[Math.max(bytes.length * 2, size + extra)];
+            System.arraycopy(bytes, 0, grown, 0, size);
+            bytes = grown;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import com.ning.metrics.goodwill.access.GoodwillSchemaField;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+  Maps column names to their slot in an index-addressed row, so that a field name read from
+  the json stream is resolved without scanning the column list. Names live in an open-addressing
+  table; Jackson hands out interned field names, so a hit is normally a reference comparison.
+  Schemas built from Goodwill fields also resolve the field ids used by the binary event formats.
+*/
+public class RowSchema
+{
+    private final List<GoodwillSchemaField> fields;
+    private final String[] names;
+    private final String[] types;
+    private final String[] table;
+    private final int[] slots;
+    private final int mask;
+    private final int[] slotsById;
+
+    public RowSchema(List<GoodwillSchemaField> fields)
+    {
+        this(fields, namesOf(fields), typesOf(fields));
+    }
+
+    /**
+     * Schema without Goodwill fields, for sources that only need the column names
+     *
+     * @param names column names, in output order
+     */
+    public RowSchema(String... names)
+    {
+        this(null, names, null);
+    }
+
+    /**
+     * Schema without Goodwill fields, e.g. for tests
+     *
+     * @param names column names, in output order
+     * @param types Goodwill type names of the columns (STRING, DATE, ...)
+     */
+    public RowSchema(String[] names, String[] types)
+    {
+        this(null, names, types);
+    }
+
+    private RowSchema(List<GoodwillSchemaField> fields, String[] names, String[] types)
+    {
+        if (types != null && types.length != names.length) {
+            throw new IllegalArgumentException("Expected " + names.length + " column types, got " + types.length);
+        }
+        this.fields = fields;
+        this.types = types;
+        this.names = new String[names.length];
+
+        int capacity = 2;
+        while (capacity < names.length * 2) {
+            capacity <<= 1;
+        }
+        this.table = new String[capacity];
+        this.slots = new int[capacity];
+        this.mask = capacity - 1;
+
+        for (int slot = 0; slot < names.length; slot++) {
+            String name = names[slot].intern();
+            this.names[slot] = name;
+            int bucket = bucketOf(name);
+            while (table[bucket] != null && !table[bucket].equals(name)) {
+                bucket = (bucket + 1) & mask;
+            }
+            // on duplicates the first column wins, as ArrayList.indexOf did
+            if (table[bucket] == null) {
+                table[bucket] = name;
+                slots[bucket] = slot;
+            }
+        }
+
+        this.slotsById = fields == null ? new int[0] : slotsById(fields);
+    }
+
+    /**
+     * @param name column name, ideally interned
+     * @return slot of the column in a row, -1 if the name is not part of the schema
+     */
+    public int slotOf(String name)
+    {
+        int bucket = bucketOf(name);
+        String candidate;
+        while ((candidate = table[bucket]) != null) {
+            if (candidate == name || candidate.equals(name)) {
+                return slots[bucket];
+            }
+            bucket = (bucket + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @param id Goodwill field id
+     * @return slot of the field in a row, -1 if the field is not part of the schema
+     */
+    public int slotOfId(int id)
+    {
+        return id >= 0 && id < slotsById.length ? slotsById[id] : -1;
+    }
+
+    public String getName(int slot)
+    {
+        return names[slot];
+    }
+
+    /**
+     * @param slot slot of the column
+     * @return Goodwill type name of the column (STRING, DATE, ...), null if the schema was built from names only
+     */
+    public String getType(int slot)
+    {
+        return types == null ? null : types[slot];
+    }
+
+    /**
+     * @return Goodwill fields in slot order, null if the schema was built from names only
+     */
+    public List<GoodwillSchemaField> getFields()
+    {
+        return fields;
+    }
+
+    public int size()
+    {
+        return names.length;
+    }
+
+    private int bucketOf(String name)
+    {
+        // String caches its hash code; spread the high bits as HashMap does
+        int h = name.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int[] slotsById(List<GoodwillSchemaField> fields)
+    {
+        int maxId = -1;
+        for (GoodwillSchemaField field : fields) {
+            maxId = Math.max(maxId, field.getId());
+        }
+        int[] slotsById = new int[maxId + 1];
+        Arrays.fill(slotsById, -1);
+        for (int slot = fields.size() - 1; slot >= 0; slot--) {
+            int id = fields.get(slot).getId();
+            // a field without id is only found by name; the first column wins, as for names
+            if (id >= 0) {
+                slotsById[id] = slot;
+            }
+        }
+        return slotsById;
+    }
+
+    private static String[] namesOf(List<GoodwillSchemaField> fields)
+    {
+        String[] names = new String[fields.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = fields.get(i).getName();
+        }
+        return names;
+    }
+
+    private static String[] typesOf(List<GoodwillSchemaField> fields)
+    {
+        String[] types = new String[fields.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = fields.get(i).getType().toString();
+        }
+        return types;
+    }
+}
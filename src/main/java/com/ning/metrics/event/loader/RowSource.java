@@ -0,0 +1,37 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.io.IOException;
+
+/*
+  A unit of conversion work handed to the ConversionEngine: a batch of rows parsed from
+  the action-core json stream, or a split of an event file read directly from HDFS.
+  Sources are read on the engine's worker threads.
+*/
+public interface RowSource
+{
+    /**
+     * Feed every row of this source to the consumer, in order
+     *
+     * @param consumer receives the rows; a row may be reused once consume returns
+     * @throws IOException if the rows cannot be read or converted
+     */
+    public void read(RowConsumer consumer) throws IOException;
+}
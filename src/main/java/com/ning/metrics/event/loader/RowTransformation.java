@@ -0,0 +1,34 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.io.IOException;
+
+/*
+  Second generation transformation API, called directly for every row (no reflection, no boxing).
+  The row is an index-addressed view reused across rows; the csv line, including its trailing
+  newline, is appended to the caller's buffer. Implementations get a no-arg or a RowSchema
+  constructor and are created once per worker thread, so they may keep per-row scratch state.
+
+  Classes implementing the original DataTransformation interface keep working through DataTransformationAdapter.
+*/
+public interface RowTransformation
+{
+    public void transformRow(Row row, RowBuffer output, String delimiter) throws IOException;
+}
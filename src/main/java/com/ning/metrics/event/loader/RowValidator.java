@@ -0,0 +1,273 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+/*
+  Checks the values of a row against the Goodwill types of their columns before the row is
+  converted, without parsing them into objects or throwing: a malformed number or IP address is found
+  by scanning its characters, not by catching a NumberFormatException or IllegalArgumentException per cell.
+  A missing or empty value is valid (it is loaded as an empty field). STRING values are always valid.
+  A row with an invalid value is rejected as a whole, with the reason and the file it came from, as a
+  line of json: {"file": ..., "reason": ..., "row": {"column": "value", ...}}.
+  Thread safe, shared by the workers of a conversion.
+*/
+public class RowValidator
+{
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final byte ANY = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte SHORT = 3;
+    private static final byte INTEGER = 4;
+    private static final byte LONG = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte IP = 7;
+    private static final String[] BOOLEANS = {"true", "false", "t", "f", "yes", "no", "y", "n", "on", "off", "1", "0"};
+
+    private final RowSchema schema;
+    private final byte[] columnTypes;
+    private final int[] checkedSlots;
+
+    public RowValidator(RowSchema schema)
+    {
+        this.schema = schema;
+        this.columnTypes = new byte[schema.size()];
+        int checked = 0;
+        for (int slot = 0; slot < columnTypes.length; slot++) {
+            columnTypes[slot] = typeOf(schema.getType(slot));
+            if (columnTypes[slot] != ANY) {
+                checked++;
+            }
+        }
+        // STRING columns, the bulk of most events, are not even looked at
+        this.checkedSlots = new int[checked];
+        checked = 0;
+        for (int slot = 0; slot < columnTypes.length; slot++) {
+            if (columnTypes[slot] != ANY) {
+                checkedSlots[checked++] = slot;
+            }
+        }
+    }
+
+    private static byte typeOf(String type)
+    {
+        if (type == null) {
+            throw new IllegalArgumentException("Validation needs the column types of the schema");
+        }
+        if (type.equals("BOOLEAN")) {
+            return BOOLEAN;
+        }
+        if (type.equals("BYTE")) {
+            return BYTE;
+        }
+        if (type.equals("SHORT")) {
+            return SHORT;
+        }
+        if (type.equals("INTEGER")) {
+            return INTEGER;
+        }
+        if (type.equals("LONG") || type.equals("DATE")) {
+            return LONG;
+        }
+        if (type.equals("DOUBLE")) {
+            return DOUBLE;
+        }
+        if (type.equals("IP")) {
+            return IP;
+        }
+        return ANY;
+    }
+
+    /**
+     * @param values  values of the row, by slot
+     * @param metrics counts the invalid values by column, may be null
+     * @return slot of the first invalid value, -1 if the row is valid
+     */
+    public int validate(String[] values, LoaderMetrics metrics)
+    {
+        int invalid = -1;
+        for (int slot : checkedSlots) {
+            String value = values[slot];
+            if (value == null || value.length() == 0 || isValid(columnTypes[slot], value)) {
+                continue;
+            }
+            if (invalid < 0) {
+                invalid = slot;
+            }
+            if (metrics == null) {
+                break;
+            }
+            metrics.columnFailure(schema.getName(slot));
+        }
+        return invalid;
+    }
+
+    /**
+     * @return the json line of a rejected row
+     */
+    public String reject(String[] values, int invalidSlot, String file)
+    {
+        StringWriter line = new StringWriter();
+        try {
+            JsonGenerator json = jsonFactory.createJsonGenerator(line);
+            json.writeStartObject();
+            json.writeStringField("file", file);
+            json.writeStringField("reason", "invalid " + schema.getType(invalidSlot) + " in " + schema.getName(invalidSlot));
+            json.writeObjectFieldStart("row");
+            for (int slot = 0; slot < values.length; slot++) {
+                json.writeStringField(schema.getName(slot), values[slot]);
+            }
+            json.writeEndObject();
+            json.writeEndObject();
+            json.close();
+        }
+        catch (IOException e) {
+            // a StringWriter does not fail
+            throw new IllegalStateException(e);
+        }
+        return line.append('\n').toString();
+    }
+
+    private static boolean isValid(byte type, String value)
+    {
+        switch (type) {
+            case BOOLEAN:
+                for (String b : BOOLEANS) {
+                    if (b.equalsIgnoreCase(value)) {
+                        return true;
+                    }
+                }
+                return false;
+            case BYTE:
+                return isInteger(value, Byte.MIN_VALUE, Byte.MAX_VALUE);
+            case SHORT:
+                return isInteger(value, Short.MIN_VALUE, Short.MAX_VALUE);
+            case INTEGER:
+                return isInteger(value, Integer.MIN_VALUE, Integer.MAX_VALUE);
+            case LONG:
+                return isInteger(value, Long.MIN_VALUE, Long.MAX_VALUE);
+            case DOUBLE:
+                return isDecimal(value);
+            case IP:
+                return IpAddresses.isValid(value);
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @return true if Long.valueOf reads the value and it is in [min, max]
+     */
+    static boolean isInteger(String value, long min, long max)
+    {
+        int length = value.length();
+        int i = 0;
+        boolean negative = false;
+        char first = value.charAt(0);
+        if (first == '-' || first == '+') {
+            if (length == 1) {
+                return false;
+            }
+            negative = first == '-';
+            i++;
+        }
+
+        // accumulate negatively, as Long.parseLong does, so that Long.MIN_VALUE fits
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multiplyMin = limit / 10;
+        long result = 0;
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                // Long.parseLong also takes non-ascii unicode digits
+                return c >= 0x80 && isIntegerSlow(value, min, max);
+            }
+            int digit = c - '0';
+            if (result < multiplyMin) {
+                return false;
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                return false;
+            }
+            result -= digit;
+        }
+        long parsed = negative ? result : -result;
+        return parsed >= min && parsed <= max;
+    }
+
+    private static boolean isIntegerSlow(String value, long min, long max)
+    {
+        try {
+            long parsed = Long.parseLong(value);
+            return parsed >= min && parsed <= max;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true for a finite decimal number: [+-]digits[.digits][e[+-]digits], digits on at least one side of the point
+     */
+    static boolean isDecimal(String value)
+    {
+        int length = value.length();
+        int i = 0;
+        if (value.charAt(0) == '-' || value.charAt(0) == '+') {
+            i++;
+        }
+        int digits = 0;
+        while (i < length && value.charAt(i) >= '0' && value.charAt(i) <= '9') {
+            i++;
+            digits++;
+        }
+        if (i < length && value.charAt(i) == '.') {
+            i++;
+            while (i < length && value.charAt(i) >= '0' && value.charAt(i) <= '9') {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            return false;
+        }
+        if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+            i++;
+            if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+                i++;
+            }
+            int exponentDigits = 0;
+            while (i < length && value.charAt(i) >= '0' && value.charAt(i) <= '9') {
+                i++;
+                exponentDigits++;
+            }
+            if (exponentDigits == 0) {
+                return false;
+            }
+        }
+        return i == length;
+    }
+}
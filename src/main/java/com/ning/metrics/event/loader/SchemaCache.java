@@ -0,0 +1,349 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import com.ning.metrics.goodwill.access.GoodwillAccessor;
+import com.ning.metrics.goodwill.access.GoodwillSchema;
+import com.ning.metrics.goodwill.access.GoodwillSchemaField;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/*
+  Goodwill schemas by event type, kept in memory and optionally snapshotted on disk, one json file per
+  event type, so that a loader run does not need goodwill when a fresh enough snapshot exists.
+  Entries older than the TTL are fetched again; if goodwill cannot be reached, or does not know the
+  event any more, the stale entry is used with a warning rather than failing the export.
+  Snapshots written by another snapshot format version, or for another goodwill, are ignored.
+*/
+public class SchemaCache
+{
+    private static final Logger log = Logger.getLogger(SchemaCache.class);
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int FETCH_ATTEMPTS = 5;
+    public static final long DEFAULT_TTL = 60 * 60 * 1000L;
+
+    // in-memory caches shared by the lookups of a process, by goodwill host and port
+    private static final Map<String, SchemaCache> registrarCaches = new HashMap<String, SchemaCache>();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final String host;
+    private final int port;
+    private final File snapshotDir;
+    private final long ttl;
+    private final Map<String, Snapshot> schemas = new HashMap<String, Snapshot>();
+    private GoodwillAccessor accessor;
+
+    /**
+     * @param host        goodwill host
+     * @param port        goodwill port
+     * @param snapshotDir directory of the on-disk snapshots, created if needed. Null to keep the schemas in memory only
+     * @param ttl         age in milliseconds after which a schema is fetched again
+     */
+    public SchemaCache(String host, int port, File snapshotDir, long ttl)
+    {
+        this.host = host;
+        this.port = port;
+        this.snapshotDir = snapshotDir == null ? null : new File(snapshotDir, host + "_" + port);
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return the in-memory cache shared by all lookups against this goodwill in the process
+     */
+    public static SchemaCache forRegistrar(String host, int port)
+    {
+        synchronized (registrarCaches) {
+            String key = host + ":" + port;
+            SchemaCache cache = registrarCaches.get(key);
+            if (cache == null) {
+                cache = new SchemaCache(host, port, null, DEFAULT_TTL);
+                registrarCaches.put(key, cache);
+            }
+            return cache;
+        }
+    }
+
+    public String getHost()
+    {
+        return host;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    /**
+     * @param typeName event type
+     * @return its schema, from memory, the snapshot or goodwill, in that order. Null if unknown.
+     */
+    public synchronized GoodwillSchema get(String typeName)
+    {
+        Snapshot cached = schemas.get(typeName);
+        if (cached == null) {
+            cached = readSnapshot(typeName);
+            if (cached != null) {
+                schemas.put(typeName, cached);
+            }
+        }
+        if (cached != null && isFresh(cached)) {
+            return cached.schema;
+        }
+
+        GoodwillSchema schema;
+        try {
+            schema = fetch(typeName);
+        }
+        catch (RuntimeException e) {
+            if (cached == null) {
+                throw e;
+            }
+            log.warn("Unable to refresh the schema of " + typeName + " from " + host + ", using the one fetched at " + cached.fetchedAt + ": " + e);
+            return cached.schema;
+        }
+
+        if (schema == null) {
+            if (cached != null) {
+                log.warn(host + " does not know " + typeName + " any more, using the schema fetched at " + cached.fetchedAt);
+                return cached.schema;
+            }
+            return null;
+        }
+
+        store(typeName, schema, cached);
+        return schema;
+    }
+
+    /**
+     * Fetch the schemas of several event types with a single goodwill request, unless they are all fresh already
+     *
+     * @param typeNames event types about to be exported
+     * @return number of these event types known to goodwill or the cache
+     */
+    public synchronized int prefetch(Collection<String> typeNames)
+    {
+        Set<String> missing = new HashSet<String>();
+        for (String typeName : typeNames) {
+            Snapshot cached = schemas.get(typeName);
+            if (cached == null) {
+                cached = readSnapshot(typeName);
+                if (cached != null) {
+                    schemas.put(typeName, cached);
+                }
+            }
+            if (cached == null || !isFresh(cached)) {
+                missing.add(typeName);
+            }
+        }
+        if (missing.isEmpty()) {
+            return typeNames.size();
+        }
+
+        List<GoodwillSchema> all = fetchAll();
+        if (all == null) {
+            log.warn("Unable to prefetch schemas from " + host + ", " + missing.size() + " event types will be looked up one by one");
+        }
+        else {
+            for (GoodwillSchema schema : all) {
+                if (missing.contains(schema.getName())) {
+                    store(schema.getName(), schema, schemas.get(schema.getName()));
+                }
+            }
+        }
+
+        int known = 0;
+        for (String typeName : typeNames) {
+            if (schemas.containsKey(typeName)) {
+                known++;
+            }
+            else {
+                log.warn(host + " does not know " + typeName);
+            }
+        }
+        return known;
+    }
+
+    /**
+     * Gets a schema from the type registrar or null if unknown. Goodwill is asked up to 5 times.
+     *
+     * @param typeName Schema name to lookup
+     * @return Goodwill schema associate to the name
+     */
+    protected GoodwillSchema fetch(String typeName)
+    {
+        for (int i = 0; i < FETCH_ATTEMPTS; i++) {
+            try {
+                Future<GoodwillSchema> typeFuture = getAccessor().getSchema(typeName);
+                if (typeFuture != null) {
+                    return typeFuture.get();
+                }
+            }
+            catch (ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return all the schemas goodwill knows, null if they could not be fetched
+     */
+    protected List<GoodwillSchema> fetchAll()
+    {
+        try {
+            Future<List<GoodwillSchema>> schemata = getAccessor().getSchemata();
+            return schemata == null ? null : schemata.get();
+        }
+        catch (ExecutionException e) {
+            log.warn("Unable to fetch the schemas from " + host + ": " + e.getCause());
+            return null;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private GoodwillAccessor getAccessor()
+    {
+        // one client for all the lookups against this goodwill
+        if (accessor == null) {
+            accessor = new GoodwillAccessor(host, port);
+        }
+        return accessor;
+    }
+
+    private boolean isFresh(Snapshot snapshot)
+    {
+        return System.currentTimeMillis() - snapshot.fetchedAt < ttl;
+    }
+
+    private void store(String typeName, GoodwillSchema schema, Snapshot previous)
+    {
+        if (previous != null && !sameFields(previous.schema, schema)) {
+            log.info("Schema of " + typeName + " changed since " + previous.fetchedAt);
+        }
+
+        Snapshot snapshot = new Snapshot();
+        snapshot.version = SNAPSHOT_VERSION;
+        snapshot.fetchedAt = System.currentTimeMillis();
+        snapshot.schema = schema;
+        schemas.put(typeName, snapshot);
+        writeSnapshot(typeName, snapshot);
+    }
+
+    private Snapshot readSnapshot(String typeName)
+    {
+        if (snapshotDir == null) {
+            return null;
+        }
+        File file = snapshotFile(typeName);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            Snapshot snapshot = mapper.readValue(file, Snapshot.class);
+            if (snapshot.version != SNAPSHOT_VERSION || snapshot.schema == null) {
+                log.info("Ignoring " + file + ", written by snapshot format " + snapshot.version);
+                return null;
+            }
+            return snapshot;
+        }
+        catch (IOException e) {
+            log.warn("Ignoring unreadable snapshot " + file + ": " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    private void writeSnapshot(String typeName, Snapshot snapshot)
+    {
+        if (snapshotDir == null) {
+            return;
+        }
+        if (!snapshotDir.isDirectory() && !snapshotDir.mkdirs()) {
+            log.warn("Unable to create " + snapshotDir + ", the schema of " + typeName + " is not snapshotted");
+            return;
+        }
+
+        // write aside then rename, so concurrent runs never read a partial snapshot
+        File file = snapshotFile(typeName);
+        File temporary = new File(snapshotDir, file.getName() + "." + Thread.currentThread().getId() + "-" + System.nanoTime() + ".tmp");
+        try {
+            mapper.writeValue(temporary, snapshot);
+            if (!temporary.renameTo(file)) {
+                file.delete();
+                if (!temporary.renameTo(file)) {
+                    throw new IOException("Unable to rename " + temporary + " to " + file);
+                }
+            }
+        }
+        catch (IOException e) {
+            log.warn("Unable to snapshot the schema of " + typeName + ": " + e.getLocalizedMessage());
+            temporary.delete();
+        }
+    }
+
+    private File snapshotFile(String typeName)
+    {
+        return new File(snapshotDir, typeName + ".json");
+    }
+
+    private static boolean sameFields(GoodwillSchema a, GoodwillSchema b)
+    {
+        List<GoodwillSchemaField> first = a.getSchema();
+        List<GoodwillSchemaField> second = b.getSchema();
+        if (first.size() != second.size()) {
+            return false;
+        }
+        for (int i = 0; i < first.size(); i++) {
+            GoodwillSchemaField x = first.get(i);
+            GoodwillSchemaField y = second.get(i);
+            if (!x.getName().equals(y.getName()) || x.getId() != y.getId() || !String.valueOf(x.getType()).equals(String.valueOf(y.getType()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * On-disk (and in-memory) form of a cached schema
+     */
+    public static class Snapshot
+    {
+        public int version;
+        public long fetchedAt;
+        public GoodwillSchema schema;
+    }
+}
@@ -18,14 +18,11 @@
 
 package com.ning.metrics.event.loader;
 
-import com.ning.metrics.goodwill.access.GoodwillAccessor;
 import com.ning.metrics.goodwill.access.GoodwillSchema;
 import com.ning.metrics.goodwill.access.GoodwillSchemaField;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 import org.apache.log4j.Logger;
 
 /*
@@ -37,16 +34,29 @@ public class SchemaLookup
     private final String eventName;
     private final int maxId;
     public final List<GoodwillSchemaField> fields;
+    private final RowSchema rowSchema;
     private final String goodwill_host;
+    private final SchemaCache schemaCache;
     private static final int GOODWILL_PORT = 8080;
     private static final Logger log = Logger.getLogger(EventLoader.class);
 
 
     // class is used if you want to feed a new custom schema or just an event to lookup from goodwill.
     public SchemaLookup(String eventName, String goodwill_host, List<String> inputFields)
+    {
+        this(eventName, SchemaCache.forRegistrar(goodwill_host, GOODWILL_PORT), goodwill_host, inputFields);
+    }
+
+    public SchemaLookup(String eventName, SchemaCache schemaCache, List<String> inputFields)
+    {
+        this(eventName, schemaCache, schemaCache.getHost(), inputFields);
+    }
+
+    private SchemaLookup(String eventName, SchemaCache schemaCache, String goodwill_host, List<String> inputFields)
     {
         this.eventName = eventName;
         this.goodwill_host =goodwill_host;
+        this.schemaCache = schemaCache;
         GoodwillSchema jsonEventType = getRegisteredSchema(eventName);
 
         // did we find the type
@@ -76,6 +86,7 @@ public class SchemaLookup
 
             this.fields = Collections.unmodifiableList(outputFields);
         }
+        this.rowSchema = new RowSchema(fields);
     }
 
     public ArrayList<String> getColumns()
@@ -88,6 +99,14 @@ public class SchemaLookup
         return eventFields;
     }
 
+    /**
+     * @return name to slot resolution for the output fields, built once per lookup
+     */
+    public RowSchema getRowSchema()
+    {
+        return rowSchema;
+    }
+
     public String getEventName()
     {
         return eventName;
@@ -117,25 +136,6 @@ public class SchemaLookup
      */
     protected GoodwillSchema getRegisteredSchema(String typeName)
     {
-        GoodwillAccessor typeRegistrar = new GoodwillAccessor(goodwill_host, GOODWILL_PORT);
-
-        for (int i = 0; i < 5; i++) {
-            try {
-                Future<GoodwillSchema> typeFuture = typeRegistrar.getSchema(typeName);
-                if (typeFuture != null) {
-                    return typeFuture.get();
-                }
-            }
-            catch (ExecutionException e) {
-                Thread.currentThread().interrupt();
-                throw new RuntimeException(e);
-            }
-            catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new RuntimeException(e);
-            }
-        }
-
-        return null;
+        return schemaCache.get(typeName);
     }
 }
\ No newline at end of file
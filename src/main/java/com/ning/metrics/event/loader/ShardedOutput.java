@@ -0,0 +1,228 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/*
+  Splits the csv over several files, so nzload can load them in parallel. Each shard file has its own
+  buffered stream and writer thread. finish() writes a manifest next to the shards, one line per shard
+  file with its row count, separated by a tab, for the load script.
+  Not thread safe: all segments are handed over by the thread writing the conversion results.
+*/
+public class ShardedOutput implements Closeable
+{
+    private static final Logger log = Logger.getLogger(ShardedOutput.class);
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    // segments waiting to be written, per shard, before the caller blocks
+    private static final int MAX_PENDING = 4;
+
+    private final String manifest;
+    private final Shard[] shards;
+
+    /**
+     * @param prefix path prefix of the files: prefix-000.csv, prefix-001.csv, ... and prefix.manifest
+     * @param count  number of shard files
+     * @throws IOException if a shard file cannot be created
+     */
+    public ShardedOutput(String prefix, int count) throws IOException
+    {
+        this(prefix, count, EventLoaderConfiguration.Compression.NONE, 1);
+    }
+
+    /**
+     * @param prefix             path prefix of the files: prefix-000.csv.gz, ... and prefix.manifest
+     * @param count              number of shard files
+     * @param compression        compression of the shard files
+     * @param compressionThreads compressing threads per shard with PARALLEL_GZIP
+     * @throws IOException if a shard file cannot be created
+     */
+    public ShardedOutput(String prefix, int count, EventLoaderConfiguration.Compression compression, int compressionThreads) throws IOException
+    {
+        if (count < 1) {
+            throw new IllegalArgumentException("Invalid number of shards: " + count);
+        }
+
+        this.manifest = prefix + ".manifest";
+        this.shards = new Shard[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                String file = String.format("%s-%03d.csv", prefix, i) + CompressedStreams.extension(compression);
+                shards[i] = new Shard(file, compression, compressionThreads);
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public int getShardCount()
+    {
+        return shards.length;
+    }
+
+    /**
+     * Queue csv rows for a shard. The buffer must not be modified afterwards.
+     *
+     * @param shard shard index
+     * @param csv   complete csv lines
+     * @param rows  number of lines in the buffer
+     * @throws IOException if a previous write to this shard failed
+     */
+    public void write(int shard, RowBuffer csv, int rows) throws IOException
+    {
+        if (rows == 0) {
+            return;
+        }
+        shards[shard].write(csv, rows);
+    }
+
+    /**
+     * Write the outstanding segments, close the shard files and write the manifest
+     *
+     * @throws IOException if a shard or the manifest could not be written
+     */
+    public void finish() throws IOException
+    {
+        try {
+            for (Shard shard : shards) {
+                shard.finish();
+            }
+
+            Writer writer = new OutputStreamWriter(new FileOutputStream(manifest), "UTF-8");
+            try {
+                for (Shard shard : shards) {
+                    writer.write(shard.file + "\t" + shard.rows + "\n");
+                }
+            }
+            finally {
+                writer.close();
+            }
+            log.info("Wrote " + shards.length + " shards, listed in " + manifest);
+        }
+        finally {
+            close();
+        }
+    }
+
+    public long getRowCount(int shard)
+    {
+        return shards[shard].rows;
+    }
+
+    /**
+     * Stop the writer threads and close the shard files, discarding the outstanding segments
+     */
+    public void close()
+    {
+        for (Shard shard : shards) {
+            if (shard != null) {
+                shard.close();
+            }
+        }
+    }
+
+    private static class Shard
+    {
+        private final String file;
+        private final OutputStream out;
+        private final ExecutorService writer = Executors.newSingleThreadExecutor();
+        private final LinkedList<Future<Void>> pending = new LinkedList<Future<Void>>();
+        private long rows = 0;
+
+        private Shard(String file, EventLoaderConfiguration.Compression compression, int compressionThreads) throws IOException
+        {
+            this.file = file;
+            this.out = new BufferedOutputStream(CompressedStreams.compress(new FileOutputStream(file), compression, compressionThreads), BUFFER_SIZE);
+        }
+
+        private void write(final RowBuffer csv, int rows) throws IOException
+        {
+            pending.add(writer.submit(new Callable<Void>()
+            {
+                public Void call() throws IOException
+                {
+                    csv.writeTo(out);
+                    return null;
+                }
+            }));
+            this.rows += rows;
+
+            while (!pending.isEmpty() && (pending.size() > MAX_PENDING || pending.getFirst().isDone())) {
+                waitForNext();
+            }
+        }
+
+        private void finish() throws IOException
+        {
+            while (!pending.isEmpty()) {
+                waitForNext();
+            }
+            // nothing is running on the writer thread any more
+            out.close();
+        }
+
+        private void waitForNext() throws IOException
+        {
+            try {
+                pending.removeFirst().get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing " + file);
+            }
+            catch (ExecutionException e) {
+                throw new IOException("Unable to write " + file + ": " + e.getCause(), e.getCause());
+            }
+        }
+
+        private void close()
+        {
+            writer.shutdownNow();
+            try {
+                // let a write in progress complete before closing the stream under it
+                writer.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                out.close();
+            }
+            catch (IOException e) {
+                log.debug("Unable to close " + file + ": " + e.getLocalizedMessage());
+            }
+        }
+    }
+}
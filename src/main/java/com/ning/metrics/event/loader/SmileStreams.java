@@ -0,0 +1,146 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.codehaus.jackson.smile.SmileGenerator;
+
+/*
+  Event renderings are either json text or Smile, the binary json of Jackson: smaller on disk and
+  much cheaper to tokenize, field names and repeated values are back-references. The format is
+  sniffed from the Smile header (":)\n"), looked for once the stream is decompressed, so a download,
+  a kept file or a SequenceFile value can be either. Both parsers hand out the same tokens and the
+  same text, readers of the events do not know which one they read.
+*/
+public class SmileStreams
+{
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final byte[] HEADER = {':', ')', '\n'};
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final SmileFactory smileFactory = new SmileFactory();
+
+    static {
+        // events repeat the same short values (event types, countries, hosts...)
+        smileFactory.configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, true);
+    }
+
+    private SmileStreams()
+    {
+    }
+
+    /**
+     * @param in json text or Smile, closed when the parser is closed
+     * @return parser for the format of in
+     * @throws IOException if the header cannot be read
+     */
+    public static JsonParser createParser(InputStream in) throws IOException
+    {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in, BUFFER_SIZE);
+        }
+        if (isSmile(in)) {
+            return smileFactory.createJsonParser(in);
+        }
+        return jsonFactory.createJsonParser(in);
+    }
+
+    /**
+     * @param in stream supporting mark, left where it was
+     * @return true if the stream starts with the Smile header
+     * @throws IOException if the header cannot be read
+     */
+    public static boolean isSmile(InputStream in) throws IOException
+    {
+        in.mark(HEADER.length);
+        byte[] header = new byte[HEADER.length];
+        int length = 0;
+        int read;
+        while (length < header.length && (read = in.read(header, length, header.length - length)) > 0) {
+            length += read;
+        }
+        in.reset();
+        return isSmile(header, 0, length);
+    }
+
+    /**
+     * @return parser for the format of the bytes, json text or Smile
+     * @throws IOException if the parser cannot be created
+     */
+    public static JsonParser createParser(byte[] bytes, int offset, int length) throws IOException
+    {
+        if (isSmile(bytes, offset, length)) {
+            return smileFactory.createJsonParser(bytes, offset, length);
+        }
+        return jsonFactory.createJsonParser(bytes, offset, length);
+    }
+
+    public static boolean isSmile(byte[] bytes, int offset, int length)
+    {
+        if (length < HEADER.length) {
+            return false;
+        }
+        for (int i = 0; i < HEADER.length; i++) {
+            if (bytes[offset + i] != HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Convert the rest of a json stream to Smile.
+     * Floating point numbers keep their text: they are written as Smile doubles when these read back
+     * as the same text (the json rendering writes them with Double.toString), as strings otherwise.
+     *
+     * @param from json text
+     * @param to   written as Smile, flushed but not closed
+     * @throws IOException if the json is invalid or to cannot be written
+     */
+    public static void transcode(JsonParser from, OutputStream to) throws IOException
+    {
+        JsonGenerator generator = smileFactory.createJsonGenerator(to);
+        JsonToken token;
+        while ((token = from.nextToken()) != null) {
+            if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+                String text = from.getText();
+                double value = from.getDoubleValue();
+                if (Double.toString(value).equals(text)) {
+                    generator.writeNumber(value);
+                }
+                else {
+                    generator.writeString(text);
+                }
+            }
+            else {
+                generator.copyCurrentEvent(from);
+            }
+        }
+        generator.flush();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/*
+  Decodes a Thrift event serialized with TBinaryProtocol, the format of the event files written by
+  the collectors, straight into a row: the value of each field goes to the slot of its Goodwill id,
+  without building the Thrift object nor rendering the event as json first.
+  Values are rendered as the json rendering shows them: numbers in decimal, booleans as true/false,
+  strings decoded from UTF-8, and a nested struct, map, set or list as its first json token ("{" or "[").
+  Fields whose id is not in the schema are skipped. Bookkeeping of missing fields and counts is the
+  RowAssembler's, so that json and binary events are counted alike.
+  Not thread safe, use one instance per thread.
+*/
+public class ThriftEventDecoder
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // TType
+    private static final byte STOP = 0;
+    private static final byte BOOL = 2;
+    private static final byte BYTE = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte I16 = 6;
+    private static final byte I32 = 8;
+    private static final byte I64 = 10;
+    private static final byte STRING = 11;
+    private static final byte STRUCT = 12;
+    private static final byte MAP = 13;
+    private static final byte SET = 14;
+    private static final byte LIST = 15;
+
+    private final RowAssembler assembler;
+    private final RowSchema schema;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+
+    public ThriftEventDecoder(RowAssembler assembler)
+    {
+        this.assembler = assembler;
+        this.schema = assembler.getSchema();
+    }
+
+    /**
+     * Read one event
+     *
+     * @param bytes  serialized event
+     * @param offset start of the event in bytes
+     * @param length length of the event
+     * @param row    values by slot, every slot is overwritten
+     * @throws IOException if the event is truncated or holds an unknown type
+     */
+    public void read(byte[] bytes, int offset, int length, String[] row) throws IOException
+    {
+        buffer = bytes;
+        position = offset;
+        limit = offset + length;
+        try {
+            byte type;
+            while ((type = readByte()) != STOP) {
+                int slot = schema.slotOfId(readShort());
+                if (slot >= 0) {
+                    assembler.set(row, slot, readValue(type));
+                }
+                else {
+                    assembler.skipped();
+                    skip(type);
+                }
+            }
+            assembler.complete(row);
+        }
+        finally {
+            buffer = null;
+        }
+    }
+
+    private String readValue(byte type) throws IOException
+    {
+        switch (type) {
+            case BOOL:
+                return readByte() != 0 ? "true" : "false";
+            case BYTE:
+                return Integer.toString(readByte());
+            case I16:
+                return Integer.toString(readShort());
+            case I32:
+                return Integer.toString(readInt());
+            case I64:
+                return Long.toString(readLong());
+            case DOUBLE:
+                return Double.toString(Double.longBitsToDouble(readLong()));
+            case STRING:
+                int length = readLength(1);
+                String value = new String(buffer, position, length, UTF8);
+                position += length;
+                return value;
+            case STRUCT:
+            case MAP:
+                skip(type);
+                return "{";
+            case SET:
+            case LIST:
+                skip(type);
+                return "[";
+            default:
+                throw new IOException("Unknown Thrift type " + type + " at offset " + (position - 3));
+        }
+    }
+
+    private void skip(byte type) throws IOException
+    {
+        switch (type) {
+            case BOOL:
+            case BYTE:
+                advance(1);
+                break;
+            case I16:
+                advance(2);
+                break;
+            case I32:
+                advance(4);
+                break;
+            case I64:
+            case DOUBLE:
+                advance(8);
+                break;
+            case STRING:
+                advance(readLength(1));
+                break;
+            case STRUCT:
+                byte fieldType;
+                while ((fieldType = readByte()) != STOP) {
+                    advance(2);
+                    skip(fieldType);
+                }
+                break;
+            case MAP:
+                byte keyType = readByte();
+                byte valueType = readByte();
+                for (int i = readLength(2); i > 0; i--) {
+                    skip(keyType);
+                    skip(valueType);
+                }
+                break;
+            case SET:
+            case LIST:
+                byte elementType = readByte();
+                for (int i = readLength(1); i > 0; i--) {
+                    skip(elementType);
+                }
+                break;
+            default:
+                throw new IOException("Unknown Thrift type " + type + " at offset " + (position - 1));
+        }
+    }
+
+    /**
+     * @param minimumSize bytes taken by each of the elements, bounds the length read before anything is allocated
+     */
+    private int readLength(int minimumSize) throws IOException
+    {
+        int length = readInt();
+        if (length < 0 || (long) length * minimumSize > limit - position) {
+            throw new IOException("Invalid length " + length + " at offset " + (position - 4));
+        }
+        return length;
+    }
+
+    private void advance(int count) throws IOException
+    {
+        if (count > limit - position) {
+            throw new IOException("Truncated event at offset " + position);
+        }
+        position += count;
+    }
+
+    private byte readByte() throws IOException
+    {
+        advance(1);
+        return buffer[position - 1];
+    }
+
+    private short readShort() throws IOException
+    {
+        advance(2);
+        return (short) (((buffer[position - 2] & 0xff) << 8) | (buffer[position - 1] & 0xff));
+    }
+
+    private int readInt() throws IOException
+    {
+        advance(4);
+        int p = position - 4;
+        return ((buffer[p] & 0xff) << 24) | ((buffer[p + 1] & 0xff) << 16) | ((buffer[p + 2] & 0xff) << 8) | (buffer[p + 3] & 0xff);
+    }
+
+    private long readLong() throws IOException
+    {
+        return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/*
+  Formats epoch millis as yyyy-MM-dd HH:mm:ss.SSS in the default time zone, the DATE format of
+  DataTransformationBase, straight into a RowBuffer.
+  Event timestamps of an hourly partition are heavily clustered: the "yyyy-MM-dd HH:mm:" prefix is
+  formatted by Joda once per minute and cached as bytes, only the seconds and millis are computed
+  per value. The cache is direct-mapped on the minute and holds two consecutive hours, so unordered
+  events of one partition do not evict each other. Minutes the cache cannot represent (zone offsets
+  that are not whole minutes, offset changes inside the minute, years outside 1-9999) go through
+  Joda every time.
+  Not thread safe, use one instance per thread.
+*/
+public class TimestampFormatter
+{
+    private static final DateTimeFormatter dateFormatter = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final long MINUTE = 60 * 1000L;
+    // 0001-01-01 00:00:00.000 to 9999-12-31 23:59:59.999 UTC, with a day of margin for the zone offset
+    private static final long MIN_CACHED = -62135596800000L + 24 * 60 * MINUTE;
+    private static final long MAX_CACHED = 253402300799999L - 24 * 60 * MINUTE;
+    private static final int CACHE_SIZE = 128;
+    private static final int NOT_CACHEABLE = -1;
+
+    private final StringBuffer scratch = new StringBuffer(32);
+    private final long[] minutes = new long[CACHE_SIZE];
+    private final byte[][] prefixes = new byte[CACHE_SIZE][32];
+    private final int[] prefixLengths = new int[CACHE_SIZE];
+    private DateTimeZone cachedZone;
+    private long parsed;
+
+    /**
+     * Append a timestamp given as a string, the way Long.valueOf would read it
+     *
+     * @param value epoch millis
+     * @param output buffer to append to
+     * @return false, with nothing appended, if the value is null or not a long
+     */
+    public boolean append(String value, RowBuffer output)
+    {
+        if (value == null || !parse(value)) {
+            return false;
+        }
+        append(parsed, output);
+        return true;
+    }
+
+    public void append(long millis, RowBuffer output)
+    {
+        if (millis < MIN_CACHED || millis > MAX_CACHED) {
+            appendWithJoda(millis, output);
+            return;
+        }
+
+        long minute = millis - (millis % MINUTE);
+        if (millis < 0 && minute != millis) {
+            minute -= MINUTE;
+        }
+        DateTimeZone zone = DateTimeZone.getDefault();
+        if (zone != cachedZone) {
+            // prefixes depend on the zone, start over
+            cachedZone = zone;
+            for (int i = 0; i < CACHE_SIZE; i++) {
+                minutes[i] = Long.MIN_VALUE;
+            }
+        }
+        int entry = (int) ((minute / MINUTE) & (CACHE_SIZE - 1));
+        if (minutes[entry] != minute) {
+            cache(entry, minute, zone);
+        }
+        if (prefixLengths[entry] == NOT_CACHEABLE) {
+            appendWithJoda(millis, output);
+            return;
+        }
+
+        int inMinute = (int) (millis - minute);
+        int seconds = inMinute / 1000;
+        int ms = inMinute % 1000;
+        output.append(prefixes[entry], 0, prefixLengths[entry])
+            .append((byte) ('0' + seconds / 10))
+            .append((byte) ('0' + seconds % 10))
+            .append((byte) '.')
+            .append((byte) ('0' + ms / 100))
+            .append((byte) ('0' + (ms / 10) % 10))
+            .append((byte) ('0' + ms % 10));
+    }
+
+    private void cache(int entry, long minute, DateTimeZone zone)
+    {
+        minutes[entry] = minute;
+
+        int offset = zone.getOffset(minute);
+        if (offset % MINUTE != 0 || zone.getOffset(minute + MINUTE - 1) != offset) {
+            prefixLengths[entry] = NOT_CACHEABLE;
+            return;
+        }
+
+        scratch.setLength(0);
+        dateFormatter.printTo(scratch, minute);
+        // drop "ss.SSS", always 00.000 at the start of the minute
+        int length = scratch.length() - 6;
+        byte[] prefix = prefixes[entry];
+        for (int i = 0; i < length; i++) {
+            prefix[i] = (byte) scratch.charAt(i);
+        }
+        prefixLengths[entry] = length;
+    }
+
+    private void appendWithJoda(long millis, RowBuffer output)
+    {
+        scratch.setLength(0);
+        dateFormatter.printTo(scratch, millis);
+        output.append(scratch);
+    }
+
+    /**
+     * Same rules as Long.parseLong, without the boxing of Long.valueOf or an exception for bad values
+     */
+    private boolean parse(String value)
+    {
+        int length = value.length();
+        if (length == 0) {
+            return false;
+        }
+
+        int i = 0;
+        boolean negative = false;
+        char first = value.charAt(0);
+        if (first == '-' || first == '+') {
+            if (length == 1) {
+                return false;
+            }
+            negative = first == '-';
+            i++;
+        }
+
+        // accumulate negatively, as Long.parseLong does, so that Long.MIN_VALUE fits
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multiplyMin = limit / 10;
+        long result = 0;
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                // Long.parseLong also takes non-ascii unicode digits
+                return c >= 0x80 && parseSlow(value);
+            }
+            int digit = c - '0';
+            if (result < multiplyMin) {
+                return false;
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                return false;
+            }
+            result -= digit;
+        }
+
+        parsed = negative ? result : -result;
+        return true;
+    }
+
+    private boolean parseSlow(String value)
+    {
+        try {
+            parsed = Long.parseLong(value);
+            return true;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
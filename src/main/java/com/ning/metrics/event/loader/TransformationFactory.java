@@ -0,0 +1,158 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+  Resolves the transformation class of an event type once, then hands out RowTransformation
+  instances for it (one per worker thread). The class is looked up from the system property named
+  after the event type, falling back to the "default" property.
+*/
+public class TransformationFactory
+{
+    private static final Class[] TRANSFORM_ROW_ARGS = new Class[]{List.class, HashMap.class, String.class};
+
+    private final Class transformationClass;
+    private final Method legacyTransformRow;
+    private final boolean encodeDirectly;
+    private GeoIpDatabase geoIp;
+    private String geoIpColumn;
+    private UserAgentParser userAgentParser;
+    private String userAgentColumn;
+    private LoaderMetrics metrics;
+
+    public TransformationFactory(String className) throws ClassNotFoundException, NoSuchMethodException
+    {
+        this.transformationClass = Class.forName(className);
+        if (RowTransformation.class.isAssignableFrom(transformationClass) || DataTransformation.class.isAssignableFrom(transformationClass)) {
+            this.legacyTransformRow = null;
+        }
+        else {
+            this.legacyTransformRow = transformationClass.getMethod("transformRow", TRANSFORM_ROW_ARGS);
+        }
+
+        // DataTransformationBase (or a subclass that does not override transformRow) has a byte level equivalent
+        this.encodeDirectly = DataTransformationBase.class.isAssignableFrom(transformationClass)
+            && transformationClass.getMethod("transformRow", TRANSFORM_ROW_ARGS).getDeclaringClass() == DataTransformationBase.class;
+    }
+
+    public static TransformationFactory forEvent(String eventType) throws ClassNotFoundException, NoSuchMethodException
+    {
+        String className = System.getProperty(eventType) == null ? System.getProperty("default") : System.getProperty(eventType);
+        return new TransformationFactory(className);
+    }
+
+    /**
+     * Append the country, latitude and longitude of the IP address of a column to every row
+     *
+     * @param database ranges to look the addresses up in
+     * @param ipColumn column holding the addresses
+     */
+    public void setGeoIp(GeoIpDatabase database, String ipColumn)
+    {
+        this.geoIp = database;
+        this.geoIpColumn = ipColumn;
+    }
+
+    /**
+     * Append the decoded properties of the user agent of a column to every row, after the GeoIP columns
+     *
+     * @param parser          browscap parser
+     * @param userAgentColumn column holding the user agents
+     */
+    public void setUserAgentParser(UserAgentParser parser, String userAgentColumn)
+    {
+        this.userAgentParser = parser;
+        this.userAgentColumn = userAgentColumn;
+    }
+
+    /**
+     * @param metrics export metrics counting the values that cannot be converted, by column
+     */
+    public void setMetrics(LoaderMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param schema schema of the rows the transformation will see
+     * @return a new transformation instance, not shared with other threads
+     * @throws IOException if the class cannot be instantiated
+     */
+    public RowTransformation create(RowSchema schema) throws IOException
+    {
+        RowTransformation transformation = newTransformation(schema);
+        if (geoIp != null) {
+            transformation = new GeoIpEnricher(transformation, geoIp, schema, geoIpColumn, GeoIpEnricher.DEFAULT_CACHE_SIZE, metrics);
+        }
+        if (userAgentParser != null) {
+            transformation = new UserAgentEnricher(transformation, userAgentParser, schema, userAgentColumn);
+        }
+        return transformation;
+    }
+
+    private RowTransformation newTransformation(RowSchema schema) throws IOException
+    {
+        try {
+            if (encodeDirectly) {
+                return new CSVRowEncoder(schema, metrics);
+            }
+            if (RowTransformation.class.isAssignableFrom(transformationClass)) {
+                return newRowTransformation(schema);
+            }
+            Object transformation = transformationClass.newInstance();
+            if (legacyTransformRow == null) {
+                return new DataTransformationAdapter((DataTransformation) transformation, schema);
+            }
+            return new DataTransformationAdapter(transformation, legacyTransformRow, schema);
+        }
+        catch (InstantiationException e) {
+            throw new IOException("Unable to create transformation " + transformationClass.getName(), e);
+        }
+        catch (IllegalAccessException e) {
+            throw new IOException("Unable to create transformation " + transformationClass.getName(), e);
+        }
+        catch (InvocationTargetException e) {
+            throw new IOException("Unable to create transformation " + transformationClass.getName(), e.getCause());
+        }
+    }
+
+    public Class getTransformationClass()
+    {
+        return transformationClass;
+    }
+
+    private RowTransformation newRowTransformation(RowSchema schema)
+        throws InstantiationException, IllegalAccessException, InvocationTargetException
+    {
+        try {
+            Constructor constructor = transformationClass.getConstructor(RowSchema.class);
+            return (RowTransformation) constructor.newInstance(schema);
+        }
+        catch (NoSuchMethodException e) {
+            return (RowTransformation) transformationClass.newInstance();
+        }
+    }
+}
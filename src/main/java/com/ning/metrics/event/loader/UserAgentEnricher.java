@@ -0,0 +1,62 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.IOException;
+
+/*
+  Appends the decoded properties of the user agent of a column to the csv line of another
+  transformation, unquoted and followed by the delimiter (IE|8|0|WinXP|), empty if unknown.
+  Created per worker thread, the parser and its cache are shared.
+*/
+public class UserAgentEnricher implements RowTransformation
+{
+    private final RowTransformation transformation;
+    private final UserAgentParser parser;
+    private final int userAgentSlot;
+
+    public UserAgentEnricher(RowTransformation transformation, UserAgentParser parser, RowSchema schema, String userAgentColumn)
+    {
+        this.transformation = transformation;
+        this.parser = parser;
+        this.userAgentSlot = schema.slotOf(userAgentColumn);
+        if (userAgentSlot < 0) {
+            throw new IllegalArgumentException("User agent column " + userAgentColumn + " is not in the schema");
+        }
+    }
+
+    public void transformRow(Row row, RowBuffer output, String delimiter) throws IOException
+    {
+        int start = output.size();
+        transformation.transformRow(row, output, delimiter);
+        boolean newline = output.size() > start && output.byteAt(output.size() - 1) == '\n';
+        if (newline) {
+            output.truncate(output.size() - 1);
+        }
+
+        for (String value : parser.decode(row.get(userAgentSlot))) {
+            output.append(value).append(delimiter);
+        }
+
+        if (newline) {
+            output.append((byte) '\n');
+        }
+    }
+}
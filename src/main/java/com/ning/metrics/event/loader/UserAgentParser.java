@@ -0,0 +1,350 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/*
+  Decodes user agents with a browscap.ini: every section name is a pattern (* and ? wildcards,
+  case insensitive) whose properties, along with those inherited through Parent=, describe the
+  browser. The longest matching pattern wins, as with PHP's get_browser.
+  Patterns are indexed by a trie of their literal prefix (up to the first wildcard): a user agent is
+  only matched against the patterns whose whole literal prefix it starts with, and only once it
+  contains the longest literal part of the pattern.
+  User agents are very repetitive: decoded values are memoized in a BoundedCache shared by the
+  worker threads. Thread safe.
+*/
+public class UserAgentParser
+{
+    private static final Logger log = Logger.getLogger(UserAgentParser.class);
+    private static final Map<String, UserAgentParser> parsers = new HashMap<String, UserAgentParser>();
+    private static final int MAX_PARENTS = 32;
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+    public static final List<String> DEFAULT_PROPERTIES = Collections.unmodifiableList(Arrays.asList("Browser", "MajorVer", "MinorVer", "Platform"));
+
+    private final long lastModified;
+    private final List<String> properties;
+    private final String[] patterns;
+    private final String[][] values;
+    private final String[] literals;
+    private final PrefixNode prefixes = new PrefixNode();
+    private final String[] unknown;
+    private final BoundedCache<String, String[]> cache;
+
+    /**
+     * Parser of a file and properties, loaded once per JVM (the batch jobs share it), and loaded again if the file changed
+     *
+     * @param browscap   browscap.ini
+     * @param properties properties to decode, e.g. Browser, MajorVer, MinorVer, Platform
+     * @return the parser
+     * @throws IOException if the file cannot be read
+     */
+    public static UserAgentParser forFile(File browscap, List<String> properties) throws IOException
+    {
+        synchronized (parsers) {
+            String key = browscap.getAbsolutePath() + properties;
+            UserAgentParser parser = parsers.get(key);
+            if (parser == null || parser.lastModified != browscap.lastModified()) {
+                parser = new UserAgentParser(browscap, properties, DEFAULT_CACHE_SIZE);
+                parsers.put(key, parser);
+            }
+            return parser;
+        }
+    }
+
+    /**
+     * @param browscap   browscap.ini
+     * @param properties properties to decode, e.g. Browser, MajorVer, MinorVer, Platform
+     * @param cacheSize  maximum number of user agents memoized
+     * @throws IOException if the file cannot be read
+     */
+    public UserAgentParser(File browscap, List<String> properties, int cacheSize) throws IOException
+    {
+        this.lastModified = browscap.lastModified();
+        this.properties = new ArrayList<String>(properties);
+        this.cache = new BoundedCache<String, String[]>(cacheSize, Runtime.getRuntime().availableProcessors() * 4);
+        this.unknown = new String[properties.size()];
+        Arrays.fill(unknown, "");
+
+        final Map<String, Map<String, String>> sections = read(browscap);
+        final List<String> names = new ArrayList<String>(sections.keySet());
+        final Map<String, Integer> order = new HashMap<String, Integer>();
+        for (int i = 0; i < names.size(); i++) {
+            order.put(names.get(i), i);
+        }
+        // longest pattern first, file order between patterns of the same length
+        Collections.sort(names, new Comparator<String>()
+        {
+            public int compare(String left, String right)
+            {
+                if (left.length() != right.length()) {
+                    return right.length() - left.length();
+                }
+                return order.get(left) - order.get(right);
+            }
+        });
+
+        this.patterns = new String[names.size()];
+        this.values = new String[names.size()][];
+        this.literals = new String[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            patterns[i] = name.toLowerCase(Locale.ENGLISH);
+            literals[i] = longestLiteral(patterns[i]);
+            values[i] = new String[properties.size()];
+            for (int p = 0; p < properties.size(); p++) {
+                String value = resolve(sections, name, properties.get(p));
+                values[i][p] = value == null ? "" : value;
+            }
+
+            PrefixNode node = prefixes;
+            for (char c : literalPrefix(patterns[i]).toCharArray()) {
+                node = node.child(c);
+            }
+            node.indexes.add(i);
+        }
+        prefixes.freeze();
+
+        log.info("Loaded " + patterns.length + " user agent patterns from " + browscap + " (" + prefixes.patterns.length + " starting with a wildcard)");
+    }
+
+    /**
+     * @param userAgent raw user agent, may be null
+     * @return values of the properties, in the order they were given; empty strings if unknown
+     */
+    public String[] decode(String userAgent)
+    {
+        if (userAgent == null || userAgent.length() == 0) {
+            return unknown;
+        }
+        String[] decoded = cache.get(userAgent);
+        if (decoded == null) {
+            decoded = match(userAgent);
+            cache.put(userAgent, decoded);
+        }
+        return decoded;
+    }
+
+    public List<String> getProperties()
+    {
+        return properties;
+    }
+
+    public BoundedCache<String, String[]> getCache()
+    {
+        return cache;
+    }
+
+    String[] match(String userAgent)
+    {
+        String text = userAgent.toLowerCase(Locale.ENGLISH);
+        for (int candidate : candidates(text)) {
+            // a pattern can only match a text containing each of its literal parts
+            if (text.indexOf(literals[candidate]) >= 0 && matches(patterns[candidate], text)) {
+                return values[candidate];
+            }
+        }
+        return unknown;
+    }
+
+    /**
+     * @param text lower case user agent
+     * @return the patterns whose literal prefix the text starts with, in priority order
+     */
+    int[] candidates(String text)
+    {
+        List<int[]> found = new ArrayList<int[]>();
+        int count = 0;
+        PrefixNode node = prefixes;
+        for (int i = 0; node != null; i++) {
+            if (node.patterns.length > 0) {
+                found.add(node.patterns);
+                count += node.patterns.length;
+            }
+            node = i < text.length() ? node.children.get(text.charAt(i)) : null;
+        }
+
+        int[] candidates = new int[count];
+        int offset = 0;
+        for (int[] patterns : found) {
+            System.arraycopy(patterns, 0, candidates, offset, patterns.length);
+            offset += patterns.length;
+        }
+        // pattern indexes are priorities
+        Arrays.sort(candidates);
+        return candidates;
+    }
+
+    /**
+     * Glob matching, * matches any sequence and ? any single character
+     */
+    static boolean matches(String pattern, String text)
+    {
+        int p = 0;
+        int t = 0;
+        int star = -1;
+        int mark = 0;
+        while (t < text.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == text.charAt(t))) {
+                p++;
+                t++;
+            }
+            else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                mark = t;
+            }
+            else if (star >= 0) {
+                // let the last star swallow one more character
+                p = star + 1;
+                t = ++mark;
+            }
+            else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    private static String resolve(Map<String, Map<String, String>> sections, String name, String property)
+    {
+        Map<String, String> section = sections.get(name);
+        for (int depth = 0; section != null && depth < MAX_PARENTS; depth++) {
+            String value = section.get(property);
+            if (value != null) {
+                return value;
+            }
+            String parent = section.get("Parent");
+            section = parent == null ? null : sections.get(parent);
+        }
+        return null;
+    }
+
+    private static Map<String, Map<String, String>> read(File browscap) throws IOException
+    {
+        Map<String, Map<String, String>> sections = new LinkedHashMap<String, Map<String, String>>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(browscap), "ISO-8859-1"));
+        try {
+            Map<String, String> section = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.charAt(0) == ';') {
+                    continue;
+                }
+                if (line.charAt(0) == '[' && line.charAt(line.length() - 1) == ']') {
+                    section = new HashMap<String, String>();
+                    sections.put(line.substring(1, line.length() - 1), section);
+                    continue;
+                }
+                int equals = line.indexOf('=');
+                if (section != null && equals > 0) {
+                    section.put(line.substring(0, equals).trim(), unquote(line.substring(equals + 1).trim()));
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return sections;
+    }
+
+    private static String unquote(String value)
+    {
+        if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static String literalPrefix(String pattern)
+    {
+        int i = 0;
+        while (i < pattern.length() && pattern.charAt(i) != '*' && pattern.charAt(i) != '?') {
+            i++;
+        }
+        return pattern.substring(0, i);
+    }
+
+    private static String longestLiteral(String pattern)
+    {
+        String longest = "";
+        for (String literal : pattern.split("[*?]")) {
+            if (literal.length() > longest.length()) {
+                longest = literal;
+            }
+        }
+        return longest;
+    }
+
+    private static int[] toArray(List<Integer> list)
+    {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Node of the trie of the literal prefixes, holding the patterns whose literal prefix ends here
+     */
+    private static class PrefixNode
+    {
+        private final Map<Character, PrefixNode> children = new HashMap<Character, PrefixNode>();
+        private List<Integer> indexes = new ArrayList<Integer>();
+        private int[] patterns;
+
+        private PrefixNode child(char c)
+        {
+            PrefixNode child = children.get(c);
+            if (child == null) {
+                child = new PrefixNode();
+                children.put(c, child);
+            }
+            return child;
+        }
+
+        private void freeze()
+        {
+            patterns = toArray(indexes);
+            indexes = null;
+            for (PrefixNode child : children.values()) {
+                child.freeze();
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/*
+  State of an incremental export: the input files already loaded by previous runs, with the size and
+  modification time they had then. A run only exports the files that are new or changed since, and
+  records them once its output is complete, so a failed run loads them again the next time.
+  One line per file: path, size, modification time, tab separated, either may be empty when the
+  listing does not give it. A file the listing gives neither for can only be matched by its path:
+  rewriting or appending to it goes unnoticed, which is logged as a warning. The first line identifies the export (event type and path).
+  The file is replaced atomically, a crash while saving leaves the previous state.
+*/
+public class WatermarkStore
+{
+    private static final Logger log = Logger.getLogger(WatermarkStore.class);
+    private static final String SEPARATOR = "\t";
+
+    private final File state;
+    private final String export;
+    private final Map<String, String[]> loaded = new LinkedHashMap<String, String[]>();
+    private final Map<String, String[]> pending = new LinkedHashMap<String, String[]>();
+    private int skipped = 0;
+    private int unversioned = 0;
+
+    /**
+     * @param state  state file, created by the first run
+     * @param export identifies the export, e.g. event type and path
+     * @throws IOException if the state file cannot be read, or belongs to another export
+     */
+    public WatermarkStore(File state, String export) throws IOException
+    {
+        this.state = state;
+        this.export = export;
+        if (state.exists()) {
+            read();
+            log.info(loaded.size() + " files of " + export + " already loaded according to " + state);
+        }
+    }
+
+    /**
+     * @param file             input file
+     * @param size             size of the file in the listing, null if unknown
+     * @param modificationTime modification time of the file in the listing, null if unknown
+     * @return true if a previous run loaded the file and it did not change since
+     */
+    public boolean isLoaded(String file, String size, String modificationTime)
+    {
+        if (size == null && modificationTime == null && unversioned++ == 0) {
+            log.warn("The listing gives neither the size nor the modification time of " + file
+                + ": files are only matched by path, changes to a file already loaded are not exported");
+        }
+        String[] version = loaded.get(file);
+        if (version == null || changed(version[0], size) || changed(version[1], modificationTime)) {
+            return false;
+        }
+        skipped++;
+        return true;
+    }
+
+    /**
+     * Record a file exported by this run, saved by commit()
+     */
+    public void loaded(String file, String size, String modificationTime)
+    {
+        pending.put(file, new String[]{size, modificationTime});
+    }
+
+    /**
+     * The output of this run is complete: save the files it exported along with the previous ones
+     *
+     * @throws IOException if the state cannot be saved
+     */
+    public void commit() throws IOException
+    {
+        log.info(pending.size() + " new or changed files exported, " + skipped + " already loaded");
+        if (unversioned > 0) {
+            log.warn(unversioned + " files without size nor modification time in the listing, matched by path only");
+        }
+        loaded.putAll(pending);
+        pending.clear();
+
+        File tmp = new File(state.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            writer.write(export + "\n");
+            for (Map.Entry<String, String[]> file : loaded.entrySet()) {
+                writer.write(file.getKey() + SEPARATOR + toField(file.getValue()[0]) + SEPARATOR + toField(file.getValue()[1]) + "\n");
+            }
+        }
+        finally {
+            writer.close();
+        }
+        // rename does not replace an existing file on every platform
+        if (!tmp.renameTo(state) && !(state.delete() && tmp.renameTo(state))) {
+            throw new IOException("Unable to replace " + state + " with " + tmp);
+        }
+    }
+
+    private void read() throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(state), "UTF-8"));
+        try {
+            String header = reader.readLine();
+            if (header != null && !header.equals(export)) {
+                throw new IOException(state + " is the state of another export (" + header + "), delete it to load everything again");
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, -1);
+                if (fields.length != 3) {
+                    throw new IOException("Invalid line in " + state + ": " + line);
+                }
+                loaded.put(fields[0], new String[]{fromField(fields[1]), fromField(fields[2])});
+            }
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    private static boolean changed(String before, String now)
+    {
+        // only what both listings give can be compared
+        return before != null && now != null && !before.equals(now);
+    }
+
+    private static String toField(String value)
+    {
+        return value == null ? "" : value;
+    }
+
+    private static String fromField(String field)
+    {
+        return field.length() == 0 ? null : field;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import com.ning.metrics.goodwill.access.GoodwillSchema;
+import java.io.IOException;
+import java.util.List;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/*
+  Goodwill stand-in of the tests: every event type has the same fields, "name" for a STRING field or
+  "name:TYPE". Counts the schemas fetched.
+*/
+public class StaticSchemas extends SchemaCache
+{
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final String[] fields;
+    private int fetches = 0;
+
+    public StaticSchemas(String... fields)
+    {
+        super("goodwill.test", 8080, null, DEFAULT_TTL);
+        this.fields = fields;
+    }
+
+    @Override
+    protected GoodwillSchema fetch(String typeName)
+    {
+        fetches++;
+        try {
+            return schema(typeName, fields);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    protected List<GoodwillSchema> fetchAll()
+    {
+        return null;
+    }
+
+    public int getFetches()
+    {
+        return fetches;
+    }
+
+    /**
+     * @param fields "name" for a STRING field, or "name:TYPE"
+     */
+    static GoodwillSchema schema(String typeName, String... fields) throws IOException
+    {
+        StringBuilder json = new StringBuilder("{\"name\":\"").append(typeName).append("\",\"schema\":[");
+        for (int i = 0; i < fields.length; i++) {
+            int colon = fields[i].indexOf(':');
+            String name = colon < 0 ? fields[i] : fields[i].substring(0, colon);
+            String type = colon < 0 ? "STRING" : fields[i].substring(colon + 1);
+            json.append(i == 0 ? "" : ",").append("{\"name\":\"").append(name).append("\",\"type\":\"").append(type)
+                .append("\",\"position\":").append(i + 1).append('}');
+        }
+        return mapper.readValue(json.append("]}").toString(), GoodwillSchema.class);
+    }
+}
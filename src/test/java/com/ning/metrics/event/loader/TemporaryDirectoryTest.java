@@ -0,0 +1,84 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.File;
+import java.io.IOException;
+import org.codehaus.jackson.JsonFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+
+/*
+  Base of the tests writing files: every test method gets a new empty directory, deleted after it,
+  where the exports of configuration() write.
+*/
+public abstract class TemporaryDirectoryTest
+{
+    protected File dir;
+
+    @BeforeMethod(alwaysRun = true)
+    public void createDirectory() throws Exception
+    {
+        dir = File.createTempFile(getClass().getSimpleName(), "");
+        Assert.assertTrue(dir.delete());
+        Assert.assertTrue(dir.mkdir());
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void deleteDirectory() throws Exception
+    {
+        deleteRecursively(dir);
+    }
+
+    /**
+     * @return the configuration of an export of the Visit events under /e to dir/events
+     */
+    protected EventLoaderConfiguration configuration(Class<?> transformation)
+    {
+        EventLoaderConfiguration configuration = new EventLoaderConfiguration();
+        configuration.setEventType("Visit");
+        configuration.setPath("/e");
+        configuration.setOutputFile(new File(dir, "events").getPath());
+        configuration.setTransformation(transformation.getName());
+        return configuration;
+    }
+
+    /**
+     * Export the events of a listing, as if action-core had returned it
+     */
+    protected static EventLoader export(EventLoaderConfiguration configuration, String listing, RowSchema schema) throws IOException
+    {
+        EventLoader loader = new EventLoader(configuration);
+        loader.getCSVFormat(new JsonFactory().createJsonParser(listing), schema);
+        return loader;
+    }
+
+    private static void deleteRecursively(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
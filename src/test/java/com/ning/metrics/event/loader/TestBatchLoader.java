@@ -0,0 +1,99 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestBatchLoader extends TemporaryDirectoryTest
+{
+    @Test(groups = "fast")
+    public void testFailedJobDoesNotStopTheBatch() throws Exception
+    {
+        // --skipjsondownload reads the json listing from the output file of each job
+        write(new File(dir, "visits"), "{\"entries\": [{\"path\": \"/e/f0\", \"isDir\": false, \"content\": ["
+            + "{\"id\": \"1\", \"name\": \"first\"}, {\"name\": \"second\", \"id\": \"2\"}]}]}");
+        write(new File(dir, "clicks"), "{\"entries\": [{\"path\": \"/e/f0\", \"isDir\": false, \"content\": [{\"id\": \"3\", \"name\": \"third\"}]}]}");
+        File manifest = new File(dir, "jobs.json");
+        write(manifest, "[{\"event\": \"Visit\", \"output\": \"" + new File(dir, "visits").getPath() + "\", \"transformation\": \"" + TestShardedOutput.Lines.class.getName() + "\"},"
+            + "{\"event\": \"Broken\", \"output\": \"" + new File(dir, "missing").getPath() + "\", \"transformation\": \"" + TestShardedOutput.Lines.class.getName() + "\"},"
+            + "{\"event\": \"Click\", \"output\": \"" + new File(dir, "clicks").getPath() + "\", \"transformation\": \"" + TestShardedOutput.Lines.class.getName() + "\"}]");
+
+        String[] args = new String[]{"--batch", manifest.getPath(), "--skipjsondownload", "--threads", "2", "--rejects", new File(dir, "bad.json").getPath()};
+        EventLoaderConfiguration configuration = EventLoaderConfiguration.parseArguments(args);
+        StaticSchemas schemas = new StaticSchemas("id", "name");
+        Assert.assertEquals(new BatchLoader(configuration, args, schemas).run(), 1);
+
+        Assert.assertEquals(readLines(new File(dir, "visits.csv")).toString(), "[1|first, 2|second]");
+        Assert.assertEquals(readLines(new File(dir, "clicks.csv")).toString(), "[3|third]");
+        Assert.assertEquals(schemas.getFetches(), 3);
+
+        // each job writes its own rejects
+        Assert.assertTrue(new File(dir, "visits.rejects.json").exists());
+        Assert.assertTrue(new File(dir, "clicks.rejects.json").exists());
+        Assert.assertFalse(new File(dir, "bad.json").exists());
+    }
+
+    @Test(groups = "fast")
+    public void testReadManifest() throws Exception
+    {
+        File manifest = new File(dir, "jobs.json");
+        write(manifest, "[{\"event\": \"Visit\", \"path\": \"/events/Visit/2011/09/10/00\"}]");
+        List<BatchLoader.Job> jobs = BatchLoader.readManifest(manifest);
+        Assert.assertEquals(jobs.size(), 1);
+        Assert.assertEquals(jobs.get(0).getEvent(), "Visit");
+        Assert.assertEquals(jobs.get(0).getPath(), "/events/Visit/2011/09/10/00");
+        Assert.assertNull(jobs.get(0).getOutput());
+    }
+
+    private static void write(File file, String content) throws IOException
+    {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    private static List<String> readLines(File file) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            List<String> lines = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+            return lines;
+        }
+        finally {
+            reader.close();
+        }
+    }
+}
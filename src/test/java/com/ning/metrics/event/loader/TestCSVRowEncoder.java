@@ -0,0 +1,111 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.joda.time.DateTimeZone;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/*
+  The golden files were produced by DataTransformationBase.transformRow as of before the byte level
+  encoder, with String.getBytes in the given charset, in the UTC time zone.
+*/
+public class TestCSVRowEncoder
+{
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private DateTimeZone defaultZone;
+    private RowSchema schema;
+    private List<List<String>> rows;
+
+    @BeforeClass(alwaysRun = true)
+    public void setUpGlobal() throws Exception
+    {
+        defaultZone = DateTimeZone.getDefault();
+        DateTimeZone.setDefault(DateTimeZone.UTC);
+
+        Map input = mapper.readValue(getClass().getResourceAsStream("/transformation-golden.json"), Map.class);
+        List<Map<String, String>> columns = (List<Map<String, String>>) input.get("columns");
+        String[] names = new String[columns.size()];
+        String[] types = new String[columns.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = columns.get(i).get("name");
+            types[i] = columns.get(i).get("type");
+        }
+        schema = new RowSchema(names, types);
+        rows = (List<List<String>>) input.get("rows");
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void tearDownGlobal() throws Exception
+    {
+        DateTimeZone.setDefault(defaultZone);
+    }
+
+    @Test(groups = "fast")
+    public void testUTF8MatchesGoldenFile() throws Exception
+    {
+        Assert.assertEquals(encode("UTF-8"), readResource("/transformation-golden-utf8.csv"));
+    }
+
+    @Test(groups = "fast")
+    public void testLatin1MatchesGoldenFile() throws Exception
+    {
+        Assert.assertEquals(encode("ISO-8859-1"), readResource("/transformation-golden-latin1.csv"));
+    }
+
+    private byte[] encode(String charset)
+    {
+        CSVRowEncoder encoder = new CSVRowEncoder(schema);
+        Row row = new Row(schema);
+        // small initial capacity to exercise the buffer growth
+        RowBuffer output = new RowBuffer(Charset.forName(charset), 16);
+        for (List<String> values : rows) {
+            row.wrap(values.toArray(new String[values.size()]));
+            encoder.transformRow(row, output, "|");
+        }
+        return output.toByteArray();
+    }
+
+    private byte[] readResource(String name) throws IOException
+    {
+        InputStream in = getClass().getResourceAsStream(name);
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+            return content.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+}
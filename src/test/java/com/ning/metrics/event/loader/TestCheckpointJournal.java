@@ -0,0 +1,196 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestCheckpointJournal extends TemporaryDirectoryTest
+{
+    private static final RowSchema schema = new RowSchema("id", "name");
+
+    @Test(groups = "fast")
+    public void testResumeAfterFailure() throws Exception
+    {
+        File csv = new File(dir, "events.csv");
+        File journal = new File(dir, "events.csv.journal");
+
+        // fails in the middle of the third file, once the first two files are written
+        try {
+            loader().convertFiles(files(true), schema);
+            Assert.fail("the third file is broken");
+        }
+        catch (IOException e) {
+            Assert.assertTrue(journal.exists());
+        }
+        Assert.assertTrue(Files.toString(journal, Charsets.UTF_8).contains("hdfs://f1\t300\t"));
+
+        // the next attempt skips the completed files, whose rows must not be read again
+        loader().convertFiles(files(false), schema);
+        Assert.assertFalse(journal.exists());
+
+        Assert.assertEquals(Files.toString(csv, Charsets.UTF_8), expected());
+    }
+
+    @Test(groups = "fast")
+    public void testPartialLineAndTruncation() throws Exception
+    {
+        File csv = new File(dir, "events.csv");
+        File journal = new File(dir, "events.csv.journal");
+        Files.write("1|a\n2|b\n3|c\n4|", csv, Charsets.UTF_8);
+        Files.write("Visit\t/events\nf0\t2\t8\t0\t0\nf1\t1\t12\t0\t0\nf2\t1", journal, Charsets.UTF_8);
+
+        CheckpointJournal resumed = new CheckpointJournal(journal, csv, "Visit\t/events");
+        Assert.assertTrue(resumed.isCompleted("f0"));
+        Assert.assertTrue(resumed.isCompleted("f1"));
+        Assert.assertFalse(resumed.isCompleted("f2"));
+        Assert.assertEquals(resumed.getOffset(), 12);
+        Assert.assertEquals(resumed.getRows(), 3);
+        Assert.assertEquals(Files.toString(csv, Charsets.UTF_8), "1|a\n2|b\n3|c\n");
+        resumed.close();
+        Assert.assertEquals(Files.toString(journal, Charsets.UTF_8), "Visit\t/events\nf0\t2\t8\t0\t0\nf1\t1\t12\t0\t0\n");
+
+        // a line cut inside its last number has all its fields, but not its end of line
+        Files.write("Visit\t/events\nf0\t2\t8\t0\t0\nf1\t1\t12\t0\t0\nf2\t1\t16\t0\t2", journal, Charsets.UTF_8);
+        resumed = new CheckpointJournal(journal, csv, "Visit\t/events");
+        Assert.assertFalse(resumed.isCompleted("f2"));
+        Assert.assertEquals(resumed.getOffset(), 12);
+        resumed.close();
+
+        // another export starts over
+        CheckpointJournal other = new CheckpointJournal(journal, csv, "Click\t/events");
+        Assert.assertFalse(other.isCompleted("f0"));
+        Assert.assertEquals(csv.length(), 0);
+        other.close();
+    }
+
+    @Test(groups = "fast")
+    public void testResumeKeepsTheRejects() throws Exception
+    {
+        RowSchema typed = new RowSchema(new String[]{"id", "name"}, new String[]{"INTEGER", "STRING"});
+        File rejects = new File(dir, "rejects.json");
+
+        // one row in 10 of the first two files is rejected
+        try {
+            loader(rejects, 0.08).convertFiles(files(true, 10), typed);
+            Assert.fail("the third file is broken");
+        }
+        catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("connection reset"));
+        }
+
+        // this attempt rejects nothing, but 60 of the 1200 rows are rejected once the previous attempt is counted
+        try {
+            loader(rejects, 0.04).convertFiles(files(false, 10), typed);
+            Assert.fail("5% of the rows are rejected");
+        }
+        catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("Rejected 60 of 1200 rows"), e.getMessage());
+        }
+
+        // every file is journaled by now, the rejects of each attempt are kept once
+        loader(rejects, 0.08).convertFiles(files(false, 10), typed);
+        List<String> rejected = Files.readLines(rejects, Charsets.UTF_8);
+        Assert.assertEquals(rejected.size(), 60);
+        for (int i = 0; i < rejected.size(); i++) {
+            Assert.assertTrue(rejected.get(i).contains("\"x" + (i * 10) + "\""), rejected.get(i));
+        }
+        Assert.assertEquals(Files.readLines(new File(dir, "events.csv"), Charsets.UTF_8).size(), 1140);
+    }
+
+    private EventLoader loader()
+    {
+        return loader(null, 1);
+    }
+
+    private EventLoader loader(File rejects, double maxErrorRate)
+    {
+        EventLoaderConfiguration configuration = configuration(TestShardedOutput.Lines.class);
+        if (rejects != null) {
+            configuration.setRejectsFile(rejects.getPath());
+        }
+        configuration.setMaxErrorRate(maxErrorRate);
+        configuration.setConversionThreads(3);
+        configuration.setCheckpoint(true);
+        return new EventLoader(configuration);
+    }
+
+    // four files of 300 rows in batches of 100
+    private Map<String, List<RowSource>> files(boolean failing)
+    {
+        return files(failing, 0);
+    }
+
+    /**
+     * @param invalidEvery one row in that many of the first two files has an invalid id, 0 for none
+     */
+    private Map<String, List<RowSource>> files(final boolean failing, int invalidEvery)
+    {
+        Map<String, List<RowSource>> files = new LinkedHashMap<String, List<RowSource>>();
+        for (int f = 0; f < 4; f++) {
+            final boolean broken = failing && f == 2;
+            final boolean completed = !failing && f < 2;
+            List<RowSource> splits = new ArrayList<RowSource>();
+            for (int b = 0; b < 3; b++) {
+                final List<String[]> rows = rows(f * 300 + b * 100, 100, f < 2 ? invalidEvery : 0);
+                final boolean last = b == 2;
+                splits.add(new RowSource()
+                {
+                    public void read(RowConsumer consumer) throws IOException
+                    {
+                        Assert.assertFalse(completed, "completed files are skipped");
+                        if (broken && last) {
+                            throw new IOException("connection reset");
+                        }
+                        new ListRowSource(rows).read(consumer);
+                    }
+                });
+            }
+            files.put("hdfs://f" + f, splits);
+        }
+        return files;
+    }
+
+    private static List<String[]> rows(int first, int count, int invalidEvery)
+    {
+        List<String[]> rows = new ArrayList<String[]>();
+        for (int i = first; i < first + count; i++) {
+            boolean invalid = invalidEvery > 0 && i % invalidEvery == 0;
+            rows.add(new String[]{(invalid ? "x" : "") + i, "event " + i});
+        }
+        return rows;
+    }
+
+    private static String expected()
+    {
+        StringBuilder csv = new StringBuilder();
+        for (String[] row : rows(0, 1200, 0)) {
+            csv.append(row[0]).append('|').append(row[1]).append('\n');
+        }
+        return csv.toString();
+    }
+}
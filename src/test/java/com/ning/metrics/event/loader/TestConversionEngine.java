@@ -0,0 +1,159 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestConversionEngine
+{
+    private static final int BATCHES = 40;
+    private static final RowSchema schema = new RowSchema("id", "name");
+
+    public static class SlowLines extends TestShardedOutput.Lines
+    {
+        @Override
+        public void transformRow(Row row, RowBuffer output, String delimiter) throws IOException
+        {
+            if (row.get(1).endsWith(" 0")) {
+                sleep(20);
+            }
+            super.transformRow(row, output, delimiter);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testOrderAndSlowTransformers() throws Exception
+    {
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        ConversionEngine engine = engine(SlowLines.class, csv);
+        convert(engine);
+
+        Assert.assertEquals(csv.toString("UTF-8"), expected());
+        Assert.assertEquals(engine.getStats().getCapacity(), 8);
+    }
+
+    @Test(groups = "fast")
+    public void testSlowWriter() throws Exception
+    {
+        final Thread parser = Thread.currentThread();
+        final ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        ConversionEngine engine = engine(TestShardedOutput.Lines.class, new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+                csv.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+                if (csv.size() == 0) {
+                    // the queue fills up behind the first segment: hold it until the parser waits for room
+                    while (parser.getState() != Thread.State.TIMED_WAITING) {
+                        Thread.yield();
+                    }
+                    sleep(5);
+                }
+                csv.write(b, off, len);
+            }
+        });
+        convert(engine);
+
+        Assert.assertEquals(csv.toString("UTF-8"), expected());
+        Assert.assertTrue(engine.getStats().getParserBlockedMillis() > 0);
+    }
+
+    @Test(groups = "fast")
+    public void testWriterFailure() throws Exception
+    {
+        ConversionEngine engine = engine(TestShardedOutput.Lines.class, new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                throw new IOException("disk full");
+            }
+        });
+        try {
+            convert(engine);
+            Assert.fail("the output is broken");
+        }
+        catch (IOException e) {
+            Assert.assertEquals(e.getMessage(), "disk full");
+        }
+    }
+
+    private static ConversionEngine engine(Class<? extends RowTransformation> transformation, OutputStream out) throws Exception
+    {
+        return new ConversionEngine(new TransformationFactory(transformation.getName()), schema, "|", Charset.forName("UTF-8"), 4, out);
+    }
+
+    private static void convert(ConversionEngine engine) throws IOException
+    {
+        try {
+            for (int b = 0; b < BATCHES; b++) {
+                engine.submit(new ListRowSource(rows(b)));
+            }
+            engine.finish();
+            Assert.assertEquals(engine.getRowCount(), BATCHES * 10);
+        }
+        finally {
+            engine.close();
+        }
+    }
+
+    private static List<String[]> rows(int batch)
+    {
+        List<String[]> rows = new ArrayList<String[]>();
+        for (int i = 0; i < 10; i++) {
+            rows.add(new String[]{String.valueOf(batch * 10 + i), "event " + i});
+        }
+        return rows;
+    }
+
+    private static String expected()
+    {
+        StringBuilder csv = new StringBuilder();
+        for (int b = 0; b < BATCHES; b++) {
+            for (String[] row : rows(b)) {
+                csv.append(row[0]).append('|').append(row[1]).append('\n');
+            }
+        }
+        return csv.toString();
+    }
+
+    private static void sleep(long millis)
+    {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
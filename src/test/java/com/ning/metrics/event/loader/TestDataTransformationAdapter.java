@@ -0,0 +1,95 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+
+package com.ning.metrics.event.loader;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.ning.metrics.goodwill.access.GoodwillSchemaField;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/*
+  Custom transformations written against transformRow(List, HashMap, String) keep working through
+  DataTransformationAdapter, with their output encoded in the charset of the export.
+*/
+public class TestDataTransformationAdapter extends TemporaryDirectoryTest
+{
+    private static final String LISTING = "{\"entries\": [{\"path\": \"/e/f1\", \"isDir\": false, \"content\": ["
+        + "{\"id\": \"1\", \"name\": \"caf\u00e9\"}, {\"name\": \"na\u00efve\", \"id\": \"2\"}]}]}";
+
+    // a DataTransformationBase subclass with its own transformRow
+    public static class Uppercase extends DataTransformationBase
+    {
+        @Override
+        public String transformRow(List<GoodwillSchemaField> columnTypes, HashMap columnValues, String delimiter)
+        {
+            return columnValues.get("id") + delimiter + columnValues.get("name").toString().toUpperCase(Locale.ENGLISH) + "\n";
+        }
+    }
+
+    // a transformation from before DataTransformation, found by the signature of its method
+    public static class Reversed
+    {
+        public String transformRow(List<GoodwillSchemaField> columnTypes, HashMap columnValues, String delimiter)
+        {
+            return columnTypes.size() + delimiter + columnValues.get("name") + delimiter + columnValues.get("id") + "\n";
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSubclassOverridingTransformRow() throws Exception
+    {
+        Assert.assertTrue(new TransformationFactory(Uppercase.class.getName()).create(schema()) instanceof DataTransformationAdapter);
+
+        String expected = "1|CAF\u00c9\n2|NA\u00cfVE\n";
+        Assert.assertEquals(export(Uppercase.class, Charsets.UTF_8), expected.getBytes(Charsets.UTF_8));
+        Assert.assertEquals(export(Uppercase.class, Charsets.ISO_8859_1), expected.getBytes(Charsets.ISO_8859_1));
+    }
+
+    @Test(groups = "fast")
+    public void testClassDeclaringTransformRow() throws Exception
+    {
+        Assert.assertTrue(new TransformationFactory(Reversed.class.getName()).create(schema()) instanceof DataTransformationAdapter);
+
+        String expected = "2|caf\u00e9|1\n2|na\u00efve|2\n";
+        Assert.assertEquals(export(Reversed.class, Charsets.UTF_8), expected.getBytes(Charsets.UTF_8));
+        Assert.assertEquals(export(Reversed.class, Charsets.ISO_8859_1), expected.getBytes(Charsets.ISO_8859_1));
+    }
+
+    private byte[] export(Class<?> transformation, Charset charset) throws Exception
+    {
+        EventLoaderConfiguration configuration = configuration(transformation);
+        configuration.setCharset(charset);
+        export(configuration, LISTING, schema());
+        return Files.toByteArray(new File(dir, "events.csv"));
+    }
+
+    // the adapter hands the Goodwill fields to the transformation
+    private static RowSchema schema() throws Exception
+    {
+        return new RowSchema(StaticSchemas.schema("Visit", "id", "name").getSchema());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestGeoIpDatabase
+{
+    // out of order, quoted and unquoted, dot decimal and decimal, on both sides of 128.0.0.0
+    private static final String RANGES = "startIp,endIp,country,latitude,longitude\n"
+        + "\"192.168.0.0\",\"192.168.255.255\",\"FR\",\"48.8600\",\"2.3500\"\n"
+        + "16777216,16777471,AU,-27,133\n"
+        + "10.0.0.0,10.0.0.255,US,37.751,-97.822\n"
+        + "255.255.255.0,255.255.255.255,ZZ,0,-0.5\n";
+
+    private File file;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        file = File.createTempFile("geoip", ".csv");
+        Files.write(RANGES, file, Charsets.UTF_8);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testLookup() throws Exception
+    {
+        GeoIpDatabase database = GeoIpDatabase.load(file);
+        Assert.assertEquals(database.size(), 4);
+
+        Assert.assertEquals(country(database, "1.0.0.0"), "AU");
+        Assert.assertEquals(country(database, "1.0.0.255"), "AU");
+        Assert.assertEquals(country(database, "1.0.1.0"), null);
+        Assert.assertEquals(country(database, "0.255.255.255"), null);
+        Assert.assertEquals(country(database, "10.0.0.17"), "US");
+        Assert.assertEquals(country(database, "192.168.3.4"), "FR");
+        Assert.assertEquals(country(database, "3232236292"), "FR");
+        Assert.assertEquals(country(database, "192.169.0.0"), null);
+        Assert.assertEquals(country(database, "255.255.255.255"), "ZZ");
+
+        int range = database.find(DataTransformationBase.ipToInt("10.0.0.1"));
+        Assert.assertEquals(database.getLatitude(range), 377510);
+        Assert.assertEquals(database.getLongitude(range), -978220);
+    }
+
+    @Test(groups = "fast")
+    public void testEnrichment() throws Exception
+    {
+        RowSchema schema = new RowSchema("id", "ip");
+        GeoIpEnricher enricher = new GeoIpEnricher(new TestShardedOutput.Lines(), GeoIpDatabase.load(file), schema, "ip", 2);
+        Row row = new Row(schema);
+        RowBuffer csv = new RowBuffer(Charsets.UTF_8, 64);
+        for (String ip : new String[]{"10.0.0.1", "192.168.1.1", "10.0.0.1", "8.8.8.8", "", "not an ip", "1.0.0.1", "255.255.255.1"}) {
+            row.wrap(new String[]{"1", ip});
+            enricher.transformRow(row, csv, "|");
+        }
+
+        Assert.assertEquals(new String(csv.toByteArray(), Charsets.UTF_8), "1|10.0.0.1\"US\"|37.7510|-97.8220|\n"
+            + "1|192.168.1.1\"FR\"|48.8600|2.3500|\n"
+            + "1|10.0.0.1\"US\"|37.7510|-97.8220|\n"
+            + "1|8.8.8.8|||\n"
+            + "1||||\n"
+            + "1|not an ip|||\n"
+            + "1|1.0.0.1\"AU\"|-27.0000|133.0000|\n"
+            + "1|255.255.255.1\"ZZ\"|0.0000|-0.5000|\n");
+        Assert.assertEquals(enricher.getCache().getHits(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testOverlappingRanges() throws Exception
+    {
+        Files.write(RANGES + "10.0.0.128,10.0.1.0,DE,51,9\n", file, Charsets.UTF_8);
+        try {
+            GeoIpDatabase.load(file);
+            Assert.fail("10.0.0.128 is in two ranges");
+        }
+        catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("overlapping"));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testReloadWhenChanged() throws Exception
+    {
+        GeoIpDatabase database = GeoIpDatabase.forFile(file);
+        Assert.assertSame(GeoIpDatabase.forFile(file), database);
+
+        Files.write("10.0.0.0,10.0.0.255,CA,45,-75\n", file, Charsets.UTF_8);
+        Assert.assertTrue(file.setLastModified(file.lastModified() + 2000));
+        GeoIpDatabase reloaded = GeoIpDatabase.forFile(file);
+        Assert.assertEquals(reloaded.size(), 1);
+        Assert.assertEquals(country(reloaded, "10.0.0.1"), "CA");
+    }
+
+    private static String country(GeoIpDatabase database, String ip)
+    {
+        int range = database.find(DataTransformationBase.ipToInt(ip));
+        return range < 0 ? null : database.getCountry(range);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestHdfsEventSource extends TemporaryDirectoryTest
+{
+    private File eventDir;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        eventDir = new File(dir, "events");
+        new File(eventDir, "00").mkdirs();
+        new File(eventDir, "01").mkdirs();
+
+        StringBuilder first = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            first.append("{\"id\":").append(i).append(",\"name\":\"event ").append(i).append("\",\"extra\":{\"nested\":[1,2]}}\n");
+        }
+        writeFile(new File(eventDir, "00/part-00000"), first.toString());
+        writeFile(new File(eventDir, "01/part-00000"), "{\"name\":\"last\",\"id\":500}");
+        writeFile(new File(eventDir, "01/_SUCCESS"), "not an event");
+    }
+
+    @Test(groups = "fast")
+    public void testSplitsCoverEveryLineOnce() throws Exception
+    {
+        // small splits so that split boundaries fall inside and right at the start of lines
+        for (long splitSize : new long[]{1, 37, 64, 1000, 1 << 20}) {
+            HdfsEventSource source = new HdfsEventSource("file://" + eventDir.getAbsolutePath(), new RowSchema("id", "name"), splitSize);
+            final List<String> rows = new ArrayList<String>();
+            for (RowSource split : source.getSplits()) {
+                split.read(new RowConsumer()
+                {
+                    public void consume(String[] row) throws IOException
+                    {
+                        rows.add(row[0] + "/" + row[1]);
+                    }
+                });
+            }
+
+            Assert.assertEquals(rows.size(), 501, "split size " + splitSize);
+            for (int i = 0; i < 500; i++) {
+                Assert.assertEquals(rows.get(i), i + "/event " + i);
+            }
+            Assert.assertEquals(rows.get(500), "500/last");
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSequenceFilesOfThriftSmileAndJsonEvents() throws Exception
+    {
+        File sequenceDir = new File(dir, "sequence");
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.getLocal(conf);
+        SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, new Path(new File(sequenceDir, "part-00000").getAbsolutePath()), Text.class, BytesWritable.class);
+        try {
+            for (int i = 0; i < 300; i++) {
+                byte[] event = new TestThriftEventDecoder.ThriftEvent().string(2, "event " + i).i32(3, i).i64(1, i).stop();
+                if (i % 10 >= 8) {
+                    event = ("{\"id\":" + i + ",\"name\":\"event " + i + "\"}").getBytes("UTF-8");
+                }
+                if (i % 10 == 9) {
+                    ByteArrayOutputStream smile = new ByteArrayOutputStream();
+                    SmileStreams.transcode(SmileStreams.createParser(event, 0, event.length), smile);
+                    event = smile.toByteArray();
+                }
+                writer.append(new Text("Click"), new BytesWritable(event));
+            }
+        }
+        finally {
+            writer.close();
+        }
+
+        for (long splitSize : new long[]{1, 37, 500, 1 << 20}) {
+            HdfsEventSource source = new HdfsEventSource("file://" + sequenceDir.getAbsolutePath(), TestThriftEventDecoder.schema(), splitSize);
+            final List<String> rows = new ArrayList<String>();
+            for (RowSource split : source.getSplits()) {
+                split.read(new RowConsumer()
+                {
+                    public void consume(String[] row) throws IOException
+                    {
+                        rows.add(row[1] + "/" + row[0]);
+                    }
+                });
+            }
+
+            Assert.assertEquals(rows.size(), 300, "split size " + splitSize);
+            for (int i = 0; i < 300; i++) {
+                Assert.assertEquals(rows.get(i), i + "/event " + i);
+            }
+        }
+    }
+
+    private void writeFile(File file, String content) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        }
+        finally {
+            out.close();
+        }
+    }
+}
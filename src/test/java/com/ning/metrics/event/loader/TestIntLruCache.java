@@ -0,0 +1,81 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestIntLruCache
+{
+    @Test(groups = "fast")
+    public void testEvictsLeastRecentlyUsed() throws Exception
+    {
+        IntLruCache cache = new IntLruCache(3);
+        cache.put(1, 10);
+        cache.put(2, 20);
+        cache.put(3, 30);
+        Assert.assertEquals(cache.get(1, -1), 10);
+
+        // 2 is the least recently used
+        cache.put(4, 40);
+        Assert.assertEquals(cache.size(), 3);
+        Assert.assertEquals(cache.get(2, -1), -1);
+        Assert.assertEquals(cache.get(1, -1), 10);
+        Assert.assertEquals(cache.get(3, -1), 30);
+        Assert.assertEquals(cache.get(4, -1), 40);
+
+        // now 1
+        cache.put(5, 50);
+        Assert.assertEquals(cache.get(1, -1), -1);
+        Assert.assertEquals(cache.get(5, 50), 50);
+        Assert.assertEquals(cache.getHits(), 5);
+        Assert.assertEquals(cache.getMisses(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testAgainstReference() throws Exception
+    {
+        // same behavior as an access ordered LinkedHashMap, with colliding and negative keys
+        final int capacity = 64;
+        LinkedHashMap<Integer, Integer> reference = new LinkedHashMap<Integer, Integer>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+        IntLruCache cache = new IntLruCache(capacity);
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            int key = (random.nextInt(200) - 100) << (random.nextBoolean() ? 0 : 24);
+            Integer expected = reference.get(key);
+            int value = cache.get(key, Integer.MIN_VALUE);
+            Assert.assertEquals(value, expected == null ? Integer.MIN_VALUE : expected.intValue());
+            if (expected == null) {
+                reference.put(key, i);
+                cache.put(key, i);
+            }
+        }
+    }
+}
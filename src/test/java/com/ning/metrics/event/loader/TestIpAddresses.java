@@ -0,0 +1,108 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import com.google.common.base.Charsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Pattern;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestIpAddresses
+{
+    private static final Pattern DOT_SPLIT = Pattern.compile("\\.");
+
+    @Test(groups = "fast")
+    public void testSameAsRegexParsing() throws Exception
+    {
+        Random random = new Random(7);
+        for (int i = 0; i < 100000; i++) {
+            String dotted = random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+            String unsigned = String.valueOf(random.nextLong() & 0xFFFFFFFFL);
+            String signed = String.valueOf(random.nextInt());
+            for (String ip : new String[]{dotted, unsigned, signed}) {
+                Assert.assertEquals(IpAddresses.parse(ip), regexIpToInt(ip), ip);
+                byte[] bytes = (" " + ip + " ").getBytes(Charsets.US_ASCII);
+                Assert.assertEquals(IpAddresses.parse(bytes, 1, bytes.length - 2), regexIpToInt(ip), ip);
+            }
+        }
+        for (String ip : new String[]{"", "0.0.0.0", "255.255.255.255", "0", "4294967295", "-2147483648", "+7", "010.001.0.1"}) {
+            Assert.assertEquals(IpAddresses.parse(ip), regexIpToInt(ip), ip);
+            Assert.assertEquals(DataTransformationBase.ipToInt(ip), regexIpToInt(ip), ip);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testInvalid() throws Exception
+    {
+        for (String ip : new String[]{"1.2.3", "1.2.3.4.5", "1..2.3", ".1.2.3", "1.2.3.", "1.2.3.256", "4294967296", "-2147483649", "-", "a.b.c.d", "10.0.0.1 ", "1.2.3.-4"}) {
+            Assert.assertFalse(IpAddresses.isValid(ip), ip);
+            try {
+                IpAddresses.parse(ip.getBytes(Charsets.US_ASCII), 0, ip.length());
+                Assert.fail(ip);
+            }
+            catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage().contains(ip), e.getMessage());
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testBatch() throws Exception
+    {
+        String[] column = {"10.0.0.1", null, "nope", "3232235777", ""};
+        int[] out = new int[column.length];
+        Assert.assertEquals(IpAddresses.parseAll(column, column.length, out, -1), 2);
+        Assert.assertEquals(Arrays.toString(out), Arrays.toString(new int[]{regexIpToInt("10.0.0.1"), -1, -1, regexIpToInt("3232235777"), 0}));
+
+        int[] chain = new int[2];
+        Assert.assertEquals(IpAddresses.parseList("10.15.12.19, 10.18.240.62 ,1.2.3.4", ',', chain), 3);
+        Assert.assertEquals(Arrays.toString(chain), Arrays.toString(new int[]{regexIpToInt("10.15.12.19"), regexIpToInt("10.18.240.62")}));
+        Assert.assertEquals(IpAddresses.parseList("", ',', chain), 0);
+    }
+
+    // the split based implementation ipToInt used to have
+    private static int regexIpToInt(String ipStr)
+    {
+        if (ipStr.length() == 0) {
+            return 0;
+        }
+        if (ipStr.indexOf('.') > 0) {
+            String[] parts = DOT_SPLIT.split(ipStr);
+            if (parts.length == 4) {
+                int ip = 0;
+                for (int n = 0; n < 4; n++) {
+                    ip <<= 8;
+                    ip += Integer.parseInt(parts[n]);
+                }
+                return ip + (1 << 31);
+            }
+        }
+        if (ipStr.startsWith("-")) {
+            return Integer.parseInt(ipStr);
+        }
+        long l = Long.parseLong(ipStr);
+        if (l > 0x0FFFFFFFFL) {
+            throw new NumberFormatException("Overflow");
+        }
+        return (int) l + (1 << 31);
+    }
+}
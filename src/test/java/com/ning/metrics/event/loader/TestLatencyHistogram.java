@@ -0,0 +1,79 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import java.util.Random;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestLatencyHistogram
+{
+    @Test(groups = "fast")
+    public void testBuckets() throws Exception
+    {
+        for (long value : new long[]{0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            Assert.assertTrue(LatencyHistogram.upperBoundOf(bucket) >= value, "bucket of " + value);
+            Assert.assertTrue(bucket == 0 || LatencyHistogram.upperBoundOf(bucket - 1) < value, "bucket of " + value);
+        }
+        for (long value = 0; value < 100000; value++) {
+            Assert.assertEquals(LatencyHistogram.bucketOf(LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(value))), LatencyHistogram.bucketOf(value));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testPercentiles() throws Exception
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(histogram.getPercentileNanos(99), 0);
+        Assert.assertEquals(histogram.getMeanNanos(), 0);
+
+        // 1 to 100 microseconds, shuffled
+        Random random = new Random(7);
+        long[] values = new long[100];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i + 1) * 1000L;
+        }
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long swap = values[i];
+            values[i] = values[j];
+            values[j] = swap;
+        }
+        for (long value : values) {
+            histogram.record(value);
+        }
+        histogram.record(-5);
+
+        Assert.assertEquals(histogram.getCount(), 101);
+        Assert.assertEquals(histogram.getMaxNanos(), 100000);
+        Assert.assertEquals(histogram.getTotalNanos(), 5050000);
+        assertWithin(histogram.getPercentileNanos(50), 50000);
+        assertWithin(histogram.getPercentileNanos(90), 90000);
+        assertWithin(histogram.getPercentileNanos(99), 99000);
+        Assert.assertEquals(histogram.getPercentileNanos(100), 100000);
+        Assert.assertEquals(histogram.getPercentileNanos(0), 0);
+    }
+
+    private static void assertWithin(long actual, long expected)
+    {
+        Assert.assertTrue(actual >= expected && actual <= expected + expected / 16, actual + " for " + expected);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestLoaderMetrics extends TemporaryDirectoryTest
+{
+    private static final RowSchema schema = new RowSchema(new String[]{"id", "when"}, new String[]{"STRING", "DATE"});
+    private static final String LISTING = "{\"entries\": [{\"path\": \"/e/f1\", \"isDir\": false, \"content\": ["
+        + "{\"id\": \"a\", \"when\": \"1308957622623\", \"extra\": \"x\"}, {\"id\": \"b\", \"when\": \"yesterday\"}]}]}";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    @Test(groups = "fast")
+    public void testSummary() throws Exception
+    {
+        File summary = new File(dir, "summary.json");
+        export(summary);
+        export(summary);
+
+        List<String> lines = Files.readLines(summary, Charsets.UTF_8);
+        Assert.assertEquals(lines.size(), 2);
+        Map metrics = mapper.readValue(lines.get(1), Map.class);
+        Assert.assertEquals(metrics.get("eventType"), "Visit");
+        Assert.assertEquals(metrics.get("path"), "/e");
+        Assert.assertEquals(metrics.get("succeeded"), Boolean.TRUE);
+        Assert.assertEquals(((Number) metrics.get("rowsRead")).longValue(), 2);
+        Assert.assertEquals(((Number) metrics.get("rowsWritten")).longValue(), 2);
+        Assert.assertEquals(((Number) metrics.get("bytesWritten")).longValue(), new File(dir, "events.csv").length());
+        Assert.assertEquals(((Number) metrics.get("skippedFields")).longValue(), 1);
+        Assert.assertEquals(((Map) metrics.get("columnFailures")).toString(), "{when=1}");
+
+        Map stages = (Map) metrics.get("stages");
+        Assert.assertEquals(stages.keySet().toString(), "[download, parse, convert, write]");
+        Assert.assertEquals(((Number) ((Map) stages.get("parse")).get("count")).longValue(), 1);
+        Assert.assertEquals(((Number) ((Map) stages.get("convert")).get("count")).longValue(), 1);
+        Assert.assertEquals(((Number) ((Map) stages.get("write")).get("count")).longValue(), 1);
+        Assert.assertEquals(((Number) ((Map) stages.get("download")).get("count")).longValue(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testJmxAndHttp() throws Exception
+    {
+        LoaderMetrics metrics = new LoaderMetrics("Click", "/c");
+        metrics.written(10, 200);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.ning.metrics.event.loader:type=Export,event=\"Click\"");
+
+        metrics.start();
+        MetricsServer http = new MetricsServer(0);
+        http.start();
+        try {
+            Assert.assertEquals(server.getAttribute(name, "RowsWritten"), 10L);
+            Assert.assertEquals(server.getAttribute(name, "EventType"), "Click");
+
+            InputStream in = new URL("http://127.0.0.1:" + http.getPort() + "/metrics").openStream();
+            List exports = mapper.readValue(new String(ByteStreams.toByteArray(in), "UTF-8"), List.class);
+            in.close();
+            Assert.assertEquals(exports.size(), 1);
+            Assert.assertEquals(((Map) exports.get(0)).get("eventType"), "Click");
+            Assert.assertEquals(((Number) ((Map) exports.get(0)).get("bytesWritten")).longValue(), 200);
+        }
+        finally {
+            http.stop();
+            Assert.assertTrue(metrics.finish(true));
+        }
+
+        Assert.assertFalse(server.isRegistered(name));
+        Assert.assertTrue(LoaderMetrics.getActive().isEmpty());
+        Assert.assertFalse(metrics.finish(true));
+    }
+
+    private void export(File summary) throws Exception
+    {
+        EventLoaderConfiguration configuration = configuration(DataTransformationBase.class);
+        configuration.setSummaryFile(summary.getPath());
+        export(configuration, LISTING, schema);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/*
+  Uses sh and cat in place of nzload, needs mkfifo (Linux, Mac OS)
+*/
+public class TestNamedPipeOutput extends TemporaryDirectoryTest
+{
+    private File fifo;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        if (!new File("/usr/bin/mkfifo").exists() && !new File("/bin/mkfifo").exists()) {
+            throw new SkipException("mkfifo is not available");
+        }
+        fifo = new File(dir, "events.pipe");
+    }
+
+    @Test(groups = "fast")
+    public void testStreamsRowsToTheLoadCommand() throws Exception
+    {
+        File loaded = new File(dir, "loaded.csv");
+        NamedPipeOutput output = new NamedPipeOutput(fifo, shell("cat \"$0\" > " + loaded.getPath()), 10000);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            String row = i + "|\"row " + i + "\"|\n";
+            output.write(row.getBytes("UTF-8"));
+            expected.append(row);
+        }
+        output.close();
+
+        Assert.assertFalse(fifo.exists());
+        Assert.assertEquals(readFile(loaded), expected.toString());
+    }
+
+    @Test(groups = "fast")
+    public void testReaderClosingEarly() throws Exception
+    {
+        NamedPipeOutput output = new NamedPipeOutput(fifo, shell("head -c 10 \"$0\" > /dev/null"), 10000);
+        byte[] rows = new byte[64 * 1024];
+        try {
+            for (int i = 0; i < 1000; i++) {
+                output.write(rows);
+            }
+            Assert.fail("the reader went away after 10 bytes");
+        }
+        catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("closed the pipe early"), e.getMessage());
+        }
+        output.abort();
+        Assert.assertFalse(fifo.exists());
+    }
+
+    @Test(groups = "fast")
+    public void testFailedLoadCommand() throws Exception
+    {
+        NamedPipeOutput output = new NamedPipeOutput(fifo, shell("cat \"$0\" > /dev/null; exit 3"), 10000);
+        output.write("1|2|\n".getBytes("UTF-8"));
+        try {
+            output.close();
+            Assert.fail("the load command failed");
+        }
+        catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("status 3"), e.getMessage());
+        }
+        Assert.assertFalse(fifo.exists());
+    }
+
+    @Test(groups = "fast")
+    public void testLoadCommandNotOpeningThePipe() throws Exception
+    {
+        try {
+            new NamedPipeOutput(fifo, shell("exit 1"), 10000);
+            Assert.fail("nothing reads the pipe");
+        }
+        catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("before opening"), e.getMessage());
+        }
+        Assert.assertFalse(fifo.exists());
+    }
+
+    @Test(groups = "fast")
+    public void testNoReader() throws Exception
+    {
+        long start = System.currentTimeMillis();
+        try {
+            new NamedPipeOutput(fifo, shell("sleep 30"), 300);
+            Assert.fail("nothing reads the pipe");
+        }
+        catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("No reader"), e.getMessage());
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        Assert.assertFalse(fifo.exists());
+    }
+
+    @Test(groups = "fast")
+    public void testLoadCommandIsRequired() throws Exception
+    {
+        for (List<String> command : Arrays.asList(null, Arrays.<String>asList())) {
+            try {
+                new NamedPipeOutput(fifo, command, 300);
+                Assert.fail("a reader started elsewhere cannot see an abort");
+            }
+            catch (IllegalArgumentException e) {
+                Assert.assertFalse(fifo.exists());
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testExistingFile() throws Exception
+    {
+        Assert.assertTrue(fifo.createNewFile());
+        try {
+            new NamedPipeOutput(fifo, shell("cat \"$0\" > /dev/null"), 300);
+            Assert.fail(fifo + " is in the way");
+        }
+        catch (IOException e) {
+            Assert.assertTrue(fifo.exists());
+        }
+    }
+
+    // the fifo path, appended to the command, is $0 of the script
+    private static List<String> shell(String script)
+    {
+        return Arrays.asList("sh", "-c", script);
+    }
+
+    private static String readFile(File file) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            StringBuilder content = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                content.append(line).append('\n');
+            }
+            return content.toString();
+        }
+        finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestParallelGzipOutputStream
+{
+    private static final int BLOCK_SIZE = 1000;
+
+    @Test(groups = "fast")
+    public void testRoundTrip() throws Exception
+    {
+        for (int size : new int[]{0, 1, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1, 50 * BLOCK_SIZE + 17}) {
+            byte[] data = csv(size);
+            Assert.assertEquals(gunzip(gzip(data, 4)), data, "size " + size);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSameOutputWhateverTheThreads() throws Exception
+    {
+        byte[] data = csv(20 * BLOCK_SIZE + 3);
+        Assert.assertEquals(gzip(data, 1), gzip(data, 8));
+    }
+
+    @Test(groups = "fast")
+    public void testReadableByGunzip() throws Exception
+    {
+        File gunzip = new File("/bin/gunzip");
+        if (!gunzip.exists()) {
+            gunzip = new File("/usr/bin/gunzip");
+        }
+        if (!gunzip.exists()) {
+            return;
+        }
+
+        byte[] data = csv(30 * BLOCK_SIZE + 5);
+        File file = File.createTempFile("parallel", ".csv.gz");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(gzip(data, 4));
+            out.close();
+
+            Process process = new ProcessBuilder(gunzip.getPath(), "-c", file.getPath()).start();
+            byte[] output = ByteStreams.toByteArray(process.getInputStream());
+            Assert.assertEquals(process.waitFor(), 0);
+            Assert.assertEquals(output, data);
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testCloseEndsTheDeflaters() throws Exception
+    {
+        ParallelGzipOutputStream out = new ParallelGzipOutputStream(new ByteArrayOutputStream(), 4, BLOCK_SIZE);
+        // more blocks than can be in flight, some are compressed before close
+        out.write(csv(20 * BLOCK_SIZE));
+        List<Deflater> deflaters = new ArrayList<Deflater>(out.allDeflaters);
+        out.close();
+
+        Assert.assertFalse(deflaters.isEmpty());
+        for (Deflater deflater : deflaters) {
+            try {
+                deflater.getBytesRead();
+                Assert.fail("the zlib memory of the deflater is freed");
+            }
+            catch (NullPointerException e) {
+                // ended
+            }
+        }
+    }
+
+    private static byte[] gzip(byte[] data, int threads) throws Exception
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, threads, BLOCK_SIZE);
+        // uneven writes, across block boundaries
+        int offset = 0;
+        int chunk = 1;
+        while (offset < data.length) {
+            int length = Math.min(chunk, data.length - offset);
+            if (length == 1) {
+                out.write(data[offset]);
+            }
+            else {
+                out.write(data, offset, length);
+            }
+            offset += length;
+            chunk = chunk * 3 % 2311;
+            out.flush();
+        }
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws Exception
+    {
+        return ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+    }
+
+    private static byte[] csv(int size)
+    {
+        Random random = new Random(size);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (random.nextInt(10) == 0 ? '|' : 'a' + random.nextInt(8));
+        }
+        return data;
+    }
+}
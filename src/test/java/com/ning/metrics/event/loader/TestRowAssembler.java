@@ -0,0 +1,124 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestRowAssembler extends TemporaryDirectoryTest
+{
+    private static final RowSchema schema = new RowSchema("id", "name", "count");
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    @Test(groups = "fast")
+    public void testMissingExtraAndReorderedFields() throws Exception
+    {
+        RowAssembler assembler = new RowAssembler(schema);
+        JsonParser parser = jsonFactory.createJsonParser("[{\"count\": 1, \"id\": \"a\", \"name\": \"x\"},"
+            + " {\"id\": \"b\", \"extra\": {\"nested\": [1, {\"name\": \"no\"}]}, \"count\": 2},"
+            + " {\"name\": \"first\", \"name\": \"last\"}, {}]");
+        String[] row = new String[schema.size()];
+        Assert.assertEquals(parser.nextToken(), JsonToken.START_ARRAY);
+
+        Assert.assertEquals(read(assembler, parser, row), "[a, x, 1]");
+        Assert.assertEquals(assembler.getMissingFields(), 0);
+
+        Assert.assertEquals(read(assembler, parser, row), "[b, null, 2]");
+        Assert.assertEquals(assembler.getSkippedFields(), 1);
+        Assert.assertEquals(assembler.getMissingFields(), 1);
+
+        Assert.assertEquals(read(assembler, parser, row), "[null, last, null]");
+        Assert.assertEquals(read(assembler, parser, row), "[null, null, null]");
+        Assert.assertEquals(assembler.getMissingFields(), 6);
+        Assert.assertEquals(parser.nextToken(), JsonToken.END_ARRAY);
+
+        assembler.resetCounts();
+        Assert.assertEquals(assembler.getSkippedFields(), 0);
+        Assert.assertEquals(assembler.getMissingFields(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testWideSchema() throws Exception
+    {
+        for (int width : new int[]{63, 64, 65, 130}) {
+            String[] names = new String[width];
+            StringBuilder json = new StringBuilder("{");
+            for (int i = 0; i < width; i++) {
+                names[i] = "f" + i;
+                if (i % 3 != 0) {
+                    json.append(json.length() == 1 ? "" : ",").append("\"f").append(i).append("\":\"").append(i).append('"');
+                }
+            }
+            RowAssembler assembler = new RowAssembler(new RowSchema(names));
+            String[] row = new String[width];
+            Arrays.fill(row, "stale");
+            JsonParser parser = jsonFactory.createJsonParser(json.append('}').toString());
+            parser.nextToken();
+            assembler.read(parser, row);
+            for (int i = 0; i < width; i++) {
+                Assert.assertEquals(row[i], i % 3 == 0 ? null : String.valueOf(i), "column " + i + " of " + width);
+            }
+            Assert.assertEquals(assembler.getMissingFields(), (width + 2) / 3);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testTruncatedEvent() throws Exception
+    {
+        JsonParser parser = jsonFactory.createJsonParser("{\"id\": \"a\", \"name\": \"x\"");
+        parser.nextToken();
+        try {
+            new RowAssembler(schema).read(parser, new String[schema.size()]);
+            Assert.fail("the event does not end");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testIncompleteEventsDoNotBleed() throws Exception
+    {
+        String listing = "{\"entries\": [{\"path\": \"/e/f1\", \"isDir\": false, \"content\": ["
+            + "{\"id\": \"1\"}, {\"name\": \"b\", \"id\": \"2\", \"tags\": [\"x\", \"y\"]}, {\"id\": \"3\", \"name\": \"c\"}]}]}";
+        EventLoader loader = export(configuration(DataTransformationBase.class), listing, new RowSchema(new String[]{"id", "name"}, new String[]{"STRING", "STRING"}));
+
+        Assert.assertEquals(Files.toString(new File(dir, "events.csv"), Charsets.UTF_8), "\"1\"|\"\"|\n\"2\"|\"b\"|\n\"3\"|\"c\"|\n");
+        Assert.assertEquals(loader.getMetrics().getRowsRead(), 3);
+        Assert.assertEquals(loader.getMetrics().getMissingFields(), 1);
+        Assert.assertEquals(loader.getMetrics().getSkippedFields(), 1);
+    }
+
+    private static String read(RowAssembler assembler, JsonParser parser, String[] row) throws IOException
+    {
+        Assert.assertEquals(parser.nextToken(), JsonToken.START_OBJECT);
+        assembler.read(parser, row);
+        Assert.assertEquals(parser.getCurrentToken(), JsonToken.END_OBJECT);
+        return Arrays.toString(row);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import com.ning.metrics.goodwill.access.GoodwillSchema;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestRowSchema
+{
+    @Test(groups = "fast")
+    public void testSlotResolution() throws Exception
+    {
+        String[] names = new String[60];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "column" + i;
+        }
+        RowSchema schema = new RowSchema(names);
+
+        Assert.assertEquals(schema.size(), 60);
+        for (int i = 0; i < names.length; i++) {
+            // both the interned name and an equal copy resolve
+            Assert.assertEquals(schema.slotOf(names[i].intern()), i);
+            Assert.assertEquals(schema.slotOf(new String(names[i])), i);
+            Assert.assertEquals(schema.getName(i), names[i]);
+        }
+        Assert.assertEquals(schema.slotOf("column60"), -1);
+        Assert.assertEquals(schema.slotOf(""), -1);
+    }
+
+    @Test(groups = "fast")
+    public void testCollidingAndDuplicateNames() throws Exception
+    {
+        // "Aa" and "BB" share a hash code
+        RowSchema schema = new RowSchema("Aa", "BB", "Aa", "AaBB", "BBAa");
+
+        Assert.assertEquals(schema.slotOf("Aa"), 0);
+        Assert.assertEquals(schema.slotOf("BB"), 1);
+        Assert.assertEquals(schema.slotOf("AaBB"), 3);
+        Assert.assertEquals(schema.slotOf("BBAa"), 4);
+        Assert.assertEquals(schema.slotOf("AaAa"), -1);
+    }
+
+    @Test(groups = "fast")
+    public void testFieldsWithoutId() throws Exception
+    {
+        GoodwillSchema goodwill = new ObjectMapper().readValue("{\"name\": \"Visit\", \"schema\": ["
+            + "{\"name\": \"id\", \"type\": \"STRING\", \"position\": 1},"
+            + "{\"name\": \"unset\", \"type\": \"STRING\", \"position\": -1},"
+            + "{\"name\": \"name\", \"type\": \"STRING\", \"position\": 2}]}", GoodwillSchema.class);
+        RowSchema schema = new RowSchema(goodwill.getSchema());
+
+        Assert.assertEquals(schema.slotOfId(1), 0);
+        Assert.assertEquals(schema.slotOfId(2), 2);
+        Assert.assertEquals(schema.slotOfId(-1), -1);
+        Assert.assertEquals(schema.slotOf("unset"), 1);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestRowValidator extends TemporaryDirectoryTest
+{
+    private static final RowSchema schema = new RowSchema(new String[]{"id", "count", "when", "ip"}, new String[]{"STRING", "INTEGER", "DATE", "IP"});
+
+    @Test(groups = "fast")
+    public void testIntegers() throws Exception
+    {
+        for (String value : new String[]{"0", "-1", "+7", "2147483647", "-2147483648", "\u0661\u0662"}) {
+            Assert.assertTrue(RowValidator.isInteger(value, Integer.MIN_VALUE, Integer.MAX_VALUE), value);
+        }
+        for (String value : new String[]{"-", "+", "1.0", "2147483648", "-2147483649", "12a", " 1", "0x10"}) {
+            Assert.assertFalse(RowValidator.isInteger(value, Integer.MIN_VALUE, Integer.MAX_VALUE), value);
+        }
+        Assert.assertTrue(RowValidator.isInteger("-9223372036854775808", Long.MIN_VALUE, Long.MAX_VALUE));
+        Assert.assertFalse(RowValidator.isInteger("9223372036854775808", Long.MIN_VALUE, Long.MAX_VALUE));
+        Assert.assertTrue(RowValidator.isInteger("-128", Byte.MIN_VALUE, Byte.MAX_VALUE));
+        Assert.assertFalse(RowValidator.isInteger("128", Byte.MIN_VALUE, Byte.MAX_VALUE));
+    }
+
+    @Test(groups = "fast")
+    public void testDecimals() throws Exception
+    {
+        for (String value : new String[]{"0", "-1.5", "+.5", "5.", "1e10", "1.5E-3", "00.00"}) {
+            Assert.assertTrue(RowValidator.isDecimal(value), value);
+        }
+        for (String value : new String[]{".", "-", "1e", "1e+", "NaN", "Infinity", "1.2.3", "1,5", "e5"}) {
+            Assert.assertFalse(RowValidator.isDecimal(value), value);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testIpAddresses() throws Exception
+    {
+        RowValidator validator = new RowValidator(new RowSchema(new String[]{"ip"}, new String[]{"IP"}));
+        for (String value : new String[]{"10.0.0.1", "3232235777", "-1", ""}) {
+            Assert.assertEquals(validator.validate(new String[]{value}, null), -1, value);
+        }
+        for (String value : new String[]{"10.0.0.256", "10.0.0", "4294967296", "-", "localhost", "10.0.0.1 "}) {
+            Assert.assertEquals(validator.validate(new String[]{value}, null), 0, value);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testValidate() throws Exception
+    {
+        RowSchema types = new RowSchema(new String[]{"b", "s", "d", "x"}, new String[]{"BOOLEAN", "SHORT", "DOUBLE", "STRING"});
+        RowValidator validator = new RowValidator(types);
+        Assert.assertEquals(validator.validate(new String[]{"TRUE", "-32768", "1.5", "\"anything\""}, null), -1);
+        Assert.assertEquals(validator.validate(new String[]{null, "", null, null}, null), -1);
+        Assert.assertEquals(validator.validate(new String[]{"maybe", "1", "1", "x"}, null), 0);
+
+        LoaderMetrics metrics = new LoaderMetrics("Visit", "/e");
+        Assert.assertEquals(validator.validate(new String[]{"off", "32768", "one", "x"}, metrics), 1);
+        Assert.assertEquals(metrics.getColumnFailuresByColumn().get("s"), Long.valueOf(1));
+        Assert.assertEquals(metrics.getColumnFailuresByColumn().get("d"), Long.valueOf(1));
+        Assert.assertEquals(metrics.getColumnFailures(), 2);
+
+        Map reject = new ObjectMapper().readValue(validator.reject(new String[]{"off", "32768", null, "x"}, 1, "/e/f1"), Map.class);
+        Assert.assertEquals(reject.get("file"), "/e/f1");
+        Assert.assertEquals(reject.get("reason"), "invalid SHORT in s");
+        Assert.assertEquals(((Map) reject.get("row")).get("s"), "32768");
+        Assert.assertTrue(((Map) reject.get("row")).containsKey("d"));
+    }
+
+    @Test(groups = "fast")
+    public void testRejectsFile() throws Exception
+    {
+        File rejects = new File(dir, "rejects.json");
+        for (int threads : new int[]{1, 4}) {
+            export(threads, rejects, 1);
+
+            Assert.assertEquals(Files.toString(new File(dir, "events.csv"), Charsets.UTF_8),
+                "\"a\"|1|\"2011-06-24 23:20:22.623\"|10.0.0.1|\n\"c\"|3|\"2011-06-24 23:20:22.623\"||\n");
+            List<String> lines = Files.readLines(rejects, Charsets.UTF_8);
+            Assert.assertEquals(lines.size(), 2);
+            Assert.assertTrue(lines.get(0).contains("\"file\":\"/e/f1\""), lines.get(0));
+            Assert.assertTrue(lines.get(0).contains("invalid INTEGER in count"), lines.get(0));
+            Assert.assertTrue(lines.get(1).contains("\"file\":\"/e/f2\""), lines.get(1));
+            Assert.assertTrue(lines.get(1).contains("invalid IP in ip"), lines.get(1));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testErrorRateThreshold() throws Exception
+    {
+        File rejects = new File(dir, "rejects.json");
+        export(1, rejects, 0.5);
+        try {
+            export(1, rejects, 0.4);
+            Assert.fail("2 of 4 rows are invalid");
+        }
+        catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("Rejected 2 of 4 rows"), e.getMessage());
+        }
+        // the rejects are kept to see what went wrong
+        Assert.assertEquals(Files.readLines(rejects, Charsets.UTF_8).size(), 2);
+    }
+
+    private void export(int threads, File rejects, double maxErrorRate) throws Exception
+    {
+        EventLoaderConfiguration configuration = configuration(DataTransformationBase.class);
+        configuration.setConversionThreads(threads);
+        configuration.setRejectsFile(rejects.getPath());
+        configuration.setMaxErrorRate(maxErrorRate);
+        String listing = "{\"entries\": ["
+            + "{\"path\": \"/e/f1\", \"isDir\": false, \"content\": ["
+            + "{\"id\": \"a\", \"count\": \"1\", \"when\": \"1308957622623\", \"ip\": \"10.0.0.1\"},"
+            + "{\"id\": \"b\", \"count\": \"two\", \"when\": \"1308957622623\", \"ip\": \"10.0.0.2\"}]},"
+            + "{\"path\": \"/e/f2\", \"isDir\": false, \"content\": ["
+            + "{\"id\": \"c\", \"count\": \"3\", \"when\": \"1308957622623\", \"ip\": \"\"},"
+            + "{\"id\": \"d\", \"count\": \"4\", \"when\": \"1308957622623\", \"ip\": \"10.0.0.256\"}]}]}";
+        export(configuration, listing, schema);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import com.ning.metrics.goodwill.access.GoodwillSchema;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestSchemaCache extends TemporaryDirectoryTest
+{
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    // goodwill stand-in counting its requests
+    private static class CountingCache extends SchemaCache
+    {
+        private final Map<String, GoodwillSchema> registrar = new HashMap<String, GoodwillSchema>();
+        private boolean down = false;
+        private int fetches = 0;
+        private int bulkFetches = 0;
+
+        private CountingCache(File snapshotDir, long ttl)
+        {
+            super("goodwill.test", 8080, snapshotDir, ttl);
+        }
+
+        @Override
+        protected GoodwillSchema fetch(String typeName)
+        {
+            fetches++;
+            if (down) {
+                throw new RuntimeException("connection refused");
+            }
+            return registrar.get(typeName);
+        }
+
+        @Override
+        protected List<GoodwillSchema> fetchAll()
+        {
+            bulkFetches++;
+            return down ? null : new ArrayList<GoodwillSchema>(registrar.values());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testMemoryAndSnapshot() throws Exception
+    {
+        CountingCache cache = new CountingCache(dir, HOUR);
+        cache.registrar.put("Visit", StaticSchemas.schema("Visit", "id", "date"));
+        Assert.assertEquals(cache.get("Visit").getSchema().get(1).getName(), "date");
+        Assert.assertEquals(cache.get("Visit").getSchema().size(), 2);
+        Assert.assertEquals(cache.fetches, 1);
+
+        // a new run reads the snapshot, goodwill is not needed
+        CountingCache nextRun = new CountingCache(dir, HOUR);
+        nextRun.down = true;
+        GoodwillSchema schema = nextRun.get("Visit");
+        Assert.assertEquals(nextRun.fetches, 0);
+        Assert.assertEquals(schema.getName(), "Visit");
+        Assert.assertEquals(schema.getSchema().get(0).getName(), "id");
+        Assert.assertEquals(schema.getSchema().get(1).getId(), 2);
+        Assert.assertEquals(String.valueOf(schema.getSchema().get(1).getType()), "STRING");
+    }
+
+    @Test(groups = "fast")
+    public void testExpiredEntriesAreRefreshed() throws Exception
+    {
+        CountingCache cache = new CountingCache(dir, 0);
+        cache.registrar.put("Visit", StaticSchemas.schema("Visit", "id"));
+        cache.get("Visit");
+        cache.registrar.put("Visit", StaticSchemas.schema("Visit", "id", "ip"));
+        Assert.assertEquals(cache.get("Visit").getSchema().size(), 2);
+        Assert.assertEquals(cache.fetches, 2);
+    }
+
+    @Test(groups = "fast")
+    public void testStaleEntryWhenGoodwillIsDown() throws Exception
+    {
+        CountingCache cache = new CountingCache(dir, HOUR);
+        cache.registrar.put("Visit", StaticSchemas.schema("Visit", "id"));
+        cache.get("Visit");
+
+        CountingCache expired = new CountingCache(dir, 0);
+        expired.down = true;
+        Assert.assertEquals(expired.get("Visit").getSchema().size(), 1);
+        Assert.assertEquals(expired.fetches, 1);
+
+        try {
+            expired.get("Click");
+            Assert.fail("nothing cached for Click");
+        }
+        catch (RuntimeException e) {
+            Assert.assertEquals(e.getMessage(), "connection refused");
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSnapshotOfAnotherVersionIsIgnored() throws Exception
+    {
+        CountingCache cache = new CountingCache(dir, HOUR);
+        cache.registrar.put("Visit", StaticSchemas.schema("Visit", "id"));
+        cache.get("Visit");
+
+        File snapshot = new File(new File(dir, "goodwill.test_8080"), "Visit.json");
+        Assert.assertTrue(snapshot.exists());
+        SchemaCache.Snapshot old = mapper.readValue(snapshot, SchemaCache.Snapshot.class);
+        old.version = 0;
+        mapper.writeValue(snapshot, old);
+
+        CountingCache nextRun = new CountingCache(dir, HOUR);
+        nextRun.registrar.put("Visit", StaticSchemas.schema("Visit", "id"));
+        nextRun.get("Visit");
+        Assert.assertEquals(nextRun.fetches, 1);
+    }
+
+    @Test(groups = "fast")
+    public void testPrefetch() throws Exception
+    {
+        CountingCache cache = new CountingCache(dir, HOUR);
+        cache.registrar.put("Visit", StaticSchemas.schema("Visit", "id"));
+        cache.registrar.put("Click", StaticSchemas.schema("Click", "id", "target"));
+        cache.registrar.put("Other", StaticSchemas.schema("Other", "id"));
+
+        Assert.assertEquals(cache.prefetch(Arrays.asList("Visit", "Click", "Unknown")), 2);
+        Assert.assertEquals(cache.bulkFetches, 1);
+        Assert.assertEquals(cache.get("Click").getSchema().size(), 2);
+        Assert.assertNull(cache.get("Unknown"));
+        Assert.assertEquals(cache.fetches, 1);
+
+        // everything fresh, no request at all
+        Assert.assertEquals(cache.prefetch(Arrays.asList("Visit", "Click")), 2);
+        Assert.assertEquals(cache.bulkFetches, 1);
+        Assert.assertFalse(new File(new File(dir, "goodwill.test_8080"), "Other.json").exists());
+    }
+}
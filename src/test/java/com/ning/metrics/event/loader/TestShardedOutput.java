@@ -0,0 +1,171 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestShardedOutput extends TemporaryDirectoryTest
+{
+    private static final int ROWS = 10000;
+    private static final RowSchema schema = new RowSchema("id", "name");
+
+    public static class Lines implements RowTransformation
+    {
+        public void transformRow(Row row, RowBuffer output, String delimiter) throws IOException
+        {
+            output.append(row.get(0)).append(delimiter).append(row.get(1)).append((byte) '\n');
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRowsWithTheSameKeyShareAShard() throws Exception
+    {
+        String prefix = new File(dir, "events").getPath();
+        convert(new ConversionEngine(new TransformationFactory(Lines.class.getName()), schema, "|", Charset.forName("UTF-8"), 3,
+            new ShardedOutput(prefix, 4), "id"));
+
+        List<String[]> manifest = readManifest(prefix);
+        Assert.assertEquals(manifest.size(), 4);
+
+        Map<String, Integer> shardOfKey = new HashMap<String, Integer>();
+        int total = 0;
+        for (int shard = 0; shard < manifest.size(); shard++) {
+            Assert.assertEquals(manifest.get(shard)[0], String.format("%s-%03d.csv", prefix, shard));
+            List<String> lines = readLines(new File(manifest.get(shard)[0]));
+            Assert.assertEquals(Integer.parseInt(manifest.get(shard)[1]), lines.size());
+            total += lines.size();
+
+            for (String line : lines) {
+                String key = line.substring(0, line.indexOf('|'));
+                Integer previous = shardOfKey.put(key, shard);
+                Assert.assertTrue(previous == null || previous == shard, key + " is in shards " + previous + " and " + shard);
+                Assert.assertEquals((ConversionEngine.fnv1a(key) & 0xffffffffL) % 4, shard);
+            }
+        }
+        Assert.assertEquals(total, ROWS);
+        Assert.assertEquals(shardOfKey.size(), 37);
+    }
+
+    @Test(groups = "fast")
+    public void testRoundRobin() throws Exception
+    {
+        String prefix = new File(dir, "events").getPath();
+        convert(new ConversionEngine(new TransformationFactory(Lines.class.getName()), schema, "|", Charset.forName("UTF-8"), 1,
+            new ShardedOutput(prefix, 4), null));
+
+        for (String[] shard : readManifest(prefix)) {
+            Assert.assertEquals(shard[1], String.valueOf(ROWS / 4));
+            Assert.assertEquals(readLines(new File(shard[0])).size(), ROWS / 4);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRoundRobinOfSmallSegments() throws Exception
+    {
+        // one segment per small input file: each starts on the next shard instead of all on the first ones
+        for (int segmentSize : new int[]{1, 3, 5}) {
+            String prefix = new File(dir, "events" + segmentSize).getPath();
+            convert(new ConversionEngine(new TransformationFactory(Lines.class.getName()), schema, "|", Charset.forName("UTF-8"), 3,
+                new ShardedOutput(prefix, 4), null), 400 * segmentSize, segmentSize);
+
+            for (String[] shard : readManifest(prefix)) {
+                Assert.assertEquals(shard[1], String.valueOf(100 * segmentSize));
+            }
+        }
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownDistributionColumn() throws Exception
+    {
+        ShardedOutput output = new ShardedOutput(new File(dir, "events").getPath(), 2);
+        try {
+            new ConversionEngine(new TransformationFactory(Lines.class.getName()), schema, "|", Charset.forName("UTF-8"), 1, output, "nope");
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testStableHash() throws Exception
+    {
+        // FNV-1a of the UTF-16LE bytes, the shard of a key must not change between releases
+        Assert.assertEquals(ConversionEngine.fnv1a(""), 0x811c9dc5);
+        Assert.assertEquals(ConversionEngine.fnv1a("a"), 0x2b24d044);
+    }
+
+    private void convert(ConversionEngine engine) throws IOException
+    {
+        convert(engine, ROWS, 100);
+    }
+
+    private void convert(ConversionEngine engine, int rows, int segmentSize) throws IOException
+    {
+        try {
+            List<String[]> batch = new ArrayList<String[]>();
+            for (int i = 0; i < rows; i++) {
+                batch.add(new String[]{"user" + (i % 37), "event " + i});
+                if (batch.size() == segmentSize) {
+                    engine.submit(new ListRowSource(batch));
+                    batch = new ArrayList<String[]>();
+                }
+            }
+            engine.finish();
+            Assert.assertEquals(engine.getRowCount(), rows);
+        }
+        finally {
+            engine.close();
+        }
+    }
+
+    private List<String[]> readManifest(String prefix) throws IOException
+    {
+        List<String[]> shards = new ArrayList<String[]>();
+        for (String line : readLines(new File(prefix + ".manifest"))) {
+            shards.add(line.split("\t"));
+        }
+        return shards;
+    }
+
+    private static List<String> readLines(File file) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            List<String> lines = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+            return lines;
+        }
+        finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestSmileStreams extends TemporaryDirectoryTest
+{
+    private static final String LISTING = "{\"entries\": [{\"path\": \"/e/f1\", \"isDir\": false, \"content\": ["
+        + "{\"id\": \"a\", \"name\": \"caf\\u00e9\", \"score\": 1.50, \"count\": 12},"
+        + "{\"id\": \"b\", \"name\": null, \"score\": 1e3, \"count\": 12345678901234567890, \"extra\": {\"nested\": [0.5, true]}},"
+        + "{\"id\": \"c\", \"score\": 0.5, \"count\": -1}]}]}";
+
+    @Test(groups = "fast")
+    public void testFormatIsSniffed() throws Exception
+    {
+        byte[] json = "{\"id\": [1, \"x\", 0.5, null, {}]}".getBytes("UTF-8");
+        byte[] smile = smile(json);
+        Assert.assertTrue(SmileStreams.isSmile(smile, 0, smile.length));
+        Assert.assertFalse(SmileStreams.isSmile(json, 0, json.length));
+        Assert.assertFalse(SmileStreams.isSmile(smile, 0, 2));
+
+        // the same tokens either way, from streams without mark support too
+        Assert.assertEquals(tokens(SmileStreams.createParser(unmarkable(smile))), tokens(SmileStreams.createParser(unmarkable(json))));
+        Assert.assertEquals(tokens(SmileStreams.createParser(smile, 0, smile.length)), tokens(SmileStreams.createParser(json, 0, json.length)));
+
+        // shorter than the header
+        Assert.assertEquals(tokens(SmileStreams.createParser(unmarkable("7".getBytes("UTF-8")))), Arrays.asList("VALUE_NUMBER_INT 7"));
+        Assert.assertEquals(tokens(SmileStreams.createParser(unmarkable(new byte[0]))), new ArrayList<String>());
+    }
+
+    @Test(groups = "fast")
+    public void testTranscodingKeepsTheText() throws Exception
+    {
+        List<String> tokens = tokens(SmileStreams.createParser(LISTING.getBytes("UTF-8"), 0, LISTING.length()));
+        List<String> transcoded = tokens(SmileStreams.createParser(new ByteArrayInputStream(smile(LISTING.getBytes("UTF-8")))));
+        Assert.assertEquals(transcoded.size(), tokens.size());
+        for (int i = 0; i < tokens.size(); i++) {
+            // only the text matters to the conversion: 1.50 and 1e3 do not read back the same as doubles and are kept as strings
+            Assert.assertEquals(transcoded.get(i).substring(transcoded.get(i).indexOf(' ')), tokens.get(i).substring(tokens.get(i).indexOf(' ')));
+        }
+        Assert.assertTrue(transcoded.contains("VALUE_NUMBER_FLOAT 0.5"));
+        Assert.assertTrue(transcoded.contains("VALUE_STRING 1.50"));
+    }
+
+    @Test(groups = "fast")
+    public void testSkipDownloadReadsTheSmileConversion() throws Exception
+    {
+        File json = new File(dir, "visits");
+        Files.write(LISTING, json, Charsets.UTF_8);
+        String expected = "\"a\"|\"caf\u00e9\"|1.50|12|\n\"b\"|\"null\"|1e3|12345678901234567890|\n\"c\"|\"\"|0.5|-1|\n";
+
+        export(json);
+        File smile = new File(dir, "visits.smile");
+        Assert.assertTrue(smile.exists());
+        Assert.assertEquals(Files.toString(new File(dir, "visits.csv"), Charsets.UTF_8), expected);
+
+        // re-runs read the conversion, the json file is not parsed again
+        Files.write("not json", json, Charsets.UTF_8);
+        Assert.assertTrue(json.setLastModified(smile.lastModified() - 60000));
+        export(json);
+        Assert.assertEquals(Files.toString(new File(dir, "visits.csv"), Charsets.UTF_8), expected);
+
+        // unless the json file changed since
+        Files.write(LISTING.replace("\"id\": \"c\"", "\"id\": \"d\""), json, Charsets.UTF_8);
+        Assert.assertTrue(json.setLastModified(smile.lastModified() + 60000));
+        export(json);
+        Assert.assertEquals(Files.toString(new File(dir, "visits.csv"), Charsets.UTF_8), expected.replace("\"c\"", "\"d\""));
+
+        // a kept file that already is Smile is read as is
+        Assert.assertTrue(smile.delete());
+        Files.write(smile(LISTING.getBytes("UTF-8")), json);
+        export(json);
+        Assert.assertFalse(smile.exists());
+        Assert.assertEquals(Files.toString(new File(dir, "visits.csv"), Charsets.UTF_8), expected);
+    }
+
+    private void export(File json) throws Exception
+    {
+        EventLoaderConfiguration configuration = configuration(DataTransformationBase.class);
+        configuration.setOutputFile(json.getPath());
+        configuration.setSkipDownloadFlag(true);
+        configuration.setSmile(true);
+        configuration.setCharset(Charsets.UTF_8);
+        new EventLoader(configuration, new StaticSchemas("id", "name", "score:DOUBLE", "count:LONG"), null).fetchEventData();
+    }
+
+    private static byte[] smile(byte[] json) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SmileStreams.transcode(SmileStreams.createParser(json, 0, json.length), out);
+        return out.toByteArray();
+    }
+
+    private static List<String> tokens(JsonParser parser) throws IOException
+    {
+        List<String> tokens = new ArrayList<String>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != null) {
+            tokens.add(token + " " + parser.getText());
+        }
+        parser.close();
+        return tokens;
+    }
+
+    private static InputStream unmarkable(byte[] bytes)
+    {
+        return new FilterInputStream(new ByteArrayInputStream(bytes))
+        {
+            @Override
+            public boolean markSupported()
+            {
+                return false;
+            }
+        };
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import com.ning.metrics.goodwill.access.GoodwillSchema;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestThriftEventDecoder
+{
+    // output columns in another order than their ids, id 3 is not exported
+    static final String SCHEMA = "{\"name\":\"Click\",\"schema\":[{\"name\":\"name\",\"type\":\"STRING\",\"position\":2},"
+        + "{\"name\":\"id\",\"type\":\"LONG\",\"position\":1},{\"name\":\"score\",\"type\":\"DOUBLE\",\"position\":4},"
+        + "{\"name\":\"active\",\"type\":\"BOOLEAN\",\"position\":5},{\"name\":\"port\",\"type\":\"SHORT\",\"position\":6},"
+        + "{\"name\":\"ip\",\"type\":\"IP\",\"position\":7}]}";
+
+    @Test(groups = "fast")
+    public void testFieldsAreMappedById() throws Exception
+    {
+        RowSchema schema = schema();
+        Assert.assertEquals(schema.slotOfId(1), 1);
+        Assert.assertEquals(schema.slotOfId(2), 0);
+        Assert.assertEquals(schema.slotOfId(3), -1);
+        Assert.assertEquals(schema.slotOfId(7), 5);
+        Assert.assertEquals(schema.slotOfId(8), -1);
+        Assert.assertEquals(new RowSchema("id", "name").slotOfId(1), -1);
+
+        RowAssembler assembler = new RowAssembler(schema);
+        ThriftEventDecoder decoder = new ThriftEventDecoder(assembler);
+        String[] row = new String[schema.size()];
+
+        byte[] event = new ThriftEvent().i64(1, 1318204800000L).string(2, "caf\u00e9 \"x\"").i32(3, 12).f64(4, 0.5)
+            .bool(5, true).i16(6, (short) -8080).i32(7, -1062731519).stop();
+        decoder.read(event, 0, event.length, row);
+        Assert.assertEquals(Arrays.asList(row), Arrays.asList("caf\u00e9 \"x\"", "1318204800000", "0.5", "true", "-8080", "-1062731519"));
+        Assert.assertEquals(assembler.getSkippedFields(), 1);
+        Assert.assertEquals(assembler.getMissingFields(), 0);
+
+        // the row is reused: fields the next event does not have are nulled out
+        event = new ThriftEvent().string(2, "second").stop();
+        decoder.read(event, 0, event.length, row);
+        Assert.assertEquals(Arrays.asList(row), Arrays.asList("second", null, null, null, null, null));
+        Assert.assertEquals(assembler.getMissingFields(), 5);
+    }
+
+    @Test(groups = "fast")
+    public void testNestedValuesAreSkipped() throws Exception
+    {
+        RowSchema schema = schema();
+        RowAssembler assembler = new RowAssembler(schema);
+        ThriftEventDecoder decoder = new ThriftEventDecoder(assembler);
+        String[] row = new String[schema.size()];
+
+        ThriftEvent event = new ThriftEvent();
+        // an unknown struct holding a list of strings and a map, then a known list, then a known field
+        event.out.writeByte(12);
+        event.out.writeShort(3);
+        event.out.writeByte(15);
+        event.out.writeShort(1);
+        event.out.writeByte(11);
+        event.out.writeInt(2);
+        event.out.writeInt(1);
+        event.out.write('a');
+        event.out.writeInt(0);
+        event.out.writeByte(13);
+        event.out.writeShort(2);
+        event.out.writeByte(8);
+        event.out.writeByte(4);
+        event.out.writeInt(1);
+        event.out.writeInt(42);
+        event.out.writeDouble(1.5);
+        event.out.writeByte(0);
+        event.out.writeByte(15);
+        event.out.writeShort(2);
+        event.out.writeByte(10);
+        event.out.writeInt(1);
+        event.out.writeLong(7);
+        byte[] bytes = event.i64(1, 7).stop();
+
+        // with some bytes before and after the event
+        byte[] padded = new byte[bytes.length + 10];
+        System.arraycopy(bytes, 0, padded, 5, bytes.length);
+        decoder.read(padded, 5, bytes.length, row);
+        Assert.assertEquals(Arrays.asList(row), Arrays.asList("[", "7", null, null, null, null));
+        Assert.assertEquals(assembler.getSkippedFields(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testCorruptEvents() throws Exception
+    {
+        RowSchema schema = schema();
+        ThriftEventDecoder decoder = new ThriftEventDecoder(new RowAssembler(schema));
+        String[] row = new String[schema.size()];
+
+        byte[] event = new ThriftEvent().string(2, "truncated").stop();
+        for (int length : new int[]{0, 2, 10, event.length - 1}) {
+            try {
+                decoder.read(event, 0, length, row);
+                Assert.fail("length " + length);
+            }
+            catch (IOException e) {
+                // expected
+            }
+        }
+
+        ThriftEvent huge = new ThriftEvent();
+        huge.out.writeByte(11);
+        huge.out.writeShort(2);
+        huge.out.writeInt(Integer.MAX_VALUE);
+        ThriftEvent unknown = new ThriftEvent();
+        unknown.out.writeByte(99);
+        unknown.out.writeShort(2);
+        for (byte[] bytes : new byte[][]{huge.stop(), unknown.stop()}) {
+            try {
+                decoder.read(bytes, 0, bytes.length, row);
+                Assert.fail(Arrays.toString(bytes));
+            }
+            catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    static RowSchema schema() throws IOException
+    {
+        return new RowSchema(new ObjectMapper().readValue(SCHEMA, GoodwillSchema.class).getSchema());
+    }
+
+    /**
+     * Writes a struct the way TBinaryProtocol does
+     */
+    static class ThriftEvent
+    {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        ThriftEvent bool(int id, boolean value) throws IOException
+        {
+            field(2, id);
+            out.writeBoolean(value);
+            return this;
+        }
+
+        ThriftEvent i16(int id, short value) throws IOException
+        {
+            field(6, id);
+            out.writeShort(value);
+            return this;
+        }
+
+        ThriftEvent i32(int id, int value) throws IOException
+        {
+            field(8, id);
+            out.writeInt(value);
+            return this;
+        }
+
+        ThriftEvent i64(int id, long value) throws IOException
+        {
+            field(10, id);
+            out.writeLong(value);
+            return this;
+        }
+
+        ThriftEvent f64(int id, double value) throws IOException
+        {
+            field(4, id);
+            out.writeDouble(value);
+            return this;
+        }
+
+        ThriftEvent string(int id, String value) throws IOException
+        {
+            byte[] utf8 = value.getBytes("UTF-8");
+            field(11, id);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+            return this;
+        }
+
+        byte[] stop() throws IOException
+        {
+            out.writeByte(0);
+            return bytes.toByteArray();
+        }
+
+        private void field(int type, int id) throws IOException
+        {
+            out.writeByte(type);
+            out.writeShort(id);
+        }
+    }
+}
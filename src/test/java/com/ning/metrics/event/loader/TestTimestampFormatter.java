@@ -0,0 +1,124 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+package com.ning.metrics.event.loader;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class TestTimestampFormatter
+{
+    private static final DateTimeFormatter dateFormatter = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private DateTimeZone defaultZone;
+
+    @BeforeClass(alwaysRun = true)
+    public void setUpGlobal() throws Exception
+    {
+        defaultZone = DateTimeZone.getDefault();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void tearDownGlobal() throws Exception
+    {
+        DateTimeZone.setDefault(defaultZone);
+    }
+
+    @Test(groups = "fast")
+    public void testMatchesJoda() throws Exception
+    {
+        // half hour offsets, DST transitions, and local mean time offsets that are not whole minutes (Amsterdam before 1937)
+        String[] zones = {"UTC", "America/Los_Angeles", "Asia/Kolkata", "America/St_Johns", "Europe/Amsterdam"};
+        Random random = new Random(42);
+        TimestampFormatter formatter = new TimestampFormatter();
+
+        for (String zone : zones) {
+            DateTimeZone.setDefault(DateTimeZone.forID(zone));
+            // clustered values, as in an hourly partition, around a DST change
+            long hour = 1300000000000L;
+            for (int i = 0; i < 20000; i++) {
+                assertFormat(formatter, hour + random.nextInt(2 * 3600 * 1000));
+            }
+            // anywhere, including negative millis and the LMT era
+            for (int i = 0; i < 20000; i++) {
+                assertFormat(formatter, (random.nextLong() % 200000000000000L));
+            }
+            for (long millis : new long[]{0, -1, 1, 59999, 60000, -60000, -60001, -62135596800000L, 253402300799999L, Long.MAX_VALUE}) {
+                assertFormat(formatter, millis);
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testParsesLikeLongValueOf() throws Exception
+    {
+        DateTimeZone.setDefault(DateTimeZone.UTC);
+        TimestampFormatter formatter = new TimestampFormatter();
+        String[] values = {"0", "-0", "+12", "007", "1308957622623", "-1", "9223372036854775807", "-9223372036854775808",
+            "9223372036854775808", "-9223372036854775809", "", "-", "+", "1e3", "12a", " 12", "12 ", "1.5", "\u0661\u0662\u0663", "-+1"};
+
+        for (String value : values) {
+            RowBuffer output = new RowBuffer(ASCII, 8);
+            boolean valid;
+            try {
+                Long.valueOf(value);
+                valid = true;
+            }
+            catch (NumberFormatException e) {
+                valid = false;
+            }
+
+            try {
+                Assert.assertEquals(formatter.append(value, output), valid, value);
+                if (valid) {
+                    Assert.assertEquals(new String(output.toByteArray(), ASCII), dateFormatter.print(Long.valueOf(value)), value);
+                }
+                else {
+                    Assert.assertEquals(output.size(), 0);
+                }
+            }
+            catch (IllegalArgumentException e) {
+                // out of Joda's range, Joda must reject it as well
+                Assert.assertTrue(valid);
+            }
+        }
+        Assert.assertFalse(formatter.append(null, new RowBuffer(ASCII, 8)));
+    }
+
+    private void assertFormat(TimestampFormatter formatter, long millis)
+    {
+        String expected;
+        try {
+            expected = dateFormatter.print(millis);
+        }
+        catch (IllegalArgumentException e) {
+            return;
+        }
+        RowBuffer output = new RowBuffer(ASCII, 8);
+        formatter.append(millis, output);
+        Assert.assertEquals(new String(output.toByteArray(), ASCII), expected, "millis " + millis + " in " + DateTimeZone.getDefault());
+    }
+}
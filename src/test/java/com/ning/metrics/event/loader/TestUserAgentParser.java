@@ -0,0 +1,208 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestUserAgentParser
+{
+    private static final String BROWSCAP = ";;; synthetic browscap.ini\n"
+        + "[GJK_Browscap_Version]\nVersion=4476\n\n"
+        + "[DefaultProperties]\nBrowser=\"Default Browser\"\nMajorVer=0\nMinorVer=0\nPlatform=unknown\n\n"
+        + "[IE 8.0]\nParent=DefaultProperties\nBrowser=\"IE\"\nMajorVer=8\nMinorVer=0\n\n"
+        + "[Mozilla/4.0 (compatible; MSIE 8.0*Windows NT 5.1*)*]\nParent=IE 8.0\nPlatform=WinXP\n\n"
+        + "[Mozilla/4.0 (compatible; MSIE 8.0*Windows NT 6.1*)*]\nParent=IE 8.0\nPlatform=Win7\n\n"
+        + "[Mozilla/4.0 (compatible; MSIE 8.0*)*]\nParent=IE 8.0\n\n"
+        + "[Firefox 3.6]\nParent=DefaultProperties\nBrowser=\"Firefox\"\nMajorVer=3\nMinorVer=6\n\n"
+        + "[Mozilla/5.0 (*Linux*) Gecko/* Firefox/3.6*]\nParent=Firefox 3.6\nPlatform=Linux\n\n"
+        + "[*Googlebot/2.?*]\nParent=DefaultProperties\nBrowser=\"Googlebot\"\nMajorVer=2\n\n"
+        + "[*]\nParent=DefaultProperties\n";
+
+    private File file;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        file = File.createTempFile("browscap", ".ini");
+        Files.write(BROWSCAP, file, Charsets.ISO_8859_1);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testDecode() throws Exception
+    {
+        UserAgentParser parser = new UserAgentParser(file, UserAgentParser.DEFAULT_PROPERTIES, 100);
+
+        assertDecoded(parser, "Mozilla/4.0 (compatible; MSIE 8.0; Windows NT 5.1; Trident/4.0)", "IE", "8", "0", "WinXP");
+        assertDecoded(parser, "mozilla/4.0 (compatible; msie 8.0; windows nt 6.1; Trident/4.0)", "IE", "8", "0", "Win7");
+        assertDecoded(parser, "Mozilla/4.0 (compatible; MSIE 8.0; Mac_PowerPC)", "IE", "8", "0", "unknown");
+        assertDecoded(parser, "Mozilla/5.0 (X11; U; Linux i686; en-US) Gecko/20100101 Firefox/3.6.13", "Firefox", "3", "6", "Linux");
+        assertDecoded(parser, "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)", "Googlebot", "2", "0", "unknown");
+        assertDecoded(parser, "curl/7.21.0", "Default Browser", "0", "0", "unknown");
+        assertDecoded(parser, null, "", "", "", "");
+    }
+
+    @Test(groups = "fast")
+    public void testPropertiesAndCache() throws Exception
+    {
+        UserAgentParser parser = new UserAgentParser(file, Arrays.asList("Platform", "Browser", "Nope"), 2);
+        String xp = "Mozilla/4.0 (compatible; MSIE 8.0; Windows NT 5.1)";
+        String seven = "Mozilla/4.0 (compatible; MSIE 8.0; Windows NT 6.1)";
+        String bot = "Googlebot/2.1";
+
+        assertDecoded(parser, xp, "WinXP", "IE", "");
+        assertDecoded(parser, xp, "WinXP", "IE", "");
+        assertDecoded(parser, seven, "Win7", "IE", "");
+        assertDecoded(parser, bot, "unknown", "Googlebot", "");
+        assertDecoded(parser, xp, "WinXP", "IE", "");
+
+        BoundedCache<String, String[]> cache = parser.getCache();
+        Assert.assertEquals(cache.getHits(), 1);
+        Assert.assertEquals(cache.getMisses(), 4);
+        Assert.assertTrue(cache.size() <= 2);
+        Assert.assertTrue(cache.getEvictions() >= 2);
+        Assert.assertEquals(cache.getHitRate(), 0.2, 0.0001);
+    }
+
+    @Test(groups = "fast")
+    public void testEnrichment() throws Exception
+    {
+        RowSchema schema = new RowSchema("id", "userAgent");
+        UserAgentParser parser = new UserAgentParser(file, UserAgentParser.DEFAULT_PROPERTIES, 100);
+        UserAgentEnricher enricher = new UserAgentEnricher(new TestShardedOutput.Lines(), parser, schema, "userAgent");
+        Row row = new Row(schema);
+        RowBuffer csv = new RowBuffer(Charsets.UTF_8, 64);
+        row.wrap(new String[]{"1", "Mozilla/4.0 (compatible; MSIE 8.0; Windows NT 5.1)"});
+        enricher.transformRow(row, csv, "|");
+        row.wrap(new String[]{"2", ""});
+        enricher.transformRow(row, csv, "|");
+
+        Assert.assertEquals(new String(csv.toByteArray(), Charsets.UTF_8), "1|Mozilla/4.0 (compatible; MSIE 8.0; Windows NT 5.1)IE|8|0|WinXP|\n"
+            + "2|||||\n");
+    }
+
+    @Test(groups = "fast")
+    public void testTurkishLocale() throws Exception
+    {
+        Locale locale = Locale.getDefault();
+        try {
+            // an upper case I is not a dotless i
+            Locale.setDefault(new Locale("tr", "TR"));
+            UserAgentParser parser = new UserAgentParser(file, UserAgentParser.DEFAULT_PROPERTIES, 100);
+            assertDecoded(parser, "MOZILLA/4.0 (COMPATIBLE; MSIE 8.0; WINDOWS NT 6.1)", "IE", "8", "0", "Win7");
+        }
+        finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testManyPatternsWithTheSamePrefix() throws Exception
+    {
+        // browscap sized, most patterns start with Mozilla/
+        final List<String> patterns = new ArrayList<String>();
+        StringBuilder browscap = new StringBuilder("[DefaultProperties]\nBrowser=\"Default Browser\"\nMajorVer=0\n\n");
+        String[] platforms = {"Windows NT 5.1", "Windows NT 6.0", "Windows NT 6.1", "Windows NT 6.2", "Macintosh", "X11", "Linux", "Android"};
+        String[] browsers = {"Firefox", "Chrome", "Safari", "Iceweasel"};
+        for (int version = 0; version < 100; version++) {
+            for (String platform : platforms) {
+                for (String browser : browsers) {
+                    patterns.add("Mozilla/5.0 (" + platform + "*) Gecko/* " + browser + "/" + version + ".*");
+                    patterns.add("Mozilla/5.0 (*" + platform + "*)*" + browser + "/" + version + ".*");
+                }
+                patterns.add("Mozilla/4.0 (compatible; MSIE " + version + ".0*" + platform + "*)*");
+                patterns.add("Opera/9.80 (" + platform + "*)*Version/" + version + ".*");
+            }
+        }
+        patterns.add("*");
+        for (int i = 0; i < patterns.size(); i++) {
+            browscap.append('[').append(patterns.get(i)).append("]\nParent=DefaultProperties\nBrowser=").append(i).append("\n\n");
+        }
+        Files.write(browscap.toString(), file, Charsets.ISO_8859_1);
+        UserAgentParser parser = new UserAgentParser(file, Arrays.asList("Browser"), 100);
+
+        // longest pattern first, then file order
+        final List<String> byPriority = new ArrayList<String>(patterns);
+        Collections.sort(byPriority, new Comparator<String>()
+        {
+            public int compare(String left, String right)
+            {
+                return left.length() != right.length() ? right.length() - left.length() : patterns.indexOf(left) - patterns.indexOf(right);
+            }
+        });
+
+        String[] userAgents = {
+            "Mozilla/5.0 (Windows NT 6.1; WOW64; rv:12.0) Gecko/20100101 Firefox/12.0",
+            "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/535.19 (KHTML, like Gecko) Chrome/18.0.1025.168 Safari/535.19",
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_7_3) AppleWebKit/534.55.3 (KHTML, like Gecko) Version/5.1.3 Safari/534.53.10",
+            "Mozilla/4.0 (compatible; MSIE 8.0; Windows NT 5.1; Trident/4.0)",
+            "Opera/9.80 (Windows NT 6.1; U; en) Presto/2.10.229 Version/11.62",
+            "curl/7.21.0"
+        };
+        for (String userAgent : userAgents) {
+            String text = userAgent.toLowerCase(Locale.ENGLISH);
+            String expected = null;
+            for (String pattern : byPriority) {
+                if (UserAgentParser.matches(pattern.toLowerCase(Locale.ENGLISH), text)) {
+                    expected = String.valueOf(patterns.indexOf(pattern));
+                    break;
+                }
+            }
+            assertDecoded(parser, userAgent, expected);
+        }
+
+        // the literal prefix narrows the patterns down to those of the platform, and those with a wildcard right after it
+        int candidates = parser.candidates("mozilla/5.0 (windows nt 6.1; wow64; rv:12.0) gecko/20100101 firefox/12.0").length;
+        Assert.assertEquals(candidates, 1 + 100 * 8 * 4 + 100 * 4);
+        Assert.assertEquals(parser.candidates("opera/9.80 (windows nt 6.1; u; en) presto/2.10.229 version/11.62").length, 1 + 100);
+    }
+
+    @Test(groups = "fast")
+    public void testGlob() throws Exception
+    {
+        Assert.assertTrue(UserAgentParser.matches("a*b?d*", "axxbcd"));
+        Assert.assertTrue(UserAgentParser.matches("*", ""));
+        Assert.assertTrue(UserAgentParser.matches("a*a*a", "aaaaa"));
+        Assert.assertFalse(UserAgentParser.matches("a*b", "aaac"));
+        Assert.assertFalse(UserAgentParser.matches("a?", "a"));
+    }
+
+    private static void assertDecoded(UserAgentParser parser, String userAgent, String... expected)
+    {
+        Assert.assertEquals(Arrays.asList(parser.decode(userAgent)), Arrays.asList(expected), userAgent);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *
+ *  * Copyright 2010-2011 Ning, Inc.
+ *  *
+ *  * Ning licenses this file to you under the Apache License, version 2.0
+ *  * (the "License"); you may not use this file except in compliance with the
+ *  * License.  You may obtain a copy of the License at:
+ *  *
+ *  *    http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ *  * License for the specific language governing permissions and limitations
+ *  * under the License.
+ *
+ */
+
+
+package com.ning.metrics.event.loader;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestWatermarkStore extends TemporaryDirectoryTest
+{
+    private static final RowSchema schema = new RowSchema("id", "name");
+
+    @Test(groups = "fast")
+    public void testOnlyNewAndChangedFiles() throws Exception
+    {
+        File csv = new File(dir, "events.csv");
+        File state = new File(dir, "events.watermarks");
+
+        export(listing(entry("/e/f0", 10, 100, "0"), entry("/e/f1", 10, 100, "1")));
+        Assert.assertEquals(Files.toString(csv, Charsets.UTF_8), "0|event 0\n1|event 1\n");
+        Assert.assertEquals(Files.toString(state, Charsets.UTF_8), "Visit\t/e\n/e/f0\t10\t100\n/e/f1\t10\t100\n");
+
+        // f1 was rewritten, f2 arrived late
+        export(listing(entry("/e/f0", 10, 100, "0"), entry("/e/f1", 12, 200, "1b"), entry("/e/f2", 10, 300, "2")));
+        Assert.assertEquals(Files.toString(csv, Charsets.UTF_8), "1b|event 1b\n2|event 2\n");
+
+        // nothing new
+        export(listing(entry("/e/f0", 10, 100, "0"), entry("/e/f1", 12, 200, "1b"), entry("/e/f2", 10, 300, "2")));
+        Assert.assertEquals(csv.length(), 0);
+        Assert.assertEquals(Files.toString(state, Charsets.UTF_8), "Visit\t/e\n/e/f0\t10\t100\n/e/f1\t12\t200\n/e/f2\t10\t300\n");
+    }
+
+    @Test(groups = "fast")
+    public void testFailedRunIsNotRecorded() throws Exception
+    {
+        File state = new File(dir, "events.watermarks");
+        try {
+            export(listing(entry("/e/f0", 10, 100, "0")).replace("]}]}", "]"));
+            Assert.fail("the listing is truncated");
+        }
+        catch (IOException e) {
+            Assert.assertFalse(state.exists());
+        }
+
+        WatermarkStore watermarks = new WatermarkStore(state, "Visit\t/e");
+        Assert.assertFalse(watermarks.isLoaded("/e/f0", "10", "100"));
+    }
+
+    @Test(groups = "fast")
+    public void testUnknownVersion() throws Exception
+    {
+        File state = new File(dir, "events.watermarks");
+        WatermarkStore watermarks = new WatermarkStore(state, "Visit\t/e");
+        watermarks.loaded("/e/f0", null, null);
+        watermarks.loaded("/e/f1", "10", "100");
+        watermarks.commit();
+
+        WatermarkStore next = new WatermarkStore(state, "Visit\t/e");
+        // without size and time a file is known by its path only
+        Assert.assertTrue(next.isLoaded("/e/f0", "10", "100"));
+        Assert.assertTrue(next.isLoaded("/e/f1", null, null));
+        Assert.assertFalse(next.isLoaded("/e/f1", "10", "101"));
+        Assert.assertFalse(next.isLoaded("/e/f2", null, null));
+
+        try {
+            new WatermarkStore(state, "Click\t/e");
+            Assert.fail("the state belongs to the Visit export");
+        }
+        catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("another export"));
+        }
+    }
+
+    private void export(String listing) throws Exception
+    {
+        EventLoaderConfiguration configuration = configuration(TestShardedOutput.Lines.class);
+        configuration.setIncremental(true);
+        export(configuration, listing, schema);
+    }
+
+    private static String listing(String... entries)
+    {
+        StringBuilder listing = new StringBuilder("{\"entries\": [");
+        for (int i = 0; i < entries.length; i++) {
+            listing.append(i == 0 ? "" : ", ").append(entries[i]);
+        }
+        return listing.append("]}").toString();
+    }
+
+    private static String entry(String path, long size, long mtime, String id)
+    {
+        // as action-core lists a file
+        return "{\"path\": \"" + path + "\", \"mtime\": " + mtime + ", \"size\": " + size + ", \"replication\": 3, \"isDir\": false, \"content\": ["
+            + "{\"id\": \"" + id + "\", \"name\": \"event " + id + "\"}]}";
+    }
+}